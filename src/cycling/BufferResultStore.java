@@ -0,0 +1,288 @@
+package cycling;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * BufferResultStore - A class which keeps the result columns of a stage
+ * outside the heap, in a direct buffer or in a file mapped into memory.
+ * <p>
+ * The buffer starts with a header holding the number of rows in use, the
+ * stride, the capacity and the stamp, followed by the rows. Each row holds
+ * the rider Id, the checkpoint count, the start time, the elapsed time and
+ * then the checkpoint slots. Everything is little-endian, whether the
+ * buffer is direct or mapped. A file-backed store starts with a random
+ * stamp and moves it on before its rows change, so after a restart a
+ * snapshot with the same stamp can use the file as it is without reading
+ * its rows.
+ */
+public class BufferResultStore implements ResultStore {
+    private static final int MAGIC = 0x43595253;
+    private static final int HEADER_SIZE = 24;
+    private static final int SIZE_POSITION = 4;
+    private static final int STRIDE_POSITION = 8;
+    private static final int CAPACITY_POSITION = 12;
+    private static final int STAMP_POSITION = 16;
+    private static final int ROW_FIXED_SIZE = 24;
+    // rows are moved through a buffer on the heap this many bytes at a time
+    private static final int MOVE_CHUNK = 64 * 1024;
+
+    // the file the store is mapped from, null for a direct buffer
+    private Path file;
+    private ByteBuffer buffer;
+    private int stride;
+    private int capacity;
+    private int rowSize;
+
+    private BufferResultStore(Path file, ByteBuffer buffer) {
+        this.file = file;
+        this.buffer = buffer;
+        this.stride = buffer.getInt(STRIDE_POSITION);
+        this.capacity = buffer.getInt(CAPACITY_POSITION);
+        this.rowSize = ROW_FIXED_SIZE + 8 * stride;
+    }
+
+    /**
+     * creates a store in a direct buffer
+     *
+     * @return the store
+     */
+    public static BufferResultStore direct() {
+        return new BufferResultStore(null, allocate(null, 16, 1));
+    }
+
+    /**
+     * opens a store in a file, the rows already in the file are kept if
+     * it was written by a store before, otherwise the store starts empty
+     *
+     * @param file the location of the file
+     * @return the store
+     * @throws IOException if the file cannot be opened
+     */
+    public static BufferResultStore mapped(Path file) throws IOException {
+        if (Files.exists(file) && Files.size(file) >= HEADER_SIZE) {
+            ByteBuffer buffer = map(file, Files.size(file));
+            if (buffer.getInt(0) == MAGIC) {
+                long needed = HEADER_SIZE
+                        + (long) buffer.getInt(CAPACITY_POSITION) * (ROW_FIXED_SIZE + 8L * buffer.getInt(STRIDE_POSITION));
+                if (buffer.getInt(STRIDE_POSITION) > 0 && needed <= buffer.capacity()) {
+                    return new BufferResultStore(file, buffer);
+                }
+            }
+        }
+        return new BufferResultStore(file, allocate(file, 16, 1));
+    }
+
+    @Override
+    public int getSize() {
+        return buffer.getInt(SIZE_POSITION);
+    }
+
+    @Override
+    public void setSize(int size) {
+        buffer.putInt(SIZE_POSITION, size);
+    }
+
+    @Override
+    public int getStride() {
+        return stride;
+    }
+
+    @Override
+    public void reserve(int rows, int newStride) {
+        if (rows <= capacity && newStride <= stride) {
+            return;
+        }
+        int newCapacity = capacity;
+        while (newCapacity < rows) {
+            newCapacity *= 2;
+        }
+        newStride = Math.max(stride, newStride);
+        int newRowSize = ROW_FIXED_SIZE + 8 * newStride;
+        int size = getSize();
+
+        /*
+         * the rows are copied into a new buffer laid out for the new stride,
+         * a file-backed store writes a new file and moves it over the old one
+         */
+        Path newFile = file == null ? null : file.resolveSibling(file.getFileName() + ".tmp");
+        ByteBuffer newBuffer = allocate(newFile, newCapacity, newStride);
+        byte[] row = new byte[rowSize];
+        for (int i = 0; i < size; i++) {
+            buffer.get(HEADER_SIZE + i * rowSize, row, 0, rowSize);
+            newBuffer.put(HEADER_SIZE + i * newRowSize, row, 0, rowSize);
+        }
+        newBuffer.putInt(SIZE_POSITION, size);
+        if (file != null) {
+            try {
+                Files.move(newFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                throw new UncheckedIOException("The results could not be moved to " + file + ".", e);
+            }
+        }
+        buffer = newBuffer;
+        capacity = newCapacity;
+        stride = newStride;
+        rowSize = newRowSize;
+    }
+
+    @Override
+    public int getRiderId(int row) {
+        return buffer.getInt(HEADER_SIZE + row * rowSize);
+    }
+
+    @Override
+    public void setRiderId(int row, int riderId) {
+        buffer.putInt(HEADER_SIZE + row * rowSize, riderId);
+    }
+
+    @Override
+    public int getCheckpointCount(int row) {
+        return buffer.getInt(HEADER_SIZE + row * rowSize + 4);
+    }
+
+    @Override
+    public void setCheckpointCount(int row, int checkpointCount) {
+        buffer.putInt(HEADER_SIZE + row * rowSize + 4, checkpointCount);
+    }
+
+    @Override
+    public long getStartTime(int row) {
+        return buffer.getLong(HEADER_SIZE + row * rowSize + 8);
+    }
+
+    @Override
+    public void setStartTime(int row, long startTime) {
+        buffer.putLong(HEADER_SIZE + row * rowSize + 8, startTime);
+    }
+
+    @Override
+    public long getElapsedTime(int row) {
+        return buffer.getLong(HEADER_SIZE + row * rowSize + 16);
+    }
+
+    @Override
+    public void setElapsedTime(int row, long elapsedTime) {
+        buffer.putLong(HEADER_SIZE + row * rowSize + 16, elapsedTime);
+    }
+
+    @Override
+    public long getCheckpointOffset(int row, int slot) {
+        return buffer.getLong(HEADER_SIZE + row * rowSize + ROW_FIXED_SIZE + slot * 8);
+    }
+
+    @Override
+    public void setCheckpointOffset(int row, int slot, long offset) {
+        buffer.putLong(HEADER_SIZE + row * rowSize + ROW_FIXED_SIZE + slot * 8, offset);
+    }
+
+    @Override
+    public void moveRows(int from, int to, int count) {
+        int length = count * rowSize;
+        int source = HEADER_SIZE + from * rowSize;
+        int target = HEADER_SIZE + to * rowSize;
+        byte[] chunk = new byte[Math.min(length, MOVE_CHUNK)];
+        /*
+         * rows moving down are copied from the end so the
+         * rows still to be copied are not written over
+         */
+        if (target > source) {
+            int remaining = length;
+            while (remaining > 0) {
+                int part = Math.min(remaining, chunk.length);
+                remaining -= part;
+                buffer.get(source + remaining, chunk, 0, part);
+                buffer.put(target + remaining, chunk, 0, part);
+            }
+        } else {
+            int done = 0;
+            while (done < length) {
+                int part = Math.min(length - done, chunk.length);
+                buffer.get(source + done, chunk, 0, part);
+                buffer.put(target + done, chunk, 0, part);
+                done += part;
+            }
+        }
+    }
+
+    @Override
+    public long getStamp() {
+        if (file == null) {
+            return 0;
+        }
+        return buffer.getLong(STAMP_POSITION);
+    }
+
+    @Override
+    public void changeStamp() {
+        buffer.putLong(STAMP_POSITION, buffer.getLong(STAMP_POSITION) + 1);
+    }
+
+    @Override
+    public void release() {
+        if (file != null) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                // a file left behind has a stamp no snapshot of its stage's results matches
+            }
+        }
+    }
+
+    /**
+     * creates an empty buffer with room for the given rows
+     */
+    private static ByteBuffer allocate(Path file, int capacity, int stride) {
+        long length = HEADER_SIZE + (long) capacity * (ROW_FIXED_SIZE + 8 * stride);
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalStateException("The results of a stage cannot take more than 2GB.");
+        }
+        ByteBuffer buffer;
+        if (file == null) {
+            buffer = ByteBuffer.allocateDirect((int) length).order(ByteOrder.LITTLE_ENDIAN);
+        } else {
+            try {
+                Files.deleteIfExists(file);
+                buffer = map(file, length);
+            } catch (IOException e) {
+                throw new UncheckedIOException("The results could not be stored in " + file + ".", e);
+            }
+        }
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(SIZE_POSITION, 0);
+        buffer.putInt(STRIDE_POSITION, stride);
+        buffer.putInt(CAPACITY_POSITION, capacity);
+        buffer.putLong(STAMP_POSITION, newStamp());
+        return buffer;
+    }
+
+    /**
+     * picks the stamp of a new buffer at random, so it matches no snapshot
+     * of whatever rows a file at the same place held before
+     */
+    private static long newStamp() {
+        long stamp = 0;
+        while (stamp == 0) {
+            stamp = ThreadLocalRandom.current().nextLong();
+        }
+        return stamp;
+    }
+
+    private static ByteBuffer map(Path file, long length) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, length).order(ByteOrder.LITTLE_ENDIAN);
+        } finally {
+            channel.close();
+        }
+    }
+}
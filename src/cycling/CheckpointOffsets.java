@@ -0,0 +1,26 @@
+package cycling;
+
+/**
+ * CheckpointOffsets - the checkpoint times of a stage's results, one row
+ * per rider in finish order, as read by a StagePlan to work out points.
+ */
+public interface CheckpointOffsets {
+
+    /**
+     * gets the number of rows
+     *
+     * @return the number of rows
+     */
+    int size();
+
+    int getCheckpointCount(int row);
+
+    /**
+     * gets the time from the start to a checkpoint of a row
+     *
+     * @param row             the row of the result
+     * @param checkpointIndex the index of the checkpoint, 0 being the start
+     * @return the time in nanoseconds
+     */
+    long getCheckpointOffset(int row, int checkpointIndex);
+}
@@ -0,0 +1,1131 @@
+package cycling;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.HashSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * ConcurrentCyclingPortal - A class which lets many threads use a
+ * CyclingPortal at once.
+ * <p>
+ * Each race is guarded by a read-write lock, taken from a fixed set of
+ * locks by the race's Id, so results registered in one race and the
+ * classifications of another race are worked on at the same time. Teams and
+ * riders have a lock of their own. Changes which reach across every race,
+ * such as creating or removing a race, removing a team or rider, erasing,
+ * saving and loading, hold the whole portal while they run.
+ * <p>
+ * Each time a writer lets go of a race it publishes a RaceVersion, the
+ * race's results as they were which never change, and the rankings, points
+ * and classifications are answered from the latest version without taking
+ * any lock, so readers never wait for writers. Every answer read from one
+ * version agrees with the others, and a version already handed out is not
+ * affected by later results. Publishing only adds the new rows of the
+ * stages which changed, the rankings and classifications of a version are
+ * worked out by the first reader to ask for them. A writer which sees other
+ * writers waiting for the race leaves the publishing to the last of them,
+ * but only for up to MAX_DEFERRED_CHANGES changes or MAX_DEFERRED_NANOS, so
+ * an answer is at most that far behind the race, and a thread whose writer
+ * was the last of its run always sees its own results. A caller which needs
+ * to know which results an answer holds reads them from
+ * {@link #getRaceVersion(int)}, whose number tells the versions apart. Live
+ * timing is always answered from the race itself, with threads taking turns
+ * within a race while it is held for reading.
+ * <p>
+ * The portal should not be loaded in archive mode while it is shared, as
+ * reading one race can drop the stages of another.
+ */
+public class ConcurrentCyclingPortal implements CyclingPortalInterface {
+    // the number of race locks, races whose Ids differ by a multiple of this share one
+    private static final int STRIPES = 64;
+    private static final int READ = 0;
+    private static final int WRITE = 1;
+    private static final int QUERY = 2;
+    // a run of writers publishes once this many changes or this long have gone unpublished
+    private static final int MAX_DEFERRED_CHANGES = 64;
+    private static final long MAX_DEFERRED_NANOS = 2000000;
+
+    private final CyclingPortal portal;
+    // held for reading by every operation, and for writing by those reaching across races
+    private final ReentrantReadWriteLock portalLock = new ReentrantReadWriteLock();
+    private final ReentrantReadWriteLock teamLock = new ReentrantReadWriteLock();
+    private final RaceLock[] raceLocks = new RaceLock[STRIPES];
+    // taken along with a race's read lock while its rankings are worked out
+    private final ReentrantLock[] queryLocks = new ReentrantLock[STRIPES];
+    /*
+     * stages and segments are created one at a time across every race, so
+     * they are written to the journal in the order their Ids were handed out
+     * and get the same Ids when it is replayed
+     */
+    private final ReentrantLock allocationLock = new ReentrantLock();
+    // the latest published version of each race
+    private final ConcurrentHashMap<Integer, AtomicReference<RaceVersion>> versions
+            = new ConcurrentHashMap<Integer, AtomicReference<RaceVersion>>();
+    private final AtomicLong versionCounter = new AtomicLong();
+
+    public ConcurrentCyclingPortal() {
+        this(new CyclingPortal());
+    }
+
+    /**
+     * Constructor for the Objects of ConcurrentCyclingPortal class
+     *
+     * @param portal the portal to be shared, it should not be used
+     *               directly once it has been handed over
+     */
+    public ConcurrentCyclingPortal(CyclingPortal portal) {
+        this.portal = portal;
+        for (int i = 0; i < STRIPES; i++) {
+            raceLocks[i] = new RaceLock();
+            queryLocks[i] = new ReentrantLock();
+        }
+        publishAll();
+    }
+
+    /**
+     * gets the latest published version of a race, without taking any lock.
+     * The version holds the race's results as they were when it was
+     * published and can be read for as long as needed. While writers are
+     * queued for the race it can be up to MAX_DEFERRED_CHANGES changes or
+     * MAX_DEFERRED_NANOS behind, the same as every other answer read
+     * without a lock.
+     *
+     * @param raceId the Id of the race
+     * @return the version
+     * @throws IDNotRecognisedException if the race is not found
+     */
+    public RaceVersion getRaceVersion(int raceId) throws IDNotRecognisedException {
+        AtomicReference<RaceVersion> reference = versions.get(raceId);
+        if (reference == null) {
+            throw new IDNotRecognisedException("Race ID was not found in the system.");
+        }
+        return reference.get();
+    }
+
+    @Override
+    public int[] getRaceIds() {
+        portalLock.readLock().lock();
+        try {
+            return portal.getRaceIds();
+        } finally {
+            portalLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int createRace(String name, String description) throws IllegalNameException, InvalidNameException {
+        portalLock.writeLock().lock();
+        try {
+            return portal.createRace(name, description);
+        } finally {
+            publishAll();
+            portalLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public String viewRaceDetails(int raceId) throws IDNotRecognisedException {
+        lockRace(raceId, READ);
+        try {
+            return portal.viewRaceDetails(raceId);
+        } finally {
+            unlockRace(raceId, READ);
+        }
+    }
+
+    @Override
+    public void removeRaceById(int raceId) throws IDNotRecognisedException {
+        portalLock.writeLock().lock();
+        try {
+            portal.removeRaceById(raceId);
+        } finally {
+            publishAll();
+            portalLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void removeRaceByName(String name) throws NameNotRecognisedException {
+        portalLock.writeLock().lock();
+        try {
+            portal.removeRaceByName(name);
+        } finally {
+            publishAll();
+            portalLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public int getNumberOfStages(int raceId) throws IDNotRecognisedException {
+        lockRace(raceId, READ);
+        try {
+            return portal.getNumberOfStages(raceId);
+        } finally {
+            unlockRace(raceId, READ);
+        }
+    }
+
+    @Override
+    public int addStageToRace(int raceId, String stageName, String description, double length, LocalDateTime startTime,
+            StageType type)
+            throws IDNotRecognisedException, IllegalNameException, InvalidNameException, InvalidLengthException {
+        lockRace(raceId, WRITE);
+        allocationLock.lock();
+        try {
+            return portal.addStageToRace(raceId, stageName, description, length, startTime, type);
+        } finally {
+            allocationLock.unlock();
+            unlockRace(raceId, WRITE);
+        }
+    }
+
+    @Override
+    public int[] getRaceStages(int raceId) throws IDNotRecognisedException {
+        lockRace(raceId, READ);
+        try {
+            return portal.getRaceStages(raceId);
+        } finally {
+            unlockRace(raceId, READ);
+        }
+    }
+
+    @Override
+    public double getStageLength(int stageId) throws IDNotRecognisedException {
+        int raceId = lockStage(stageId, READ);
+        try {
+            return portal.getStageLength(stageId);
+        } finally {
+            unlockRace(raceId, READ);
+        }
+    }
+
+    @Override
+    public void removeStageById(int stageId) throws IDNotRecognisedException {
+        int raceId = lockStage(stageId, WRITE);
+        try {
+            portal.removeStageById(stageId);
+        } finally {
+            unlockRace(raceId, WRITE);
+        }
+    }
+
+    @Override
+    public int addCategorizedClimbToStage(int stageId, Double location, SegmentType type, Double averageGradient,
+            Double length) throws IDNotRecognisedException, InvalidLocationException, InvalidStageStateException,
+            InvalidStageTypeException {
+        int raceId = lockStage(stageId, WRITE);
+        allocationLock.lock();
+        try {
+            return portal.addCategorizedClimbToStage(stageId, location, type, averageGradient, length);
+        } finally {
+            allocationLock.unlock();
+            unlockRace(raceId, WRITE);
+        }
+    }
+
+    @Override
+    public int addIntermediateSprintToStage(int stageId, double location) throws IDNotRecognisedException,
+            InvalidLocationException, InvalidStageStateException, InvalidStageTypeException {
+        int raceId = lockStage(stageId, WRITE);
+        allocationLock.lock();
+        try {
+            return portal.addIntermediateSprintToStage(stageId, location);
+        } finally {
+            allocationLock.unlock();
+            unlockRace(raceId, WRITE);
+        }
+    }
+
+    /**
+     * leases a block of segment Ids for an importer
+     *
+     * @param count the number of Ids
+     * @return the first Id of the block
+     * @see CyclingPortal#leaseSegmentIds(int)
+     */
+    public int leaseSegmentIds(int count) {
+        // taken along with the segments created so leases reach the journal in the order they were made
+        portalLock.readLock().lock();
+        allocationLock.lock();
+        try {
+            return portal.leaseSegmentIds(count);
+        } finally {
+            allocationLock.unlock();
+            portalLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * adds a climb with a leased Id
+     *
+     * @param stageId         the Id of the stage
+     * @param location        the location of the finish of the climb in the stage
+     * @param type            the category of the climb
+     * @param averageGradient the average gradient of the climb
+     * @param length          the length of the climb in kms
+     * @param segmentId       the leased Id
+     * @return the Id of the segment
+     * @throws IDNotRecognisedException   if the stage is not found
+     * @throws InvalidLocationException   if the location is out of bounds
+     * @throws InvalidStageStateException if the stage is waiting for results
+     * @throws InvalidStageTypeException  if the stage is a time trial
+     * @see CyclingPortal#addCategorizedClimbToStage(int, Double, SegmentType, Double, Double, int)
+     */
+    public int addCategorizedClimbToStage(int stageId, Double location, SegmentType type, Double averageGradient,
+            Double length, int segmentId) throws IDNotRecognisedException, InvalidLocationException,
+            InvalidStageStateException, InvalidStageTypeException {
+        int raceId = lockStage(stageId, WRITE);
+        try {
+            return portal.addCategorizedClimbToStage(stageId, location, type, averageGradient, length, segmentId);
+        } finally {
+            unlockRace(raceId, WRITE);
+        }
+    }
+
+    /**
+     * adds a sprint with a leased Id
+     *
+     * @param stageId   the Id of the stage
+     * @param location  the location of the sprint in the stage
+     * @param segmentId the leased Id
+     * @return the Id of the segment
+     * @throws IDNotRecognisedException   if the stage is not found
+     * @throws InvalidLocationException   if the location is out of bounds
+     * @throws InvalidStageStateException if the stage is waiting for results
+     * @throws InvalidStageTypeException  if the stage is a time trial
+     * @see CyclingPortal#addIntermediateSprintToStage(int, double, int)
+     */
+    public int addIntermediateSprintToStage(int stageId, double location, int segmentId)
+            throws IDNotRecognisedException, InvalidLocationException, InvalidStageStateException,
+            InvalidStageTypeException {
+        int raceId = lockStage(stageId, WRITE);
+        try {
+            return portal.addIntermediateSprintToStage(stageId, location, segmentId);
+        } finally {
+            unlockRace(raceId, WRITE);
+        }
+    }
+
+    @Override
+    public void removeSegment(int segmentId) throws IDNotRecognisedException, InvalidStageStateException {
+        int raceId = lockSegment(segmentId, WRITE);
+        try {
+            portal.removeSegment(segmentId);
+        } finally {
+            unlockRace(raceId, WRITE);
+        }
+    }
+
+    @Override
+    public void concludeStagePreparation(int stageId) throws IDNotRecognisedException, InvalidStageStateException {
+        int raceId = lockStage(stageId, WRITE);
+        try {
+            portal.concludeStagePreparation(stageId);
+        } finally {
+            unlockRace(raceId, WRITE);
+        }
+    }
+
+    @Override
+    public int[] getStageSegments(int stageId) throws IDNotRecognisedException {
+        int raceId = lockStage(stageId, READ);
+        try {
+            return portal.getStageSegments(stageId);
+        } finally {
+            unlockRace(raceId, READ);
+        }
+    }
+
+    @Override
+    public int createTeam(String name, String description) throws IllegalNameException, InvalidNameException {
+        portalLock.readLock().lock();
+        teamLock.writeLock().lock();
+        try {
+            return portal.createTeam(name, description);
+        } finally {
+            teamLock.writeLock().unlock();
+            portalLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * leases a block of team Ids for an importer
+     *
+     * @param count the number of Ids
+     * @return the first Id of the block
+     * @see CyclingPortal#leaseTeamIds(int)
+     */
+    public int leaseTeamIds(int count) {
+        // taken along with the teams so leases reach the journal in the order they were made
+        portalLock.readLock().lock();
+        teamLock.writeLock().lock();
+        try {
+            return portal.leaseTeamIds(count);
+        } finally {
+            teamLock.writeLock().unlock();
+            portalLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * creates a team with a leased Id
+     *
+     * @param name        the name of the team
+     * @param description the description of the team
+     * @param teamId      the leased Id
+     * @return the Id of the team
+     * @throws IllegalNameException if the name is already in use
+     * @throws InvalidNameException if the name is invalid
+     * @see CyclingPortal#createTeam(String, String, int)
+     */
+    public int createTeam(String name, String description, int teamId)
+            throws IllegalNameException, InvalidNameException {
+        portalLock.readLock().lock();
+        teamLock.writeLock().lock();
+        try {
+            return portal.createTeam(name, description, teamId);
+        } finally {
+            teamLock.writeLock().unlock();
+            portalLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void removeTeam(int teamId) throws IDNotRecognisedException {
+        // the results of the team's riders are removed from every race
+        portalLock.writeLock().lock();
+        try {
+            portal.removeTeam(teamId);
+        } finally {
+            publishAll();
+            portalLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public int[] getTeams() {
+        portalLock.readLock().lock();
+        teamLock.readLock().lock();
+        try {
+            return portal.getTeams();
+        } finally {
+            teamLock.readLock().unlock();
+            portalLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int[] getTeamRiders(int teamId) throws IDNotRecognisedException {
+        portalLock.readLock().lock();
+        teamLock.readLock().lock();
+        try {
+            return portal.getTeamRiders(teamId);
+        } finally {
+            teamLock.readLock().unlock();
+            portalLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int createRider(int teamID, String name, int yearOfBirth)
+            throws IDNotRecognisedException, IllegalArgumentException {
+        portalLock.readLock().lock();
+        teamLock.writeLock().lock();
+        try {
+            return portal.createRider(teamID, name, yearOfBirth);
+        } finally {
+            teamLock.writeLock().unlock();
+            portalLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * leases a block of rider Ids for an importer
+     *
+     * @param count the number of Ids
+     * @return the first Id of the block
+     * @see CyclingPortal#leaseRiderIds(int)
+     */
+    public int leaseRiderIds(int count) {
+        portalLock.readLock().lock();
+        teamLock.writeLock().lock();
+        try {
+            return portal.leaseRiderIds(count);
+        } finally {
+            teamLock.writeLock().unlock();
+            portalLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * creates a rider with a leased Id
+     *
+     * @param teamID      the Id of the rider's team
+     * @param name        the name of the rider
+     * @param yearOfBirth the year the rider was born
+     * @param riderId     the leased Id
+     * @return the Id of the rider
+     * @throws IDNotRecognisedException if the team is not found
+     * @see CyclingPortal#createRider(int, String, int, int)
+     */
+    public int createRider(int teamID, String name, int yearOfBirth, int riderId)
+            throws IDNotRecognisedException {
+        portalLock.readLock().lock();
+        teamLock.writeLock().lock();
+        try {
+            return portal.createRider(teamID, name, yearOfBirth, riderId);
+        } finally {
+            teamLock.writeLock().unlock();
+            portalLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void removeRider(int riderId) throws IDNotRecognisedException {
+        portalLock.writeLock().lock();
+        try {
+            portal.removeRider(riderId);
+        } finally {
+            publishAll();
+            portalLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void registerRiderResultsInStage(int stageId, int riderId, LocalTime... checkpoints)
+            throws IDNotRecognisedException, DuplicatedResultException, InvalidCheckpointsException,
+            InvalidStageStateException {
+        int raceId = lockStage(stageId, WRITE);
+        try {
+            portal.registerRiderResultsInStage(stageId, riderId, checkpoints);
+        } finally {
+            unlockRace(raceId, WRITE);
+        }
+    }
+
+    /**
+     * registers the results of many riders in a stage at once
+     *
+     * @param stageId     the Id of the stage
+     * @param riderIds    the Ids of the riders
+     * @param checkpoints the checkpoint times of each rider
+     * @throws IDNotRecognisedException    if the stage or a rider is not found
+     * @throws DuplicatedResultException   if a rider already has a result
+     * @throws InvalidCheckpointsException if a rider has the wrong number of
+     *                                     checkpoints
+     * @throws InvalidStageStateException  if the stage is not waiting for results
+     * @see CyclingPortal#registerRidersResultsInStage(int, int[], LocalTime[][])
+     */
+    public void registerRidersResultsInStage(int stageId, int[] riderIds, LocalTime[][] checkpoints)
+            throws IDNotRecognisedException, DuplicatedResultException, InvalidCheckpointsException,
+            InvalidStageStateException {
+        int raceId = lockStage(stageId, WRITE);
+        try {
+            portal.registerRidersResultsInStage(stageId, riderIds, checkpoints);
+        } finally {
+            unlockRace(raceId, WRITE);
+        }
+    }
+
+    /**
+     * registers the results of many riders in a stage at once from
+     * primitive arrays
+     *
+     * @param stageId         the Id of the stage
+     * @param riderIds        the Ids of the riders
+     * @param checkpointNanos the checkpoints of each rider one after another,
+     *                        as nanoseconds of the day
+     * @throws IDNotRecognisedException    if the stage or a rider is not found
+     * @throws DuplicatedResultException   if a rider already has a result
+     * @throws InvalidCheckpointsException if there are the wrong number of
+     *                                     checkpoints
+     * @throws InvalidStageStateException  if the stage is not waiting for results
+     * @see CyclingPortal#registerRidersResultsInStage(int, int[], long[])
+     */
+    public void registerRidersResultsInStage(int stageId, int[] riderIds, long[] checkpointNanos)
+            throws IDNotRecognisedException, DuplicatedResultException, InvalidCheckpointsException,
+            InvalidStageStateException {
+        int raceId = lockStage(stageId, WRITE);
+        try {
+            portal.registerRidersResultsInStage(stageId, riderIds, checkpointNanos);
+        } finally {
+            unlockRace(raceId, WRITE);
+        }
+    }
+
+    /**
+     * records a rider passing a checkpoint of a stage being ridden
+     *
+     * @param stageId         the Id of the stage
+     * @param riderId         the Id of the rider
+     * @param checkpointIndex the index of the checkpoint
+     * @param time            the time the rider passed it
+     * @return true if the passing completed the rider's result
+     * @throws IDNotRecognisedException    if the stage or rider is not found
+     * @throws DuplicatedResultException   if the rider has already passed it
+     * @throws InvalidCheckpointsException if the checkpoint index is invalid
+     * @throws InvalidStageStateException  if the stage is not waiting for results
+     * @see CyclingPortal#registerRiderPassingInStage(int, int, int, LocalTime)
+     */
+    public boolean registerRiderPassingInStage(int stageId, int riderId, int checkpointIndex, LocalTime time)
+            throws IDNotRecognisedException, DuplicatedResultException, InvalidCheckpointsException,
+            InvalidStageStateException {
+        int raceId = lockStage(stageId, WRITE);
+        try {
+            return portal.registerRiderPassingInStage(stageId, riderId, checkpointIndex, time);
+        } finally {
+            unlockRace(raceId, WRITE);
+        }
+    }
+
+    public int[] getRidersCrossingOrderInSegment(int segmentId) throws IDNotRecognisedException {
+        int raceId = lockSegment(segmentId, QUERY);
+        try {
+            return portal.getRidersCrossingOrderInSegment(segmentId);
+        } finally {
+            unlockRace(raceId, QUERY);
+        }
+    }
+
+    public int[] getLiveRidersInStage(int stageId) throws IDNotRecognisedException {
+        int raceId = lockStage(stageId, QUERY);
+        try {
+            return portal.getLiveRidersInStage(stageId);
+        } finally {
+            unlockRace(raceId, QUERY);
+        }
+    }
+
+    public int[] getLiveRidersPointsInStage(int stageId) throws IDNotRecognisedException {
+        int raceId = lockStage(stageId, QUERY);
+        try {
+            return portal.getLiveRidersPointsInStage(stageId);
+        } finally {
+            unlockRace(raceId, QUERY);
+        }
+    }
+
+    public int[] getLiveRidersMountainPointsInStage(int stageId) throws IDNotRecognisedException {
+        int raceId = lockStage(stageId, QUERY);
+        try {
+            return portal.getLiveRidersMountainPointsInStage(stageId);
+        } finally {
+            unlockRace(raceId, QUERY);
+        }
+    }
+
+    @Override
+    public LocalTime[] getRiderResultsInStage(int stageId, int riderId) throws IDNotRecognisedException {
+        StageVersion stage = getStageVersion(stageId);
+        if (stage != null && portal.doesRiderIdExist(riderId)) {
+            long[] times = stage.getRiderResults(riderId);
+            LocalTime[] results = new LocalTime[times.length];
+            for (int i = 0; i < times.length; i++) {
+                results[i] = LocalTime.ofNanoOfDay(times[i]);
+            }
+            return results;
+        }
+        int raceId = lockStage(stageId, QUERY);
+        try {
+            return portal.getRiderResultsInStage(stageId, riderId);
+        } finally {
+            unlockRace(raceId, QUERY);
+        }
+    }
+
+    public long[] getRiderResultNanosInStage(int stageId, int riderId) throws IDNotRecognisedException {
+        StageVersion stage = getStageVersion(stageId);
+        if (stage != null && portal.doesRiderIdExist(riderId)) {
+            return stage.getRiderResults(riderId);
+        }
+        int raceId = lockStage(stageId, QUERY);
+        try {
+            return portal.getRiderResultNanosInStage(stageId, riderId);
+        } finally {
+            unlockRace(raceId, QUERY);
+        }
+    }
+
+    @Override
+    public LocalTime getRiderAdjustedElapsedTimeInStage(int stageId, int riderId) throws IDNotRecognisedException {
+        StageVersion stage = getStageVersion(stageId);
+        if (stage != null && portal.doesRiderIdExist(riderId)) {
+            return stage.getRiderAdjustedElapsedTime(riderId);
+        }
+        int raceId = lockStage(stageId, QUERY);
+        try {
+            return portal.getRiderAdjustedElapsedTimeInStage(stageId, riderId);
+        } finally {
+            unlockRace(raceId, QUERY);
+        }
+    }
+
+    @Override
+    public void deleteRiderResultsInStage(int stageId, int riderId) throws IDNotRecognisedException {
+        int raceId = lockStage(stageId, WRITE);
+        try {
+            portal.deleteRiderResultsInStage(stageId, riderId);
+        } finally {
+            unlockRace(raceId, WRITE);
+        }
+    }
+
+    @Override
+    public int[] getRidersRankInStage(int stageId) throws IDNotRecognisedException {
+        StageVersion stage = getStageVersion(stageId);
+        if (stage != null) {
+            return stage.getRidersRank();
+        }
+        int raceId = lockStage(stageId, QUERY);
+        try {
+            return portal.getRidersRankInStage(stageId);
+        } finally {
+            unlockRace(raceId, QUERY);
+        }
+    }
+
+    @Override
+    public LocalTime[] getRankedAdjustedElapsedTimesInStage(int stageId) throws IDNotRecognisedException {
+        StageVersion stage = getStageVersion(stageId);
+        if (stage != null) {
+            return stage.getRankedAdjustedElapsedTimes();
+        }
+        int raceId = lockStage(stageId, QUERY);
+        try {
+            return portal.getRankedAdjustedElapsedTimesInStage(stageId);
+        } finally {
+            unlockRace(raceId, QUERY);
+        }
+    }
+
+    public long[] getRankedAdjustedElapsedNanosInStage(int stageId) throws IDNotRecognisedException {
+        StageVersion stage = getStageVersion(stageId);
+        if (stage != null) {
+            return stage.getAdjustedTimes();
+        }
+        int raceId = lockStage(stageId, QUERY);
+        try {
+            return portal.getRankedAdjustedElapsedNanosInStage(stageId);
+        } finally {
+            unlockRace(raceId, QUERY);
+        }
+    }
+
+    @Override
+    public int[] getRidersPointsInStage(int stageId) throws IDNotRecognisedException {
+        StageVersion stage = getStageVersion(stageId);
+        if (stage != null) {
+            return stage.getRidersPoints();
+        }
+        int raceId = lockStage(stageId, QUERY);
+        try {
+            return portal.getRidersPointsInStage(stageId);
+        } finally {
+            unlockRace(raceId, QUERY);
+        }
+    }
+
+    @Override
+    public int[] getRidersMountainPointsInStage(int stageId) throws IDNotRecognisedException {
+        StageVersion stage = getStageVersion(stageId);
+        if (stage != null) {
+            return stage.getRidersMountainPoints();
+        }
+        int raceId = lockStage(stageId, QUERY);
+        try {
+            return portal.getRidersMountainPointsInStage(stageId);
+        } finally {
+            unlockRace(raceId, QUERY);
+        }
+    }
+
+    @Override
+    public LocalTime[] getGeneralClassificationTimesInRace(int raceId) throws IDNotRecognisedException {
+        RaceVersion race = getLatestVersion(raceId);
+        if (race != null) {
+            return race.getGeneralClassificationTimesInRace();
+        }
+        lockRace(raceId, QUERY);
+        try {
+            return portal.getGeneralClassificationTimesInRace(raceId);
+        } finally {
+            unlockRace(raceId, QUERY);
+        }
+    }
+
+    public long[] getGeneralClassificationNanosInRace(int raceId) throws IDNotRecognisedException {
+        RaceVersion race = getLatestVersion(raceId);
+        if (race != null) {
+            return race.getGeneralClassificationNanosInRace();
+        }
+        lockRace(raceId, QUERY);
+        try {
+            return portal.getGeneralClassificationNanosInRace(raceId);
+        } finally {
+            unlockRace(raceId, QUERY);
+        }
+    }
+
+    @Override
+    public int[] getRidersPointsInRace(int raceId) throws IDNotRecognisedException {
+        RaceVersion race = getLatestVersion(raceId);
+        if (race != null) {
+            return race.getRidersPointsInRace();
+        }
+        lockRace(raceId, QUERY);
+        try {
+            return portal.getRidersPointsInRace(raceId);
+        } finally {
+            unlockRace(raceId, QUERY);
+        }
+    }
+
+    @Override
+    public int[] getRidersMountainPointsInRace(int raceId) throws IDNotRecognisedException {
+        RaceVersion race = getLatestVersion(raceId);
+        if (race != null) {
+            return race.getRidersMountainPointsInRace();
+        }
+        lockRace(raceId, QUERY);
+        try {
+            return portal.getRidersMountainPointsInRace(raceId);
+        } finally {
+            unlockRace(raceId, QUERY);
+        }
+    }
+
+    @Override
+    public int[] getRidersGeneralClassificationRank(int raceId) throws IDNotRecognisedException {
+        RaceVersion race = getLatestVersion(raceId);
+        if (race != null) {
+            return race.getRidersGeneralClassificationRank();
+        }
+        lockRace(raceId, QUERY);
+        try {
+            return portal.getRidersGeneralClassificationRank(raceId);
+        } finally {
+            unlockRace(raceId, QUERY);
+        }
+    }
+
+    @Override
+    public int[] getRidersPointClassificationRank(int raceId) throws IDNotRecognisedException {
+        RaceVersion race = getLatestVersion(raceId);
+        if (race != null) {
+            return race.getRidersPointClassificationRank();
+        }
+        lockRace(raceId, QUERY);
+        try {
+            return portal.getRidersPointClassificationRank(raceId);
+        } finally {
+            unlockRace(raceId, QUERY);
+        }
+    }
+
+    @Override
+    public int[] getRidersMountainPointClassificationRank(int raceId) throws IDNotRecognisedException {
+        RaceVersion race = getLatestVersion(raceId);
+        if (race != null) {
+            return race.getRidersMountainPointClassificationRank();
+        }
+        lockRace(raceId, QUERY);
+        try {
+            return portal.getRidersMountainPointClassificationRank(raceId);
+        } finally {
+            unlockRace(raceId, QUERY);
+        }
+    }
+
+    @Override
+    public void eraseCyclingPortal() {
+        portalLock.writeLock().lock();
+        try {
+            portal.eraseCyclingPortal();
+        } finally {
+            publishAll();
+            portalLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void saveCyclingPortal(String filename) throws IOException {
+        portalLock.writeLock().lock();
+        try {
+            portal.saveCyclingPortal(filename);
+        } finally {
+            portalLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void loadCyclingPortal(String filename) throws IOException, ClassNotFoundException {
+        portalLock.writeLock().lock();
+        try {
+            portal.loadCyclingPortal(filename);
+        } finally {
+            publishAll();
+            portalLock.writeLock().unlock();
+        }
+    }
+
+    public SaveStatistics saveCyclingPortalToDirectory(String directory) throws IOException {
+        portalLock.writeLock().lock();
+        try {
+            return portal.saveCyclingPortalToDirectory(directory);
+        } finally {
+            portalLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * saves the portal to a directory in the background, the portal is
+     * only held while the changed races are encoded
+     *
+     * @param directory the location of the directory
+     * @return a future completed once the files are written
+     * @throws IOException if the portal cannot be encoded
+     * @see CyclingPortal#saveCyclingPortalToDirectoryAsync(String)
+     */
+    public CompletableFuture<SaveStatistics> saveCyclingPortalToDirectoryAsync(String directory) throws IOException {
+        portalLock.writeLock().lock();
+        try {
+            return portal.saveCyclingPortalToDirectoryAsync(directory);
+        } finally {
+            portalLock.writeLock().unlock();
+        }
+    }
+
+    public void loadCyclingPortalFromDirectory(String directory) throws IOException {
+        portalLock.writeLock().lock();
+        try {
+            portal.loadCyclingPortalFromDirectory(directory);
+        } finally {
+            publishAll();
+            portalLock.writeLock().unlock();
+        }
+    }
+
+    public void openJournal(String filename, JournalSyncPolicy policy) throws IOException {
+        portalLock.writeLock().lock();
+        try {
+            portal.openJournal(filename, policy);
+        } finally {
+            publishAll();
+            portalLock.writeLock().unlock();
+        }
+    }
+
+    public void checkpointJournal(String filename) throws IOException {
+        portalLock.writeLock().lock();
+        try {
+            portal.checkpointJournal(filename);
+        } finally {
+            portalLock.writeLock().unlock();
+        }
+    }
+
+    public void closeJournal() throws IOException {
+        portalLock.writeLock().lock();
+        try {
+            portal.closeJournal();
+        } finally {
+            portalLock.writeLock().unlock();
+        }
+    }
+
+    public void setResultStorage(ResultStorage resultStorage) {
+        portalLock.writeLock().lock();
+        try {
+            portal.setResultStorage(resultStorage);
+        } finally {
+            portalLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * holds the portal for reading and the lock of a race. Races are only
+     * created and removed while the whole portal is held, so a race which is
+     * not found is not created while the lock is held and the portal reports
+     * the Id as not recognised.
+     *
+     * @param raceId the Id of the race
+     * @param mode   READ, WRITE or QUERY
+     */
+    private void lockRace(int raceId, int mode) {
+        portalLock.readLock().lock();
+        int stripe = Math.floorMod(raceId, STRIPES);
+        if (mode == WRITE) {
+            raceLocks[stripe].writeLock().lock();
+        } else {
+            raceLocks[stripe].readLock().lock();
+            if (mode == QUERY) {
+                queryLocks[stripe].lock();
+            }
+        }
+    }
+
+    /**
+     * holds the portal for reading and the lock of the race a stage belongs
+     * to. Stages are created while only their race is held, so a stage
+     * which is not found is reported here rather than by the portal.
+     *
+     * @param stageId the Id of the stage
+     * @param mode    READ, WRITE or QUERY
+     * @return the Id of the race, passed to unlockRace
+     * @throws IDNotRecognisedException if the stage is not found
+     */
+    private int lockStage(int stageId, int mode) throws IDNotRecognisedException {
+        portalLock.readLock().lock();
+        int raceId = portal.getStageRaceId(stageId);
+        if (raceId == 0) {
+            portalLock.readLock().unlock();
+            throw new IDNotRecognisedException("Stage ID does not match to any stage in the system.");
+        }
+        lockRace(raceId, mode);
+        // the race lock holds the portal for reading again
+        portalLock.readLock().unlock();
+        return raceId;
+    }
+
+    private int lockSegment(int segmentId, int mode) throws IDNotRecognisedException {
+        portalLock.readLock().lock();
+        int raceId = portal.getSegmentRaceId(segmentId);
+        if (raceId == 0) {
+            portalLock.readLock().unlock();
+            throw new IDNotRecognisedException("Segment ID was not found in the system.");
+        }
+        lockRace(raceId, mode);
+        portalLock.readLock().unlock();
+        return raceId;
+    }
+
+    /**
+     * lets go of the lock of a race and of the portal. A writer publishes
+     * a new version of the race first, unless another writer is waiting for
+     * the lock, in which case the last writer of the run publishes the
+     * versions of every race changed while the lock was held. A run which
+     * goes on for too many changes or too long is published part way.
+     *
+     * @param raceId the Id of the race
+     * @param mode   READ, WRITE or QUERY
+     */
+    private void unlockRace(int raceId, int mode) {
+        RaceLock lock = raceLocks[Math.floorMod(raceId, STRIPES)];
+        if (mode == WRITE) {
+            try {
+                if (lock.changedRaces.isEmpty()) {
+                    lock.deferredSince = System.nanoTime();
+                }
+                lock.changedRaces.add(raceId);
+                lock.deferredChanges++;
+                if (!lock.hasQueuedWriters() || lock.deferredChanges >= MAX_DEFERRED_CHANGES
+                        || System.nanoTime() - lock.deferredSince >= MAX_DEFERRED_NANOS) {
+                    for (Integer changedRaceId : lock.changedRaces) {
+                        publish(changedRaceId);
+                    }
+                    lock.changedRaces.clear();
+                    lock.deferredChanges = 0;
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        } else {
+            if (mode == QUERY) {
+                queryLocks[Math.floorMod(raceId, STRIPES)].unlock();
+            }
+            lock.readLock().unlock();
+        }
+        portalLock.readLock().unlock();
+    }
+
+    /**
+     * publishes a new version of a race if its results have changed since
+     * the last version, the caller holds the race or the whole portal
+     *
+     * @param raceId the Id of the race
+     */
+    private void publish(int raceId) {
+        // a number left unused when nothing has changed is skipped, numbers only go up
+        RaceVersion latest = portal.newRaceVersion(raceId, versionCounter.incrementAndGet());
+        if (latest == null) {
+            return;
+        }
+        AtomicReference<RaceVersion> reference = versions.get(raceId);
+        if (reference == null) {
+            versions.put(raceId, new AtomicReference<RaceVersion>(latest));
+        } else if (!latest.hasSameStages(reference.get())) {
+            reference.set(latest);
+        }
+    }
+
+    /**
+     * publishes every race which has changed and forgets the races which
+     * have been removed, used after a change reaching across every race
+     * while the whole portal is held
+     */
+    private void publishAll() {
+        int[] raceIds = portal.getRaceIds();
+        HashSet<Integer> current = new HashSet<Integer>();
+        for (int i = 0; i < raceIds.length; i++) {
+            current.add(raceIds[i]);
+            publish(raceIds[i]);
+        }
+        versions.keySet().retainAll(current);
+    }
+
+    /**
+     * gets the latest published version of a race, without taking any lock
+     *
+     * @param raceId the Id of the race
+     * @return the version, null if the race has not been published, in
+     *         which case the caller asks the race itself so an Id which is
+     *         not found is reported as it would be by the portal
+     */
+    private RaceVersion getLatestVersion(int raceId) {
+        AtomicReference<RaceVersion> reference = versions.get(raceId);
+        if (reference == null) {
+            return null;
+        }
+        return reference.get();
+    }
+
+    /**
+     * gets the latest published version of the stage's race and the stage
+     * in it, without taking any lock
+     *
+     * @param stageId the Id of the stage
+     * @return the stage, null if it is not in the latest version, such as
+     *         a stage which is not found or was added by a run of writers
+     *         which has not been published yet
+     */
+    private StageVersion getStageVersion(int stageId) {
+        RaceVersion race = getLatestVersion(portal.getStageRaceId(stageId));
+        if (race == null) {
+            return null;
+        }
+        return race.getStage(stageId);
+    }
+
+    /**
+     * RaceLock - the lock of the races in one stripe, along with the
+     * races changed by writers which have not yet been published
+     */
+    private static class RaceLock extends ReentrantReadWriteLock {
+        private static final long serialVersionUID = 1L;
+        // only read and written while the write lock is held
+        private final HashSet<Integer> changedRaces = new HashSet<Integer>();
+        private int deferredChanges;
+        private long deferredSince;
+
+        private boolean hasQueuedWriters() {
+            return !getQueuedWriterThreads().isEmpty();
+        }
+    }
+}
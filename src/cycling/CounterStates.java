@@ -1,75 +1,250 @@
 package cycling;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * CounterStates - A class used to generate the IDs of races, stages, segments,
  * teams and riders.
+ * <p>
+ * Each counter is atomic, so Ids are handed out without locking and two
+ * threads never get the same Id. Blocks of Ids can be leased in one step by
+ * importers, the counters then mark the highest Id leased and are saved as
+ * they are. The leased Ids not yet used are kept as well, so an Id is only
+ * used once even if the object given it is removed.
  */
 public class CounterStates implements Serializable {
+    // kept as it was before the second constructor was added, so older saves still load
+    private static final long serialVersionUID = 927151197255694835L;
 
-    private int raceCounter;
-    private int teamCounter;
-    private int riderCounter;
-    private int segmentCounter;
-    private int stageCounter;
+    // the counters are saved as ints, see writeObject
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("raceCounter", int.class),
+            new ObjectStreamField("teamCounter", int.class),
+            new ObjectStreamField("riderCounter", int.class),
+            new ObjectStreamField("segmentCounter", int.class),
+            new ObjectStreamField("stageCounter", int.class) };
+
+    private AtomicInteger raceCounter;
+    private AtomicInteger teamCounter;
+    private AtomicInteger riderCounter;
+    private AtomicInteger segmentCounter;
+    private AtomicInteger stageCounter;
+    // not serialized, saves made with Java serialization were made before Ids were leased
+    private LeasedIds leasedTeamIds = new LeasedIds();
+    private LeasedIds leasedRiderIds = new LeasedIds();
+    private LeasedIds leasedSegmentIds = new LeasedIds();
 
     public CounterStates() {
-        raceCounter = 1;
-        teamCounter = 1;
-        riderCounter = 1;
-        segmentCounter = 1;
-        stageCounter = 1;
+        this(1, 1, 1, 1, 1);
     }
 
-    public int getRaceCounter() {
-        return raceCounter;
+    /**
+     * Constructor for the Objects of CounterStates class which
+     * carries on from counters that were saved
+     * 
+     * @param raceCounter    the next race Id
+     * @param teamCounter    the next team Id
+     * @param riderCounter   the next rider Id
+     * @param segmentCounter the next segment Id
+     * @param stageCounter   the next stage Id
+     */
+    public CounterStates(int raceCounter, int teamCounter, int riderCounter, int segmentCounter, int stageCounter) {
+        this.raceCounter = new AtomicInteger(raceCounter);
+        this.teamCounter = new AtomicInteger(teamCounter);
+        this.riderCounter = new AtomicInteger(riderCounter);
+        this.segmentCounter = new AtomicInteger(segmentCounter);
+        this.stageCounter = new AtomicInteger(stageCounter);
     }
 
-    public void incrementRaceCounter() {
-        raceCounter = raceCounter + 1;
+    public int getRaceCounter() {
+        return raceCounter.get();
     }
 
     public int getTeamCounter() {
-        return teamCounter;
+        return teamCounter.get();
     }
 
-    public void incrementTeamCounter() {
-        teamCounter = teamCounter + 1;
+    public int getRiderCounter() {
+        return riderCounter.get();
     }
 
-    public int getRiderCounter() {
-        return riderCounter;
+    public int getSegmentCounter() {
+        return segmentCounter.get();
     }
 
-    public void incrementRiderCounter() {
-        riderCounter = riderCounter + 1;
+    public int getStageCounter() {
+        return stageCounter.get();
     }
 
-    public int getSegmentCounter() {
-        return segmentCounter;
+    /**
+     * hands out the next race Id, taking it and moving the counter on in one
+     * step so two threads creating races at once never get the same Id
+     * 
+     * @return the race Id
+     */
+    public int allocateRaceId() {
+        return raceCounter.getAndIncrement();
     }
 
-    public void incrementSegmentCounter() {
-        segmentCounter = segmentCounter + 1;
+    public int allocateTeamId() {
+        return teamCounter.getAndIncrement();
     }
 
-    public int getStageCounter() {
-        return stageCounter;
+    public int allocateRiderId() {
+        return riderCounter.getAndIncrement();
+    }
+
+    public int allocateSegmentId() {
+        return segmentCounter.getAndIncrement();
+    }
+
+    public int allocateStageId() {
+        return stageCounter.getAndIncrement();
+    }
+
+    /**
+     * leases a block of team Ids in one step, for an importer creating many
+     * teams at once. The counter is moved past the block, so the Ids are
+     * never handed out again, even after the counters are saved and loaded.
+     * 
+     * @param count the number of Ids
+     * @return the first Id of the block, the block runs up to but not
+     *         including the first Id plus the count
+     */
+    public int leaseTeamIds(int count) {
+        return lease(teamCounter, leasedTeamIds, count);
     }
 
-    public void incrementStageCounter() {
-        stageCounter = stageCounter + 1;
+    public int leaseRiderIds(int count) {
+        return lease(riderCounter, leasedRiderIds, count);
+    }
+
+    public int leaseSegmentIds(int count) {
+        return lease(segmentCounter, leasedSegmentIds, count);
+    }
+
+    /**
+     * takes a leased team Id which is about to be used
+     * 
+     * @param teamId the team Id
+     * @return true if the Id was leased and has not been used, false if not
+     */
+    public boolean useLeasedTeamId(int teamId) {
+        return leasedTeamIds.take(teamId);
+    }
+
+    public boolean useLeasedRiderId(int riderId) {
+        return leasedRiderIds.take(riderId);
+    }
+
+    public boolean useLeasedSegmentId(int segmentId) {
+        return leasedSegmentIds.take(segmentId);
+    }
+
+    /**
+     * checks if a team Id has been leased and not yet used, without
+     * taking it
+     * 
+     * @param teamId the team Id
+     * @return true if the Id was leased and has not been used, false if not
+     */
+    public boolean isLeasedTeamId(int teamId) {
+        return leasedTeamIds.contains(teamId);
+    }
+
+    public boolean isLeasedRiderId(int riderId) {
+        return leasedRiderIds.contains(riderId);
+    }
+
+    public boolean isLeasedSegmentId(int segmentId) {
+        return leasedSegmentIds.contains(segmentId);
+    }
+
+    /**
+     * writes the leased Ids not yet used to a snapshot,
+     * the counters themselves are written by the portal
+     * 
+     * @param out the snapshot being written
+     */
+    public void writeLeasedIds(SnapshotOutput out) {
+        leasedTeamIds.writeSnapshot(out);
+        leasedRiderIds.writeSnapshot(out);
+        leasedSegmentIds.writeSnapshot(out);
+    }
+
+    /**
+     * reads leased Ids written by {@link #writeLeasedIds(SnapshotOutput)}
+     * 
+     * @param in the snapshot being read
+     * @throws IOException if the snapshot is not valid
+     */
+    public void readLeasedIds(SnapshotInput in) throws IOException {
+        leasedTeamIds.readSnapshot(in);
+        leasedRiderIds.readSnapshot(in);
+        leasedSegmentIds.readSnapshot(in);
     }
 
     /**
      * resets all the Ids
      */
     public void resetAllCounts() {
-        raceCounter = 1;
-        teamCounter = 1;
-        riderCounter = 1;
-        segmentCounter = 1;
-        stageCounter = 1;
+        raceCounter.set(1);
+        teamCounter.set(1);
+        riderCounter.set(1);
+        segmentCounter.set(1);
+        stageCounter.set(1);
+        leasedTeamIds.clear();
+        leasedRiderIds.clear();
+        leasedSegmentIds.clear();
+    }
+
+    private static int lease(AtomicInteger counter, LeasedIds leasedIds, int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("At least one Id must be leased.");
+        }
+        while (true) {
+            int first = counter.get();
+            if (first > Integer.MAX_VALUE - count) {
+                throw new IllegalStateException("There are not enough Ids left to lease " + count + ".");
+            }
+            if (counter.compareAndSet(first, first + count)) {
+                leasedIds.add(first, count);
+                return first;
+            }
+        }
+    }
+
+    /**
+     * writes the counters as the int fields they were saved as before they
+     * became atomic, so saves are read by older and newer versions alike
+     * 
+     * @param out the stream
+     * @throws IOException if the counters cannot be written
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("raceCounter", raceCounter.get());
+        fields.put("teamCounter", teamCounter.get());
+        fields.put("riderCounter", riderCounter.get());
+        fields.put("segmentCounter", segmentCounter.get());
+        fields.put("stageCounter", stageCounter.get());
+        out.writeFields();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        raceCounter = new AtomicInteger(fields.get("raceCounter", 1));
+        teamCounter = new AtomicInteger(fields.get("teamCounter", 1));
+        riderCounter = new AtomicInteger(fields.get("riderCounter", 1));
+        segmentCounter = new AtomicInteger(fields.get("segmentCounter", 1));
+        stageCounter = new AtomicInteger(fields.get("stageCounter", 1));
+        leasedTeamIds = new LeasedIds();
+        leasedRiderIds = new LeasedIds();
+        leasedSegmentIds = new LeasedIds();
     }
 }
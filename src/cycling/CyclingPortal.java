@@ -1,13 +1,28 @@
 package cycling;
 
-import java.io.FileInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.time.LocalDateTime;
 import java.time.LocalTime;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Supplier;
 
 
 
@@ -17,14 +32,64 @@ import java.util.ArrayList;
  */
 @SuppressWarnings("unchecked")
 public class CyclingPortal implements CyclingPortalInterface {
+    private static final String MANIFEST_FILENAME = "manifest.bin";
+    private static final String TEAMS_FILENAME = "teams.bin";
+
     private ArrayList<Team> teamObjects;
     private ArrayList<Race> raceObjects;
     private CounterStates counterStates;
 
+    /*
+     * registries indexed by Id so that lookups do not have to
+     * walk every race and stage, kept in sync with the lists above
+     */
+    private Registry<Race> raceRegistry;
+    private Registry<Stage> stageRegistry;
+    // the typed state of each stage, see StageLifecycle
+    private Registry<StageLifecycle> stageLifecycleRegistry;
+    private Registry<Race> stageRaceRegistry;
+    private Registry<Stage> segmentStageRegistry;
+    private Registry<Team> teamRegistry;
+    private Registry<Team> riderTeamRegistry;
+    // the rider objects, which teams do not give out, kept for saving
+    private Registry<Rider> riderRegistry;
+    // the stages in which each rider has a result, indexed by rider Id
+    private Registry<ArrayList<Stage>> riderResultsRegistry;
+
+    // the journal changes are appended to, null unless one has been opened
+    private Journal journal;
+    // the sequence number of the last change held by the portal
+    private long journalSequence;
+    private boolean replayingJournal;
+
+    // the directory the portal was last saved to or loaded from in separate files
+    private Path savedDirectory;
+    // false once the teams and riders have been written to the saved directory
+    private boolean teamsChanged = true;
+    // writes the saves made with saveCyclingPortalToDirectoryAsync, started by the first one
+    private ExecutorService saveExecutor;
+    // set by the save thread when a save could not be written
+    private volatile boolean saveFailed;
+    // the last save made with saveCyclingPortalToDirectoryAsync
+    private CompletableFuture<SaveStatistics> lastSave;
+    // the races read from disk when first used, null unless loaded in archive mode
+    private RaceArchive raceArchive;
+    // where the result columns of every race are kept, the heap unless set
+    private ResultStorage resultStorage = ResultStorage.heap();
+
     public CyclingPortal() {
         teamObjects = new ArrayList<>();
         raceObjects = new ArrayList<>();
         counterStates = new CounterStates();
+        raceRegistry = new Registry<>();
+        stageRegistry = new Registry<>();
+        stageLifecycleRegistry = new Registry<>();
+        stageRaceRegistry = new Registry<>();
+        segmentStageRegistry = new Registry<>();
+        teamRegistry = new Registry<>();
+        riderTeamRegistry = new Registry<>();
+        riderRegistry = new Registry<>();
+        riderResultsRegistry = new Registry<>();
     }
 
     @Override
@@ -46,11 +111,11 @@ public class CyclingPortal implements CyclingPortalInterface {
             throw new InvalidNameException(
                     "Invalid name, must not be null, empty, not longer than 30 characters and not contain white spaces.");
         }
-        // creating a race, adding it to the platform and then incrementing the counter
-        int raceid = counterStates.getRaceCounter();
+        journal(Journal.CREATE_RACE, name, description);
+        // taking the next race Id and adding a race with it to the platform
+        int raceid = counterStates.allocateRaceId();
         Race race = new Race(raceid, name, description);
         registerRace(race);
-        counterStates.incrementRaceCounter();
         return race.getId();
     }
 
@@ -61,19 +126,13 @@ public class CyclingPortal implements CyclingPortalInterface {
          * a string with the race details
          */
         if (doesRaceIdExist(raceId)) {
-            int raceCount = raceObjects.size();
-            for (int i = 0; i < raceCount; i++) {
-                if (raceObjects.get(i).getId() == raceId) {
-                    Race selectedRace = raceObjects.get(i);
-                    String returnString = "Race ID: " + selectedRace.getId()
-                            + "\nRace Name: " + selectedRace.getName()
-                            + "\nRace Description: " + selectedRace.getDescription()
-                            + "\nNumber of Stages: " + selectedRace.getNumberOfStages()
-                            + "\nTotal Length: " + selectedRace.getTotalLength();
-                    return returnString;
-                }
-            }
-            return "";
+            Race selectedRace = raceRegistry.get(raceId);
+            String returnString = "Race ID: " + selectedRace.getId()
+                    + "\nRace Name: " + selectedRace.getName()
+                    + "\nRace Description: " + selectedRace.getDescription()
+                    + "\nNumber of Stages: " + selectedRace.getNumberOfStages()
+                    + "\nTotal Length: " + selectedRace.getTotalLength();
+            return returnString;
         } else {
             throw new IDNotRecognisedException("The ID does not match to any race in the system.");
         }
@@ -86,13 +145,10 @@ public class CyclingPortal implements CyclingPortalInterface {
          * race from the system
          */
         if (doesRaceIdExist(raceId)) {
-            int raceCount = raceObjects.size();
-            for (int i = 0; i < raceCount; i++) {
-                if (raceObjects.get(i).getId() == raceId) {
-                    raceObjects.remove(i);
-                    break;
-                }
-            }
+            // an archived race is read first, so its stages are there to be unregistered
+            Race race = loadRace(raceRegistry.get(raceId));
+            journal(Journal.REMOVE_RACE, raceId);
+            unregisterRace(race);
         } else {
             throw new IDNotRecognisedException("The ID does not match to any race in the system.");
         }
@@ -101,13 +157,7 @@ public class CyclingPortal implements CyclingPortalInterface {
     @Override
     public int getNumberOfStages(int raceId) throws IDNotRecognisedException {
         if (doesRaceIdExist(raceId)) {
-            int raceCount = raceObjects.size();
-            for (int i = 0; i < raceCount; i++) {
-                if (raceObjects.get(i).getId() == raceId) {
-                    return raceObjects.get(i).getNumberOfStages();
-                }
-            }
-            return 0;
+            return raceRegistry.get(raceId).getNumberOfStages();
         } else {
             throw new IDNotRecognisedException("The ID does not match to any race in the system.");
         }
@@ -127,10 +177,10 @@ public class CyclingPortal implements CyclingPortalInterface {
         } else if (length < 5) {
             throw new InvalidLengthException("Stage length can not be less than 5km.");
         }
-        int stageId = counterStates.getStageCounter();
+        journal(Journal.ADD_STAGE, raceId, stageName, description, length, startTime, type);
+        int stageId = counterStates.allocateStageId();
         Stage stage = new Stage(stageId, raceId, stageName, description, length, startTime, type);
         addStageToRaceObject(raceId, stage);
-        counterStates.incrementStageCounter();
         return stage.getId();
     }
 
@@ -153,18 +203,7 @@ public class CyclingPortal implements CyclingPortalInterface {
         if (!doesStageIdExist(stageId)) {
             throw new IDNotRecognisedException("Stage id does not match to any stage id in the system.");
         }
-        int[] raceIds = getRaceIds();
-        int raceCount = raceIds.length;
-        for (int i = 0; i < raceCount; i++) {
-            ArrayList<Stage> stageObjects = getStages(raceIds[i]);
-            int stageCount = stageObjects.size();
-            for (int j = 0; j < stageCount; j++) {
-                if (stageObjects.get(j).getId() == stageId) {
-                    return stageObjects.get(j).getLength();
-                }
-            }
-        }
-        return 1.0;
+        return stageRegistry.get(stageId).getLength();
     }
 
     @Override
@@ -172,81 +211,199 @@ public class CyclingPortal implements CyclingPortalInterface {
         if (!doesStageIdExist(stageId)) {
             throw new IDNotRecognisedException("Stage id does not match to any stage id in the system.");
         }
-        int[] raceIds = getRaceIds();
-        int raceCount = raceIds.length;
-        for (int i = 0; i < raceCount; i++) {
-            ArrayList<Stage> stageObjects = getStages(raceIds[i]);
-            int stageCount = stageObjects.size();
-            for (int j = 0; j < stageCount; j++) {
-                if (stageObjects.get(j).getId() == stageId) {
-                    int raceIndex = i;
-                    int stageIndex = j;
-                    removeStage(raceIndex, stageIndex);
-                    break;
-                }
-            }
-        }
+        journal(Journal.REMOVE_STAGE, stageId);
+        Race race = stageRaceRegistry.get(stageId);
+        Stage stage = stageRegistry.get(stageId);
+        unregisterStage(stage);
+        race.removeStage(race.getStages().indexOf(stage));
     }
 
     @Override
     public int addCategorizedClimbToStage(int stageId, Double location, SegmentType type, Double averageGradient,
             Double length) throws IDNotRecognisedException, InvalidLocationException, InvalidStageStateException,
             InvalidStageTypeException {
+        return addCategorizedClimb(stageId, location, type, averageGradient, length, 0);
+    }
+
+    /**
+     * adds a climb with an Id leased by {@link #leaseSegmentIds(int)}
+     * 
+     * @param stageId         the Id of the stage
+     * @param location        the location of the finish of the climb in the stage
+     * @param type            the category of the climb
+     * @param averageGradient the average gradient of the climb
+     * @param length          the length of the climb in kms
+     * @param segmentId       the leased Id
+     * @return the Id of the segment
+     * @throws IDNotRecognisedException   if the stage is not found
+     * @throws InvalidLocationException   if the location is out of bounds of
+     *                                    the stage length
+     * @throws InvalidStageStateException if the stage is waiting for results
+     * @throws InvalidStageTypeException  if the stage is a time trial
+     * @throws IllegalArgumentException   if the Id has not been leased or has
+     *                                    already been used, even by a segment
+     *                                    since removed
+     */
+    public int addCategorizedClimbToStage(int stageId, Double location, SegmentType type, Double averageGradient,
+            Double length, int segmentId) throws IDNotRecognisedException, InvalidLocationException,
+            InvalidStageStateException, InvalidStageTypeException {
+        return addCategorizedClimb(stageId, location, type, averageGradient, length, segmentId);
+    }
+
+    private int addCategorizedClimb(int stageId, Double location, SegmentType type, Double averageGradient,
+            Double length, int leasedId) throws IDNotRecognisedException, InvalidLocationException,
+            InvalidStageStateException, InvalidStageTypeException {
         if (!doesStageIdExist(stageId)) {
             throw new IDNotRecognisedException("Stage ID does not match to any stage ID in the system.");
-        } else if (location > getStageLength(stageId) || location < 0) {
+        }
+        StageLifecycle lifecycle = stageLifecycleRegistry.get(stageId);
+        if (location > lifecycle.getStage().getLength() || location < 0) {
             throw new InvalidLocationException("The segment location is out of bounds of the stage length.");
-        } else if (getStageStateByStageId(stageId).equals("waiting for results")) {
-            throw new InvalidStageStateException("The stage is currently `waiting for results`.");
-        } else if (getStageType(stageId).equals(StageType.TT)) {
-            throw new InvalidStageTypeException("Time trial stages cannot contain any segments.");
         }
-        int segmentId = counterStates.getSegmentCounter();
-        Segment segment = new Segment(segmentId, stageId, location, type, averageGradient, length);
-        addSegmentToStage(stageId, segment);
-        counterStates.incrementSegmentCounter();
-        return segment.getId();
+        lifecycle.beginSegmentChange();
+        try {
+            if (lifecycle.getStage().getType().equals(StageType.TT)) {
+                throw new InvalidStageTypeException("Time trial stages cannot contain any segments.");
+            }
+            checkLeasedSegmentId(leasedId);
+            if (leasedId == 0) {
+                journal(Journal.ADD_CLIMB, stageId, location, type, averageGradient, length);
+            } else {
+                journal(Journal.ADD_LEASED_CLIMB, stageId, location, type, averageGradient, length, leasedId);
+            }
+            int segmentId = takeSegmentId(leasedId);
+            Segment segment = new Segment(segmentId, stageId, location, type, averageGradient, length);
+            addSegmentToStage(stageId, segment);
+            return segment.getId();
+        } finally {
+            lifecycle.endSegmentChange();
+        }
     }
 
     @Override
     public int addIntermediateSprintToStage(int stageId, double location) throws IDNotRecognisedException,
             InvalidLocationException, InvalidStageStateException, InvalidStageTypeException {
+        return addIntermediateSprint(stageId, location, 0);
+    }
+
+    /**
+     * adds a sprint with an Id leased by {@link #leaseSegmentIds(int)}
+     * 
+     * @param stageId   the Id of the stage
+     * @param location  the location of the sprint in the stage
+     * @param segmentId the leased Id
+     * @return the Id of the segment
+     * @throws IDNotRecognisedException   if the stage is not found
+     * @throws InvalidLocationException   if the location is out of bounds of
+     *                                    the stage length
+     * @throws InvalidStageStateException if the stage is waiting for results
+     * @throws InvalidStageTypeException  if the stage is a time trial
+     * @throws IllegalArgumentException   if the Id has not been leased or has
+     *                                    already been used, even by a segment
+     *                                    since removed
+     */
+    public int addIntermediateSprintToStage(int stageId, double location, int segmentId)
+            throws IDNotRecognisedException, InvalidLocationException, InvalidStageStateException,
+            InvalidStageTypeException {
+        return addIntermediateSprint(stageId, location, segmentId);
+    }
+
+    private int addIntermediateSprint(int stageId, double location, int leasedId) throws IDNotRecognisedException,
+            InvalidLocationException, InvalidStageStateException, InvalidStageTypeException {
         if (!doesStageIdExist(stageId)) {
             throw new IDNotRecognisedException("Stage ID does not match to any stage ID in the system.");
-        } else if (location > getStageLength(stageId) || location < 0) {
+        }
+        StageLifecycle lifecycle = stageLifecycleRegistry.get(stageId);
+        if (location > lifecycle.getStage().getLength() || location < 0) {
             throw new InvalidLocationException("The segment location is out of bounds of the stage length.");
-        } else if (getStageStateByStageId(stageId).equals("waiting for results")) {
-            throw new InvalidStageStateException("The stage is currently `waiting for results`.");
-        } else if (getStageType(stageId).equals(StageType.TT)) {
-            throw new InvalidStageTypeException("Time trial stages cannot contain any segments.");
         }
-        int segmentId = counterStates.getSegmentCounter();
-        Segment segment = new Segment(segmentId, stageId, location);
-        addSegmentToStage(stageId, segment);
-        counterStates.incrementSegmentCounter();
-        return segment.getId();
+        lifecycle.beginSegmentChange();
+        try {
+            if (lifecycle.getStage().getType().equals(StageType.TT)) {
+                throw new InvalidStageTypeException("Time trial stages cannot contain any segments.");
+            }
+            checkLeasedSegmentId(leasedId);
+            if (leasedId == 0) {
+                journal(Journal.ADD_SPRINT, stageId, location);
+            } else {
+                journal(Journal.ADD_LEASED_SPRINT, stageId, location, leasedId);
+            }
+            int segmentId = takeSegmentId(leasedId);
+            Segment segment = new Segment(segmentId, stageId, location);
+            addSegmentToStage(stageId, segment);
+            return segment.getId();
+        } finally {
+            lifecycle.endSegmentChange();
+        }
+    }
+
+    /**
+     * leases a block of segment Ids for an importer, which then adds the
+     * segments with {@link #addCategorizedClimbToStage(int, Double,
+     * SegmentType, Double, Double, int)} and
+     * {@link #addIntermediateSprintToStage(int, double, int)} without going
+     * back to the counter for each one
+     * 
+     * @param count the number of Ids
+     * @return the first Id of the block
+     */
+    public int leaseSegmentIds(int count) {
+        checkLease(counterStates.getSegmentCounter(), count);
+        journal(Journal.LEASE_SEGMENT_IDS, count);
+        return counterStates.leaseSegmentIds(count);
+    }
+
+    /**
+     * checks the Id a new segment is given can be used, before the segment
+     * is journaled
+     * 
+     * @param leasedId the leased Id, 0 if the segment does not have one
+     * @throws IllegalArgumentException if the Id has not been leased or has
+     *                                  already been used
+     */
+    private void checkLeasedSegmentId(int leasedId) {
+        if (leasedId != 0 && !counterStates.isLeasedSegmentId(leasedId)) {
+            throw new IllegalArgumentException(
+                    "Segment ID " + leasedId + " has not been leased or has already been used.");
+        }
+    }
+
+    /**
+     * gets the Id of a new segment, the next one from the counter or a
+     * leased one checked by {@link #checkLeasedSegmentId(int)}
+     * 
+     * @param leasedId the leased Id, 0 if the segment does not have one
+     * @return the Id of the segment
+     */
+    private int takeSegmentId(int leasedId) {
+        if (leasedId == 0) {
+            return counterStates.allocateSegmentId();
+        }
+        counterStates.useLeasedSegmentId(leasedId);
+        return leasedId;
     }
 
     @Override
     public void removeSegment(int segmentId) throws IDNotRecognisedException, InvalidStageStateException {
         if (!doesSegmentIdExist(segmentId)) {
             throw new IDNotRecognisedException("Segment ID was not found in the system.");
-        } else if (getStageStateBySegmentId(segmentId).equals("waiting for results")) {
-            throw new InvalidStageStateException("The stage is currently `waiting for results`.");
         }
-        int[] raceIds = getRaceIds();
-        int raceCount = raceIds.length;
-        for (int i = 0; i < raceCount; i++) {
-            ArrayList<Stage> stageObjects = getStages(raceIds[i]);
-            int stageCount = stageObjects.size();
-            for (int j = 0; j < stageCount; j++) {
-                int[] segmentIds = stageObjects.get(j).getSegmentIds();
-                for (int k = 0; k < segmentIds.length; k++) {
-                    if (segmentIds[k] == segmentId) {
-                        stageObjects.get(j).removeSegment(k);
-                    }
+        Stage stage = segmentStageRegistry.get(segmentId);
+        StageLifecycle lifecycle = stageLifecycleRegistry.get(stage.getId());
+        lifecycle.beginSegmentChange();
+        try {
+            journal(Journal.REMOVE_SEGMENT, segmentId);
+            int[] segmentIds = stage.getSegmentIds();
+            for (int k = 0; k < segmentIds.length; k++) {
+                if (segmentIds[k] == segmentId) {
+                    stage.removeSegment(k);
+                    stageRaceRegistry.get(stage.getId()).segmentRemoved(stage, segmentId);
+                    break;
                 }
             }
+            segmentStageRegistry.remove(segmentId);
+        } finally {
+            lifecycle.endSegmentChange();
         }
     }
 
@@ -254,19 +411,16 @@ public class CyclingPortal implements CyclingPortalInterface {
     public void concludeStagePreparation(int stageId) throws IDNotRecognisedException, InvalidStageStateException {
         if (!doesStageIdExist(stageId)) {
             throw new IDNotRecognisedException("Stage ID was not found in the system.");
-        } else if (getStageStateByStageId(stageId).equals("waiting for results")) {
-            throw new InvalidStageStateException("The stage is currently `waiting for results`.");
         }
-        int[] raceIds = getRaceIds();
-        int raceCount = raceIds.length;
-        for (int i = 0; i < raceCount; i++) {
-            ArrayList<Stage> stageObjects = getStages(raceIds[i]);
-            int stageCount = stageObjects.size();
-            for (int j = 0; j < stageCount; j++) {
-                if (stageObjects.get(j).getId() == stageId) {
-                    stageObjects.get(j).conclude();
-                }
-            }
+        // throws if another thread concluded the stage first
+        StageLifecycle lifecycle = stageLifecycleRegistry.get(stageId);
+        lifecycle.beginSegmentChange();
+        try {
+            journal(Journal.CONCLUDE_STAGE, stageId);
+            lifecycle.conclude();
+            stageRaceRegistry.get(stageId).stageConcluded(stageRegistry.get(stageId));
+        } finally {
+            lifecycle.endSegmentChange();
         }
     }
 
@@ -275,18 +429,7 @@ public class CyclingPortal implements CyclingPortalInterface {
         if (!doesStageIdExist(stageId)) {
             throw new IDNotRecognisedException("Stage ID was not found in the system.");
         }
-        int[] raceIds = getRaceIds();
-        int raceCount = raceIds.length;
-        for (int i = 0; i < raceCount; i++) {
-            ArrayList<Stage> stageObjects = getStages(raceIds[i]);
-            int stageCount = stageObjects.size();
-            for (int j = 0; j < stageCount; j++) {
-                if (stageObjects.get(j).getId() == stageId) {
-                    return stageObjects.get(j).getSegmentIds();
-                }
-            }
-        }
-        return new int[] {};
+        return stageRegistry.get(stageId).getSegmentIds();
     }
 
     @Override
@@ -296,10 +439,57 @@ public class CyclingPortal implements CyclingPortalInterface {
         } else if (name == null || name == "" || name.length() > 30) {
             throw new InvalidNameException("Invalid name, must not be null, empty and not longer than 30 characters.");
         } else {
-            int teamId = counterStates.getTeamCounter();
+            // journaled before the team can be seen, so nothing done to it reaches the journal first
+            journal(Journal.CREATE_TEAM, name, description);
+            int teamId = counterStates.allocateTeamId();
+            Team team = new Team(teamId, name, description);
+            registerTeam(team);
+            teamsChanged = true;
+            return team.getId();
+        }
+    }
+
+    /**
+     * leases a block of team Ids for an importer, which then creates the
+     * teams with {@link #createTeam(String, String, int)} without going
+     * back to the counter for each one
+     * 
+     * @param count the number of Ids
+     * @return the first Id of the block
+     */
+    public int leaseTeamIds(int count) {
+        checkLease(counterStates.getTeamCounter(), count);
+        journal(Journal.LEASE_TEAM_IDS, count);
+        return counterStates.leaseTeamIds(count);
+    }
+
+    /**
+     * creates a team with an Id leased by {@link #leaseTeamIds(int)}
+     * 
+     * @param name        the name of the team
+     * @param description the description of the team
+     * @param teamId      the leased Id
+     * @return the Id of the team
+     * @throws IllegalNameException     if the name is already in use
+     * @throws InvalidNameException     if the name is invalid
+     * @throws IllegalArgumentException if the Id has not been leased or has
+     *                                  already been used, even by a team
+     *                                  since removed
+     */
+    public int createTeam(String name, String description, int teamId)
+            throws IllegalNameException, InvalidNameException {
+        if (doesTeamNameExist(name)) {
+            throw new IllegalNameException("Team name already exists.");
+        } else if (name == null || name == "" || name.length() > 30) {
+            throw new InvalidNameException("Invalid name, must not be null, empty and not longer than 30 characters.");
+        } else if (!counterStates.isLeasedTeamId(teamId)) {
+            throw new IllegalArgumentException("Team ID " + teamId + " has not been leased or has already been used.");
+        } else {
+            journal(Journal.CREATE_LEASED_TEAM, name, description, teamId);
+            counterStates.useLeasedTeamId(teamId);
             Team team = new Team(teamId, name, description);
             registerTeam(team);
-            counterStates.incrementTeamCounter();
+            teamsChanged = true;
             return team.getId();
         }
     }
@@ -307,7 +497,9 @@ public class CyclingPortal implements CyclingPortalInterface {
     @Override
     public void removeTeam(int teamId) throws IDNotRecognisedException {
         if (doesTeamIdExist(teamId)) {
+            journal(Journal.REMOVE_TEAM, teamId);
             removeTeamById(teamId);
+            teamsChanged = true;
         } else {
             throw new IDNotRecognisedException("The ID does not match to any team in the system.");
         }
@@ -328,20 +520,13 @@ public class CyclingPortal implements CyclingPortalInterface {
         if (!doesTeamIdExist(teamId)) {
             throw new IDNotRecognisedException("Team could not be found.");
         }
-        int teamCount = teamObjects.size();
-        for (int i = 0; i < teamCount; i++) {
-            if (teamObjects.get(i).getId() == teamId) {
-                Team foundTeam = teamObjects.get(i);
-
-                int riderCount = foundTeam.getRiderCount();
-                int[] idArray = new int[riderCount];
-                for (int j = 0; j < riderCount; j++) {
-                    idArray[j] = foundTeam.getRiderIdAtIndex(j);
-                }
-                return idArray;
-            }
+        Team foundTeam = teamRegistry.get(teamId);
+        int riderCount = foundTeam.getRiderCount();
+        int[] idArray = new int[riderCount];
+        for (int j = 0; j < riderCount; j++) {
+            idArray[j] = foundTeam.getRiderIdAtIndex(j);
         }
-        return new int[] {};
+        return idArray;
     }
 
     @Override
@@ -353,10 +538,76 @@ public class CyclingPortal implements CyclingPortalInterface {
             throw new IllegalArgumentException(
                     "Invalid name must not be null nor empty. Or invalid year of birth, must be greater than or equal to 1900.");
         } else {
-            int riderId = counterStates.getRiderCounter();
+            // journaled before the rider can be seen, so none of the rider's results reach the journal first
+            journal(Journal.CREATE_RIDER, teamID, name, yearOfBirth);
+            int riderId = counterStates.allocateRiderId();
+            Rider rider = new Rider(riderId, teamID, name, yearOfBirth);
+            addRiderToTeam(teamID, rider);
+            teamsChanged = true;
+            return rider.getId();
+        }
+    }
+
+    /**
+     * leases a block of rider Ids for an importer, which then creates the
+     * riders with {@link #createRider(int, String, int, int)} without going
+     * back to the counter for each one
+     * 
+     * @param count the number of Ids
+     * @return the first Id of the block
+     */
+    public int leaseRiderIds(int count) {
+        checkLease(counterStates.getRiderCounter(), count);
+        journal(Journal.LEASE_RIDER_IDS, count);
+        return counterStates.leaseRiderIds(count);
+    }
+
+    /**
+     * checks a block of Ids can be leased, before the lease is journaled
+     * 
+     * @param counter the next Id of the counter the block is leased from
+     * @param count   the number of Ids
+     * @throws IllegalArgumentException if the count is not positive
+     * @throws IllegalStateException    if there are not enough Ids left
+     */
+    private static void checkLease(int counter, int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("At least one Id must be leased.");
+        } else if (counter > Integer.MAX_VALUE - count) {
+            throw new IllegalStateException("There are not enough Ids left to lease " + count + ".");
+        }
+    }
+
+    /**
+     * creates a rider with an Id leased by {@link #leaseRiderIds(int)}
+     * 
+     * @param teamID      the Id of the rider's team
+     * @param name        the name of the rider
+     * @param yearOfBirth the year the rider was born
+     * @param riderId     the leased Id
+     * @return the Id of the rider
+     * @throws IDNotRecognisedException if the team is not found
+     * @throws IllegalArgumentException if the name or year of birth is
+     *                                  invalid, or the Id has not been leased
+     *                                  or has already been used, even by a
+     *                                  rider since removed
+     */
+    public int createRider(int teamID, String name, int yearOfBirth, int riderId)
+            throws IDNotRecognisedException, IllegalArgumentException {
+        if (!doesTeamIdExist(teamID)) {
+            throw new IDNotRecognisedException("Team could not be found.");
+        } else if (name == null || name == "" || yearOfBirth < 1900) {
+            throw new IllegalArgumentException(
+                    "Invalid name must not be null nor empty. Or invalid year of birth, must be greater than or equal to 1900.");
+        } else if (!counterStates.isLeasedRiderId(riderId)) {
+            throw new IllegalArgumentException(
+                    "Rider ID " + riderId + " has not been leased or has already been used.");
+        } else {
+            journal(Journal.CREATE_LEASED_RIDER, teamID, name, yearOfBirth, riderId);
+            counterStates.useLeasedRiderId(riderId);
             Rider rider = new Rider(riderId, teamID, name, yearOfBirth);
             addRiderToTeam(teamID, rider);
-            counterStates.incrementRiderCounter();
+            teamsChanged = true;
             return rider.getId();
         }
     }
@@ -366,14 +617,12 @@ public class CyclingPortal implements CyclingPortalInterface {
         if (!doesRiderIdExist(riderId)) {
             throw new IDNotRecognisedException("Rider ID does not match to any rider in the system.");
         }
+        journal(Journal.REMOVE_RIDER, riderId);
         removeAllResultsForRider(riderId);
-        ArrayList<Team> teamObjects = getTeamObjects();
-        int teamCount = teamObjects.size();
-        for (int i = 0; i < teamCount; i++) {
-            if (teamObjects.get(i).doesRiderExist(riderId)) {
-                teamObjects.get(i).removeRider(riderId);
-            }
-        }
+        riderTeamRegistry.get(riderId).removeRider(riderId);
+        riderTeamRegistry.remove(riderId);
+        riderRegistry.remove(riderId);
+        teamsChanged = true;
     }
 
     @Override
@@ -386,17 +635,280 @@ public class CyclingPortal implements CyclingPortalInterface {
             throw new IDNotRecognisedException("Stage ID does not match to any stage in the system.");
         } else if (doesRiderHaveResult(stageId, riderId)) {
             throw new DuplicatedResultException("Rider already has a result in this stage.");
-        } else if (getSegmentsCount(stageId) + 2 != checkpoints.length) {
+        } else if (getStagePlan(stageId).getCheckpointCount() != checkpoints.length) {
             throw new InvalidCheckpointsException(
                     "The length of the checkpoints is invalid, must be equal to the number of segment + 2 (start and finish).");
-        } else if (getStageStateByStageId(stageId).equals("waiting for results")) {
+        } else if (stageLifecycleRegistry.get(stageId).isWaitingForResults()) {
             throw new InvalidStageStateException("The stage is currently `waiting for results`.");
         } else {
+            journal(Journal.REGISTER_RESULT, stageId, riderId, checkpoints);
             Result result = new Result(riderId, checkpoints);
             linkRiderResultsInStage(stageId, result);
         }
     }
 
+    /**
+     * records the times of many riders in a stage at once, such as a whole
+     * finish sheet. Either every result is added or, if any of them is
+     * invalid, none are.
+     * 
+     * @param stageId     the Id of the stage the results refer to
+     * @param riderIds    the Ids of the riders
+     * @param checkpoints the checkpoints of each rider, in the same order
+     *                    as the rider Ids
+     * @throws IDNotRecognisedException    if the stage or a rider Id is not found
+     * @throws DuplicatedResultException   if a rider already has a result in
+     *                                     the stage or appears more than once
+     * @throws InvalidCheckpointsException if a rider's checkpoints are not the
+     *                                     number of segments + 2
+     * @throws InvalidStageStateException  if the stage is waiting for results
+     */
+    public void registerRidersResultsInStage(int stageId, int[] riderIds, LocalTime[][] checkpoints)
+            throws IDNotRecognisedException, DuplicatedResultException, InvalidCheckpointsException,
+            InvalidStageStateException {
+        if (!doesStageIdExist(stageId)) {
+            throw new IDNotRecognisedException("Stage ID does not match to any stage in the system.");
+        } else if (riderIds.length != checkpoints.length) {
+            throw new InvalidCheckpointsException("There must be one set of checkpoints for each rider.");
+        }
+        int checkpointCount = getStagePlan(stageId).getCheckpointCount();
+        checkNewResults(stageId, riderIds, checkpoints, checkpointCount);
+
+        journal(Journal.REGISTER_RESULTS, stageId, riderIds, checkpoints);
+        long[] times = new long[riderIds.length * checkpointCount];
+        for (int i = 0; i < riderIds.length; i++) {
+            for (int k = 0; k < checkpointCount; k++) {
+                times[i * checkpointCount + k] = checkpoints[i][k].toNanoOfDay();
+            }
+        }
+        addRidersResults(stageId, riderIds, times);
+    }
+
+    /**
+     * records the times of many riders in a stage at once from primitive
+     * arrays, such as those parsed from a timing file. The times go
+     * straight into the stage's result columns without a LocalTime or a
+     * result object being made for each checkpoint. Either every result
+     * is added or, if any of them is invalid, none are.
+     * 
+     * @param stageId         the Id of the stage the results refer to
+     * @param riderIds        the Ids of the riders
+     * @param checkpointNanos the checkpoints of each rider one after another,
+     *                        in the same order as the rider Ids, as
+     *                        nanoseconds of the day
+     * @throws IDNotRecognisedException    if the stage or a rider Id is not found
+     * @throws DuplicatedResultException   if a rider already has a result in
+     *                                     the stage or appears more than once
+     * @throws InvalidCheckpointsException if there are not the number of
+     *                                     segments + 2 checkpoints for each
+     *                                     rider, or a time is not a time of day
+     * @throws InvalidStageStateException  if the stage is waiting for results
+     */
+    public void registerRidersResultsInStage(int stageId, int[] riderIds, long[] checkpointNanos)
+            throws IDNotRecognisedException, DuplicatedResultException, InvalidCheckpointsException,
+            InvalidStageStateException {
+        if (!doesStageIdExist(stageId)) {
+            throw new IDNotRecognisedException("Stage ID does not match to any stage in the system.");
+        }
+        int checkpointCount = getStagePlan(stageId).getCheckpointCount();
+        if ((long) riderIds.length * checkpointCount != checkpointNanos.length) {
+            throw new InvalidCheckpointsException(
+                    "The length of the checkpoints is invalid, must be equal to the number of riders times the number of segment + 2 (start and finish).");
+        }
+        for (int i = 0; i < checkpointNanos.length; i++) {
+            if (checkpointNanos[i] < 0 || checkpointNanos[i] >= Race.NANOS_PER_DAY) {
+                throw new InvalidCheckpointsException("The checkpoint " + checkpointNanos[i] + " is not a time of day.");
+            }
+        }
+        checkNewResults(stageId, riderIds, null, checkpointCount);
+
+        journal(Journal.REGISTER_RESULT_NANOS, stageId, riderIds, checkpointNanos);
+        addRidersResults(stageId, riderIds, checkpointNanos);
+    }
+
+    /**
+     * checks the results of many riders can be added to a stage
+     * 
+     * @param stageId         the Id of the stage
+     * @param riderIds        the Ids of the riders
+     * @param checkpoints     the checkpoints of each rider, null if their
+     *                        number has already been checked
+     * @param checkpointCount the number of checkpoints of the stage
+     */
+    private void checkNewResults(int stageId, int[] riderIds, LocalTime[][] checkpoints, int checkpointCount)
+            throws IDNotRecognisedException, DuplicatedResultException, InvalidCheckpointsException,
+            InvalidStageStateException {
+        /*
+         * rider Ids are handed out in order, so the riders who already have
+         * a result and the riders seen so far are marked in bitsets
+         */
+        StageResults results = stageRaceRegistry.get(stageId).getStageResults(stageRegistry.get(stageId));
+        BitSet haveResult = new BitSet();
+        for (int i = 0; i < results.size(); i++) {
+            haveResult.set(results.getRiderId(i));
+        }
+        for (int i = 0; i < riderIds.length; i++) {
+            if (!doesRiderIdExist(riderIds[i])) {
+                throw new IDNotRecognisedException("Rider ID " + riderIds[i] + " does not match to any rider in the system.");
+            } else if (haveResult.get(riderIds[i])) {
+                throw new DuplicatedResultException("Rider " + riderIds[i] + " already has a result in this stage.");
+            } else if (checkpoints != null && (checkpoints[i] == null || checkpoints[i].length != checkpointCount)) {
+                throw new InvalidCheckpointsException("The length of the checkpoints of rider " + riderIds[i]
+                        + " is invalid, must be equal to the number of segment + 2 (start and finish).");
+            }
+            haveResult.set(riderIds[i]);
+        }
+        if (stageLifecycleRegistry.get(stageId).isWaitingForResults()) {
+            throw new InvalidStageStateException("The stage is currently `waiting for results`.");
+        }
+    }
+
+    /**
+     * adds the results of many riders, already checked, to a stage
+     * 
+     * @param stageId  the Id of the stage
+     * @param riderIds the Ids of the riders
+     * @param times    the checkpoints of each rider one after another, as
+     *                 nanoseconds of the day
+     */
+    private void addRidersResults(int stageId, int[] riderIds, long[] times) {
+        Stage stage = stageRegistry.get(stageId);
+        stageRaceRegistry.get(stageId).addResults(stage, riderIds, times);
+        for (int i = 0; i < riderIds.length; i++) {
+            indexRiderResult(riderIds[i], stage);
+        }
+    }
+
+    /**
+     * records a rider passing one checkpoint of a stage while the stage is
+     * being ridden. Checkpoint 0 is the start, checkpoint k is the k-th
+     * segment of the stage and the last checkpoint is the finish. Once the
+     * rider has passed every checkpoint the rider's result is registered.
+     * Adding or removing a segment drops the passings not yet registered,
+     * as the checkpoints no longer line up with the segments.
+     * 
+     * @param stageId         the Id of the stage
+     * @param riderId         the Id of the rider
+     * @param checkpointIndex the index of the checkpoint passed
+     * @param time            the time the checkpoint was passed
+     * @return true if the rider's result was registered, false if
+     *         checkpoints are still to come
+     * @throws IDNotRecognisedException    if the rider or stage Id is not found
+     * @throws DuplicatedResultException   if the rider already has a result in
+     *                                     the stage or has already passed the
+     *                                     checkpoint
+     * @throws InvalidCheckpointsException if the index is not one of the
+     *                                     stage's checkpoints
+     * @throws InvalidStageStateException  if the stage is waiting for results
+     */
+    public boolean registerRiderPassingInStage(int stageId, int riderId, int checkpointIndex, LocalTime time)
+            throws IDNotRecognisedException, DuplicatedResultException, InvalidCheckpointsException,
+            InvalidStageStateException {
+        if (!doesRiderIdExist(riderId)) {
+            throw new IDNotRecognisedException("Rider ID does not match to any rider in the system.");
+        } else if (!doesStageIdExist(stageId)) {
+            throw new IDNotRecognisedException("Stage ID does not match to any stage in the system.");
+        } else if (doesRiderHaveResult(stageId, riderId)) {
+            throw new DuplicatedResultException("Rider already has a result in this stage.");
+        } else if (checkpointIndex < 0 || checkpointIndex >= getStagePlan(stageId).getCheckpointCount()) {
+            throw new InvalidCheckpointsException(
+                    "The checkpoint index is invalid, must be between 0 and the number of segments + 1 (the finish).");
+        } else if (stageLifecycleRegistry.get(stageId).isWaitingForResults()) {
+            throw new InvalidStageStateException("The stage is currently `waiting for results`.");
+        }
+        Stage stage = stageRegistry.get(stageId);
+        LiveStage liveStage = stageRaceRegistry.get(stageId).getLiveStage(stage);
+        if (liveStage.hasPassed(riderId, checkpointIndex)) {
+            throw new DuplicatedResultException("Rider has already passed this checkpoint.");
+        }
+        journal(Journal.REGISTER_PASSING, stageId, riderId, checkpointIndex, time);
+        LocalTime[] checkpoints = liveStage.recordPassing(riderId, checkpointIndex, time);
+        stageRaceRegistry.get(stageId).markChanged();
+        if (checkpoints == null) {
+            return false;
+        }
+        linkRiderResultsInStage(stageId, new Result(riderId, checkpoints));
+        return true;
+    }
+
+    /**
+     * gets the order the riders crossed a segment of a stage being ridden,
+     * riders are ordered by their time from their start to the checkpoint
+     * the segment's points are given from, the same order the stage's
+     * points use
+     * 
+     * @param segmentId the Id of the segment
+     * @return the rider Ids in the order they crossed the segment
+     * @throws IDNotRecognisedException if the segment Id is not found
+     */
+    public int[] getRidersCrossingOrderInSegment(int segmentId) throws IDNotRecognisedException {
+        if (!doesSegmentIdExist(segmentId)) {
+            throw new IDNotRecognisedException("Segment ID was not found in the system.");
+        }
+        Stage stage = segmentStageRegistry.get(segmentId);
+        int[] segmentIds = stage.getSegmentIds();
+        int k = 0;
+        while (segmentIds[k] != segmentId) {
+            k++;
+        }
+        Race race = stageRaceRegistry.get(stage.getId());
+        return race.getLiveStage(stage).getCrossingOrder(k, race.getStageResults(stage));
+    }
+
+    /**
+     * gets the riders who have crossed a segment of a stage being ridden
+     * 
+     * @param stageId the Id of the stage
+     * @return the rider Ids in ascending order
+     * @throws IDNotRecognisedException if the stage Id is not found
+     */
+    public int[] getLiveRidersInStage(int stageId) throws IDNotRecognisedException {
+        if (!doesStageIdExist(stageId)) {
+            throw new IDNotRecognisedException("Stage ID does not match to any stage in the system.");
+        }
+        Stage stage = stageRegistry.get(stageId);
+        Race race = stageRaceRegistry.get(stageId);
+        return race.getLiveStage(stage).getCrossedRiders(race.getStageResults(stage));
+    }
+
+    /**
+     * gets the sprint points won so far in a stage being ridden
+     * 
+     * @param stageId the Id of the stage
+     * @return the points in the same order as {@link #getLiveRidersInStage(int)}
+     * @throws IDNotRecognisedException if the stage Id is not found
+     */
+    public int[] getLiveRidersPointsInStage(int stageId) throws IDNotRecognisedException {
+        if (!doesStageIdExist(stageId)) {
+            throw new IDNotRecognisedException("Stage ID does not match to any stage in the system.");
+        }
+        Stage stage = stageRegistry.get(stageId);
+        Race race = stageRaceRegistry.get(stageId);
+        LiveStage liveStage = race.getLiveStage(stage);
+        StageResults results = race.getStageResults(stage);
+        return liveStage.getRidersPoints(liveStage.getCrossedRiders(results), false, results,
+                race.getStagePlan(stage));
+    }
+
+    /**
+     * gets the mountain points won so far in a stage being ridden
+     * 
+     * @param stageId the Id of the stage
+     * @return the points in the same order as {@link #getLiveRidersInStage(int)}
+     * @throws IDNotRecognisedException if the stage Id is not found
+     */
+    public int[] getLiveRidersMountainPointsInStage(int stageId) throws IDNotRecognisedException {
+        if (!doesStageIdExist(stageId)) {
+            throw new IDNotRecognisedException("Stage ID does not match to any stage in the system.");
+        }
+        Stage stage = stageRegistry.get(stageId);
+        Race race = stageRaceRegistry.get(stageId);
+        LiveStage liveStage = race.getLiveStage(stage);
+        StageResults results = race.getStageResults(stage);
+        return liveStage.getRidersPoints(liveStage.getCrossedRiders(results), true, results,
+                race.getStagePlan(stage));
+    }
+
     @Override
     public LocalTime[] getRiderResultsInStage(int stageId, int riderId) throws IDNotRecognisedException {
         if (!doesRiderIdExist(riderId)) {
@@ -404,18 +916,31 @@ public class CyclingPortal implements CyclingPortalInterface {
         } else if (!doesStageIdExist(stageId)) {
             throw new IDNotRecognisedException("Stage ID does not match to any stage in the system.");
         }
-        int[] raceIds = getRaceIds();
-        int raceCount = raceIds.length;
-        for (int i = 0; i < raceCount; i++) {
-            ArrayList<Stage> stageObjects = getStages(raceIds[i]);
-            int stageCount = stageObjects.size();
-            for (int j = 0; j < stageCount; j++) {
-                if (stageObjects.get(j).getId() == stageId) {
-                    return stageObjects.get(j).getRiderResultsInStage(riderId);
-                }
-            }
+        long[] times = getRiderResultNanosInStage(stageId, riderId);
+        LocalTime[] results = new LocalTime[times.length];
+        for (int i = 0; i < times.length; i++) {
+            results[i] = LocalTime.ofNanoOfDay(times[i]);
+        }
+        return results;
+    }
+
+    /**
+     * gets the times a rider reached each segment of a stage as nanoseconds
+     * of the day, followed by the rider's elapsed time in nanoseconds
+     * 
+     * @param stageId the Id of the stage
+     * @param riderId the Id of the rider
+     * @return the times, empty if the rider has no result in the stage
+     * @throws IDNotRecognisedException if the rider or stage Id is not found
+     */
+    public long[] getRiderResultNanosInStage(int stageId, int riderId) throws IDNotRecognisedException {
+        if (!doesRiderIdExist(riderId)) {
+            throw new IDNotRecognisedException("Rider ID does not match to any rider in the system.");
+        } else if (!doesStageIdExist(stageId)) {
+            throw new IDNotRecognisedException("Stage ID does not match to any stage in the system.");
         }
-        return new LocalTime[] {};
+        Stage stage = stageRegistry.get(stageId);
+        return stageRaceRegistry.get(stageId).getStageRanking(stage).getRiderResults(riderId);
     }
 
     @Override
@@ -425,18 +950,8 @@ public class CyclingPortal implements CyclingPortalInterface {
         } else if (!doesStageIdExist(stageId)) {
             throw new IDNotRecognisedException("Stage ID does not match to any stage in the system.");
         }
-        int[] raceIds = getRaceIds();
-        int raceCount = raceIds.length;
-        for (int i = 0; i < raceCount; i++) {
-            ArrayList<Stage> stageObjects = getStages(raceIds[i]);
-            int stageCount = stageObjects.size();
-            for (int j = 0; j < stageCount; j++) {
-                if (stageObjects.get(j).getId() == stageId) {
-                    return stageObjects.get(j).getRiderAdjustedElapsedTimeInStage(riderId);
-                }
-            }
-        }
-        return null;
+        Stage stage = stageRegistry.get(stageId);
+        return stageRaceRegistry.get(stageId).getStageRanking(stage).getRiderAdjustedElapsedTime(riderId);
     }
 
     @Override
@@ -446,17 +961,9 @@ public class CyclingPortal implements CyclingPortalInterface {
         } else if (!doesStageIdExist(stageId)) {
             throw new IDNotRecognisedException("Stage ID does not match to any stage in the system.");
         }
-        int[] raceIds = getRaceIds();
-        int raceCount = raceIds.length;
-        for (int i = 0; i < raceCount; i++) {
-            ArrayList<Stage> stageObjects = getStages(raceIds[i]);
-            int stageCount = stageObjects.size();
-            for (int j = 0; j < stageCount; j++) {
-                if (stageObjects.get(j).getId() == stageId) {
-                    stageObjects.get(j).removeAllRiderResults(riderId);
-                }
-            }
-        }
+        journal(Journal.DELETE_RESULT, stageId, riderId);
+        stageRaceRegistry.get(stageId).removeRiderResults(stageRegistry.get(stageId), riderId);
+        unindexRiderResult(riderId, stageRegistry.get(stageId));
     }
 
     @Override
@@ -465,18 +972,8 @@ public class CyclingPortal implements CyclingPortalInterface {
             throw new IDNotRecognisedException("Stage ID does not match to any stage in the system.");
         }
         if (getStageResultsCount(stageId) > 0) {
-            int[] raceIds = getRaceIds();
-            int raceCount = raceIds.length;
-            for (int i = 0; i < raceCount; i++) {
-                ArrayList<Stage> stageObjects = getStages(raceIds[i]);
-                int stageCount = stageObjects.size();
-                for (int j = 0; j < stageCount; j++) {
-                    if (stageObjects.get(j).getId() == stageId) {
-                        return stageObjects.get(j).getRidersRankInStage();
-                    }
-                }
-            }
-            return new int[] {};
+            Stage stage = stageRegistry.get(stageId);
+            return stageRaceRegistry.get(stageId).getStageRanking(stage).getRidersRank();
         }
         return new int[] {};
     }
@@ -486,18 +983,23 @@ public class CyclingPortal implements CyclingPortalInterface {
         if (!doesStageIdExist(stageId)) {
             throw new IDNotRecognisedException("Stage ID does not match to any stage in the system.");
         }
-        int[] raceIds = getRaceIds();
-        int raceCount = raceIds.length;
-        for (int i = 0; i < raceCount; i++) {
-            ArrayList<Stage> stageObjects = getStages(raceIds[i]);
-            int stageCount = stageObjects.size();
-            for (int j = 0; j < stageCount; j++) {
-                if (stageObjects.get(j).getId() == stageId) {
-                    return stageObjects.get(j).getRankedAdjustedElapsedTimesInStage();
-                }
-            }
+        Stage stage = stageRegistry.get(stageId);
+        return stageRaceRegistry.get(stageId).getStageRanking(stage).getRankedAdjustedElapsedTimes();
+    }
+
+    /**
+     * gets the adjusted elapsed times of the riders in a stage in nanoseconds
+     * 
+     * @param stageId the Id of the stage
+     * @return the adjusted times sorted by elapsed time
+     * @throws IDNotRecognisedException if the stage Id is not found
+     */
+    public long[] getRankedAdjustedElapsedNanosInStage(int stageId) throws IDNotRecognisedException {
+        if (!doesStageIdExist(stageId)) {
+            throw new IDNotRecognisedException("Stage ID does not match to any stage in the system.");
         }
-        return new LocalTime[] {};
+        Stage stage = stageRegistry.get(stageId);
+        return stageRaceRegistry.get(stageId).getStageRanking(stage).getAdjustedTimes();
     }
 
     @Override
@@ -506,18 +1008,8 @@ public class CyclingPortal implements CyclingPortalInterface {
             throw new IDNotRecognisedException("Stage ID does not match to any stage in the system.");
         }
         if (getStageResultsCount(stageId) > 0) {
-            int[] raceIds = getRaceIds();
-            int raceCount = raceIds.length;
-            for (int i = 0; i < raceCount; i++) {
-                ArrayList<Stage> stageObjects = getStages(raceIds[i]);
-                int stageCount = stageObjects.size();
-                for (int j = 0; j < stageCount; j++) {
-                    if (stageObjects.get(j).getId() == stageId) {
-                        return stageObjects.get(j).getRidersPointsInStage();
-                    }
-                }
-            }
-            return new int[] {};
+            Stage stage = stageRegistry.get(stageId);
+            return stageRaceRegistry.get(stageId).getStageRanking(stage).getRidersPoints();
         }
         return new int[] {};
     }
@@ -528,49 +1020,724 @@ public class CyclingPortal implements CyclingPortalInterface {
             throw new IDNotRecognisedException("Stage ID does not match to any stage in the system.");
         }
         if (getStageResultsCount(stageId) > 0) {
-            int[] raceIds = getRaceIds();
-            int raceCount = raceIds.length;
+            Stage stage = stageRegistry.get(stageId);
+            return stageRaceRegistry.get(stageId).getStageRanking(stage).getRidersMountainPoints();
+        }
+        return new int[] {};
+    }
+
+    @Override
+    public void eraseCyclingPortal() {
+        journal(Journal.ERASE);
+        raceObjects = new ArrayList<Race>();
+        teamObjects = new ArrayList<Team>();
+        counterStates.resetAllCounts();
+        clearRegistries();
+        raceArchive = null;
+        teamsChanged = true;
+    }
+
+    @Override
+    public void saveCyclingPortal(String filename) throws IOException {
+        SnapshotOutput out = new SnapshotOutput();
+        out.writeVarInt(counterStates.getRaceCounter());
+        out.writeVarInt(counterStates.getTeamCounter());
+        out.writeVarInt(counterStates.getRiderCounter());
+        out.writeVarInt(counterStates.getSegmentCounter());
+        out.writeVarInt(counterStates.getStageCounter());
+        out.writeVarLong(journalSequence);
+        counterStates.writeLeasedIds(out);
+        writeTeams(out);
+
+        int raceCount = raceObjects.size();
+        out.writeVarInt(raceCount);
+        for (int i = 0; i < raceCount; i++) {
+            loadRace(raceObjects.get(i)).writeSnapshot(out);
+        }
+
+        OutputStream file = new BufferedOutputStream(new FileOutputStream(filename));
+        try {
+            out.writeTo(file);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * loads a portal saved as a snapshot or, if the file was saved
+     * before snapshots were used, with Java serialization
+     */
+    @Override
+    public void loadCyclingPortal(String filename) throws IOException, ClassNotFoundException {
+        if (journal != null) {
+            throw new IOException("The portal cannot be loaded while a journal is open.");
+        }
+        byte[] data = Files.readAllBytes(Paths.get(filename));
+        if (SnapshotInput.isSnapshot(data)) {
+            loadSnapshot(new SnapshotInput(data));
+        } else {
+            loadLegacySave(data);
+        }
+    }
+
+    /**
+     * converts a portal saved with Java serialization into a snapshot
+     * 
+     * @param legacyFilename the location of the old save
+     * @param filename       the location the snapshot is written to
+     * @throws IOException            if either file cannot be used
+     * @throws ClassNotFoundException if the old save holds unknown classes
+     */
+    public static void convertLegacySave(String legacyFilename, String filename)
+            throws IOException, ClassNotFoundException {
+        CyclingPortal portal = new CyclingPortal();
+        portal.loadCyclingPortal(legacyFilename);
+        portal.saveCyclingPortal(filename);
+    }
+
+    /**
+     * saves the portal to a directory with one file and one index of Ids
+     * for each race, one for the teams and riders and a manifest holding
+     * the counters and the order and details of the races. When the portal is saved to the same directory
+     * again only the races which have changed are written, so saving
+     * after a stage of one race costs only that race.
+     * <p>
+     * Each file is written to a temporary file and moved into place, and
+     * the manifest is written last so it never names a race file which
+     * has not been written.
+     * 
+     * @param directory the location of the directory, it is created if needed
+     * @return how much was written and how long it took
+     * @throws IOException if a file cannot be written
+     */
+    public SaveStatistics saveCyclingPortalToDirectory(String directory) throws IOException {
+        if (saveExecutor != null) {
+            /* waits for the saves already started so the files are written in order */
+            try {
+                return saveCyclingPortalToDirectoryAsync(directory).get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof UncheckedIOException) {
+                    throw ((UncheckedIOException) e.getCause()).getCause();
+                }
+                throw new IOException("The portal could not be saved.", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Saving the portal was interrupted.", e);
+            }
+        }
+        try {
+            return captureDirectorySnapshot(directory).write();
+        } catch (IOException e) {
+            saveFailed = true;
+            throw e;
+        }
+    }
+
+    /**
+     * saves the portal to a directory like
+     * {@link #saveCyclingPortalToDirectory(String)}, but only the changed
+     * races are encoded on the calling thread and the files are written on
+     * a background thread, so results can carry on being registered while
+     * they are written. Saves are written one at a time in the order they
+     * were made.
+     * 
+     * @param directory the location of the directory, it is created if needed
+     * @return a future completed with how much was written and how long it
+     *         took, or with an UncheckedIOException if a file cannot be written
+     * @throws IOException if the portal cannot be encoded
+     */
+    public CompletableFuture<SaveStatistics> saveCyclingPortalToDirectoryAsync(String directory) throws IOException {
+        final DirectorySnapshot snapshot = captureDirectorySnapshot(directory);
+        if (saveExecutor == null) {
+            saveExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "cycling portal save");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        lastSave = CompletableFuture.supplyAsync(new Supplier<SaveStatistics>() {
+            @Override
+            public SaveStatistics get() {
+                try {
+                    return snapshot.write();
+                } catch (IOException e) {
+                    // the next save writes every file again as this one may have been partly written
+                    saveFailed = true;
+                    throw new UncheckedIOException("The portal could not be saved.", e);
+                }
+            }
+        }, saveExecutor);
+        return lastSave;
+    }
+
+    /**
+     * encodes the files of the portal which have changed since it was
+     * last saved to a directory, and marks the portal as saved
+     * 
+     * @param directory the location of the directory
+     * @return the files to be written
+     * @throws IOException if a race or team cannot be encoded
+     */
+    private DirectorySnapshot captureDirectorySnapshot(String directory) throws IOException {
+        long start = System.nanoTime();
+        Path path = Paths.get(directory).toAbsolutePath();
+        boolean writeAll = !path.equals(savedDirectory) || saveFailed;
+        saveFailed = false;
+
+        int raceCount = raceObjects.size();
+        HashSet<String> raceFilenames = new HashSet<String>();
+        for (int i = 0; i < raceCount; i++) {
+            raceFilenames.add(RaceArchive.filename(raceObjects.get(i).getId()));
+            raceFilenames.add(RaceArchive.indexFilename(raceObjects.get(i).getId()));
+        }
+        DirectorySnapshot snapshot = new DirectorySnapshot(path, raceFilenames);
+        for (int i = 0; i < raceCount; i++) {
+            Race race = raceObjects.get(i);
+            if (writeAll || race.hasChanged()) {
+                SnapshotOutput out = new SnapshotOutput();
+                loadRace(race).writeSnapshot(out);
+                snapshot.addFile(RaceArchive.filename(race.getId()), out);
+                SnapshotOutput index = new SnapshotOutput();
+                RaceArchive.writeIndex(index, race);
+                snapshot.addFile(RaceArchive.indexFilename(race.getId()), index);
+            }
+        }
+        if (writeAll || teamsChanged) {
+            SnapshotOutput out = new SnapshotOutput();
+            writeTeams(out);
+            snapshot.addFile(TEAMS_FILENAME, out);
+        }
+
+        SnapshotOutput manifest = new SnapshotOutput();
+        manifest.writeVarInt(counterStates.getRaceCounter());
+        manifest.writeVarInt(counterStates.getTeamCounter());
+        manifest.writeVarInt(counterStates.getRiderCounter());
+        manifest.writeVarInt(counterStates.getSegmentCounter());
+        manifest.writeVarInt(counterStates.getStageCounter());
+        manifest.writeVarLong(journalSequence);
+        counterStates.writeLeasedIds(manifest);
+        manifest.writeVarInt(raceCount);
+        for (int i = 0; i < raceCount; i++) {
+            /*
+             * the details of each race are kept so races can be read when
+             * first used, the Ids of their stages, segments and riders are
+             * in the index next to each race's file
+             */
+            Race race = raceObjects.get(i);
+            manifest.writeVarInt(race.getId());
+            manifest.writeString(race.getName());
+            manifest.writeString(race.getDescription());
+            manifest.writeVarInt(race.getNumberOfStages());
+            manifest.writeDouble(race.getTotalLength());
+        }
+        snapshot.setManifest(MANIFEST_FILENAME, manifest);
+
+        for (int i = 0; i < raceCount; i++) {
+            raceObjects.get(i).markSaved();
+        }
+        teamsChanged = false;
+        savedDirectory = path;
+        if (raceArchive != null) {
+            raceArchive.setDirectory(path);
+        }
+        snapshot.setCaptureNanos(System.nanoTime() - start);
+        return snapshot;
+    }
+
+    /**
+     * loads a portal saved with {@link #saveCyclingPortalToDirectory(String)},
+     * the race files are read in parallel
+     * 
+     * @param directory the location of the directory
+     * @throws IOException if a file cannot be read or is not valid
+     */
+    public void loadCyclingPortalFromDirectory(String directory) throws IOException {
+        loadDirectory(directory, 0);
+    }
+
+    /**
+     * loads a portal saved with {@link #saveCyclingPortalToDirectory(String)}
+     * in archive mode. Only the details of each race are read, its stages
+     * are read the first time they are needed, and the stages of no more
+     * than the given number of races are held unless they have changed
+     * since the portal was saved.
+     * 
+     * @param directory   the location of the directory
+     * @param cachedRaces the number of races whose stages are held at once
+     * @throws IOException if a file cannot be read or is not valid
+     */
+    public void loadCyclingPortalFromDirectory(String directory, int cachedRaces) throws IOException {
+        if (cachedRaces < 1) {
+            throw new IllegalArgumentException("At least one race must be held.");
+        }
+        loadDirectory(directory, cachedRaces);
+    }
+
+    /**
+     * replaces the portal with one read from a directory
+     * 
+     * @param directory   the location of the directory
+     * @param cachedRaces the number of races held in archive mode,
+     *                    or 0 to read every race
+     * @throws IOException if a file cannot be read or is not valid
+     */
+    private void loadDirectory(String directory, int cachedRaces) throws IOException {
+        if (journal != null) {
+            throw new IOException("The portal cannot be loaded while a journal is open.");
+        }
+        final Path path = Paths.get(directory).toAbsolutePath();
+        SnapshotInput manifest = new SnapshotInput(Files.readAllBytes(path.resolve(MANIFEST_FILENAME)));
+        CounterStates loadedCounterStates = new CounterStates(manifest.readVarInt(), manifest.readVarInt(),
+                manifest.readVarInt(), manifest.readVarInt(), manifest.readVarInt());
+        long loadedJournalSequence = manifest.readVarLong();
+        loadedCounterStates.readLeasedIds(manifest);
+        int raceCount = manifest.readVarInt();
+
+        // in archive mode the details in the manifest and the Ids in each race's index are enough
+        boolean archiveMode = cachedRaces > 0;
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(raceCount, Runtime.getRuntime().availableProcessors())));
+        ArrayList<Race> loadedRaces = new ArrayList<Race>(raceCount);
+        try {
+            ArrayList<Future<Race>> raceFutures = new ArrayList<Future<Race>>(raceCount);
+            // the stage and segment Ids of each archived race, read from its index
+            ArrayList<Future<int[][]>> indexFutures = new ArrayList<Future<int[][]>>(raceCount);
             for (int i = 0; i < raceCount; i++) {
-                ArrayList<Stage> stageObjects = getStages(raceIds[i]);
-                int stageCount = stageObjects.size();
-                for (int j = 0; j < stageCount; j++) {
-                    if (stageObjects.get(j).getId() == stageId) {
-                        return stageObjects.get(j).getRidersMountainPointsInStage();
+                final int raceId = manifest.readVarInt();
+                String name = manifest.readString();
+                String description = manifest.readString();
+                int stageCount = manifest.readVarInt();
+                double totalLength = manifest.readDouble();
+                if (archiveMode) {
+                    Race race = Race.archived(raceId, name, description, stageCount, totalLength);
+                    raceFutures.add(CompletableFuture.completedFuture(race));
+                    indexFutures.add(executor.submit(new Callable<int[][]>() {
+                        @Override
+                        public int[][] call() throws IOException {
+                            return RaceArchive.readIndex(path, raceId);
+                        }
+                    }));
+                    continue;
+                }
+                final Path raceFile = path.resolve(RaceArchive.filename(raceId));
+                final ResultStorage storage = resultStorage;
+                raceFutures.add(executor.submit(new Callable<Race>() {
+                    @Override
+                    public Race call() throws IOException {
+                        return Race.readSnapshot(new SnapshotInput(Files.readAllBytes(raceFile)), storage);
+                    }
+                }));
+            }
+
+            ArrayList<Team> loadedTeams = new ArrayList<Team>();
+            ArrayList<Rider> loadedRiders = new ArrayList<Rider>();
+            readTeams(new SnapshotInput(Files.readAllBytes(path.resolve(TEAMS_FILENAME))), loadedTeams, loadedRiders);
+
+            ArrayList<int[][]> indexes = new ArrayList<int[][]>(indexFutures.size());
+            for (int i = 0; i < raceCount; i++) {
+                try {
+                    loadedRaces.add(raceFutures.get(i).get());
+                    if (archiveMode) {
+                        indexes.add(indexFutures.get(i).get());
+                    }
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
                     }
+                    throw new IOException("A race file could not be read.", e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Loading the race files was interrupted.", e);
                 }
             }
-            return new int[] {};
+
+            teamObjects = loadedTeams;
+            raceObjects = loadedRaces;
+            counterStates = loadedCounterStates;
+            journalSequence = loadedJournalSequence;
+            raceArchive = archiveMode ? new RaceArchive(path, cachedRaces) : null;
+            rebuildRegistries(loadedRiders);
+            for (int i = 0; i < indexes.size(); i++) {
+                /* the stages of an archived race are registered when it is read */
+                Race race = loadedRaces.get(i);
+                int[] stageIds = indexes.get(i)[0];
+                for (int j = 0; j < stageIds.length; j++) {
+                    stageRaceRegistry.put(stageIds[j], race);
+                }
+                raceArchive.addSegments(race, indexes.get(i)[1]);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        for (int i = 0; i < raceCount; i++) {
+            Race race = loadedRaces.get(i);
+            if (!race.isArchived()) {
+                race.markSaved();
+                if (raceArchive != null) {
+                    raceArchive.touch(race);
+                }
+            }
+        }
+        teamsChanged = false;
+        saveFailed = false;
+        savedDirectory = path;
+        evictRaces(null);
+    }
+
+    /**
+     * makes sure the stages of a race are held, reading them from the
+     * archive if the race was loaded in archive mode and has not been used
+     * recently, then archives the races used least recently
+     * 
+     * @param race the race object
+     * @return the race object, with its stages
+     */
+    private Race loadRace(Race race) {
+        if (raceArchive == null) {
+            return race;
+        }
+        if (race.isArchived()) {
+            try {
+                race.restore(raceArchive.readRace(race.getId(), resultStorage));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Race " + race.getId() + " could not be read from the archive.", e);
+            }
+            registerRaceContents(race);
+        }
+        raceArchive.touch(race);
+        evictRaces(race);
+        return race;
+    }
+
+    /**
+     * drops the stages of the races used least recently, once the
+     * files they would be read back from have been written
+     * 
+     * @param inUse a race which is kept as it is being used, may be null
+     */
+    private void evictRaces(Race inUse) {
+        if (raceArchive == null || saveFailed || (lastSave != null && !lastSave.isDone())) {
+            return;
+        }
+        ArrayList<Race> evicted = raceArchive.evict(inUse);
+        int evictedCount = evicted.size();
+        for (int i = 0; i < evictedCount; i++) {
+            Race race = evicted.get(i);
+            unregisterRaceContents(race);
+            raceArchive.addSegments(race, race.getSegmentIds());
+            race.archive();
+        }
+    }
+
+    /**
+     * opens a journal which every change to the portal is appended to.
+     * Changes already in the journal which are newer than the portal,
+     * such as those made after the last snapshot before a crash, are
+     * made again first. Once it is open, a change which cannot be written
+     * to the journal throws an UncheckedIOException and is not made.
+     * 
+     * @param filename the location of the journal
+     * @param policy   how often changes are forced to disk
+     * @throws IOException if the journal cannot be opened or a change in it
+     *                     cannot be made again
+     */
+    public void openJournal(String filename, JournalSyncPolicy policy) throws IOException {
+        if (journal != null) {
+            throw new IOException("A journal is already open.");
+        }
+        Journal opened = new Journal(filename, policy);
+        ArrayList<JournalRecord> records = opened.readRecords();
+        replayingJournal = true;
+        try {
+            int recordCount = records.size();
+            for (int i = 0; i < recordCount; i++) {
+                JournalRecord record = records.get(i);
+                if (record.getSequence() > journalSequence) {
+                    try {
+                        applyJournalRecord(record);
+                    } catch (Exception e) {
+                        throw new IOException("Change " + record.getSequence() + " in the journal could not be made.", e);
+                    }
+                    journalSequence = record.getSequence();
+                }
+            }
+        } catch (IOException e) {
+            opened.close();
+            throw e;
+        } finally {
+            replayingJournal = false;
+        }
+        opened.continueAfter(journalSequence);
+        journal = opened;
+    }
+
+    /**
+     * saves the portal and empties the journal, as every change in it
+     * is now held by the save. The save is written to a temporary file
+     * and moved into place so a crash never leaves a partial save.
+     * 
+     * @param filename the location of the save
+     * @throws IOException if the save cannot be written or no journal is open
+     */
+    public void checkpointJournal(String filename) throws IOException {
+        if (journal == null) {
+            throw new IOException("No journal is open.");
+        }
+        journal.sync();
+        String temporaryFilename = filename + ".tmp";
+        saveCyclingPortal(temporaryFilename);
+        Files.move(Paths.get(temporaryFilename), Paths.get(filename), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        journal.truncate();
+    }
+
+    /**
+     * forces any changes still waiting to the journal and closes it
+     * 
+     * @throws IOException if the changes cannot be written
+     */
+    public void closeJournal() throws IOException {
+        if (journal != null) {
+            Journal closing = journal;
+            journal = null;
+            closing.close();
+        }
+    }
+
+    /**
+     * appends a change to the journal, if one is open and
+     * the change is not itself being made from the journal.
+     * Changes to different races can be appended at the same time,
+     * they are written one after another. Every change is appended once
+     * it has been checked and before it is made, so a change which
+     * cannot be journaled is not made at all.
+     * 
+     * @throws UncheckedIOException if the change cannot be written, the
+     *                              change must then not be made
+     */
+    private synchronized void journal(int type, Object... values) {
+        if (journal == null || replayingJournal) {
+            return;
+        }
+        try {
+            journalSequence = journal.append(type, values);
+        } catch (IOException e) {
+            throw new UncheckedIOException("The change could not be written to the journal.", e);
+        }
+    }
+
+    /**
+     * makes a change read from the journal again
+     * 
+     * @param record the change
+     * @throws Exception if the change is rejected
+     */
+    private void applyJournalRecord(JournalRecord record) throws Exception {
+        Object[] values = record.getValues();
+        switch (record.getType()) {
+            case Journal.CREATE_RACE:
+                createRace((String) values[0], (String) values[1]);
+                break;
+            case Journal.REMOVE_RACE:
+                removeRaceById((Integer) values[0]);
+                break;
+            case Journal.REMOVE_RACE_BY_NAME:
+                removeRaceByName((String) values[0]);
+                break;
+            case Journal.ADD_STAGE:
+                addStageToRace((Integer) values[0], (String) values[1], (String) values[2], (Double) values[3],
+                        (LocalDateTime) values[4], (StageType) values[5]);
+                break;
+            case Journal.REMOVE_STAGE:
+                removeStageById((Integer) values[0]);
+                break;
+            case Journal.ADD_CLIMB:
+                addCategorizedClimbToStage((Integer) values[0], (Double) values[1], (SegmentType) values[2],
+                        (Double) values[3], (Double) values[4]);
+                break;
+            case Journal.ADD_SPRINT:
+                addIntermediateSprintToStage((Integer) values[0], (Double) values[1]);
+                break;
+            case Journal.REMOVE_SEGMENT:
+                removeSegment((Integer) values[0]);
+                break;
+            case Journal.CONCLUDE_STAGE:
+                concludeStagePreparation((Integer) values[0]);
+                break;
+            case Journal.CREATE_TEAM:
+                createTeam((String) values[0], (String) values[1]);
+                break;
+            case Journal.REMOVE_TEAM:
+                removeTeam((Integer) values[0]);
+                break;
+            case Journal.CREATE_RIDER:
+                createRider((Integer) values[0], (String) values[1], (Integer) values[2]);
+                break;
+            case Journal.REMOVE_RIDER:
+                removeRider((Integer) values[0]);
+                break;
+            case Journal.REGISTER_RESULT:
+                registerRiderResultsInStage((Integer) values[0], (Integer) values[1], (LocalTime[]) values[2]);
+                break;
+            case Journal.REGISTER_RESULTS:
+                registerRidersResultsInStage((Integer) values[0], (int[]) values[1], (LocalTime[][]) values[2]);
+                break;
+            case Journal.REGISTER_RESULT_NANOS:
+                registerRidersResultsInStage((Integer) values[0], (int[]) values[1], (long[]) values[2]);
+                break;
+            case Journal.DELETE_RESULT:
+                deleteRiderResultsInStage((Integer) values[0], (Integer) values[1]);
+                break;
+            case Journal.REGISTER_PASSING:
+                registerRiderPassingInStage((Integer) values[0], (Integer) values[1], (Integer) values[2],
+                        (LocalTime) values[3]);
+                break;
+            case Journal.ERASE:
+                eraseCyclingPortal();
+                break;
+            case Journal.LEASE_TEAM_IDS:
+                leaseTeamIds((Integer) values[0]);
+                break;
+            case Journal.CREATE_LEASED_TEAM:
+                createTeam((String) values[0], (String) values[1], (Integer) values[2]);
+                break;
+            case Journal.LEASE_RIDER_IDS:
+                leaseRiderIds((Integer) values[0]);
+                break;
+            case Journal.CREATE_LEASED_RIDER:
+                createRider((Integer) values[0], (String) values[1], (Integer) values[2], (Integer) values[3]);
+                break;
+            case Journal.LEASE_SEGMENT_IDS:
+                leaseSegmentIds((Integer) values[0]);
+                break;
+            case Journal.ADD_LEASED_CLIMB:
+                addCategorizedClimbToStage((Integer) values[0], (Double) values[1], (SegmentType) values[2],
+                        (Double) values[3], (Double) values[4], (Integer) values[5]);
+                break;
+            case Journal.ADD_LEASED_SPRINT:
+                addIntermediateSprintToStage((Integer) values[0], (Double) values[1], (Integer) values[2]);
+                break;
+            default:
+                throw new IOException("The journal holds a change of an unknown kind (" + record.getType() + ").");
+        }
+    }
+
+    /**
+     * replaces the portal with one read from a snapshot
+     * 
+     * @param in the snapshot
+     * @throws IOException if the snapshot is not valid
+     */
+    private void loadSnapshot(SnapshotInput in) throws IOException {
+        CounterStates loadedCounterStates = new CounterStates(in.readVarInt(), in.readVarInt(), in.readVarInt(),
+                in.readVarInt(), in.readVarInt());
+        long loadedJournalSequence = in.readVarLong();
+        loadedCounterStates.readLeasedIds(in);
+        ArrayList<Team> loadedTeams = new ArrayList<Team>();
+        ArrayList<Rider> loadedRiders = new ArrayList<Rider>();
+        readTeams(in, loadedTeams, loadedRiders);
+
+        int raceCount = in.readVarInt();
+        ArrayList<Race> loadedRaces = new ArrayList<Race>(raceCount);
+        for (int i = 0; i < raceCount; i++) {
+            loadedRaces.add(Race.readSnapshot(in, resultStorage));
         }
-        return new int[] {};
+
+        teamObjects = loadedTeams;
+        raceObjects = loadedRaces;
+        counterStates = loadedCounterStates;
+        journalSequence = loadedJournalSequence;
+        raceArchive = null;
+        rebuildRegistries(loadedRiders);
+        savedDirectory = null;
+        teamsChanged = true;
     }
 
-    @Override
-    public void eraseCyclingPortal() {
-        raceObjects = new ArrayList<Race>();
-        teamObjects = new ArrayList<Team>();
-        counterStates.resetAllCounts();
+    /**
+     * writes the teams and their riders to a snapshot
+     * 
+     * @param out the snapshot being written
+     * @throws IOException if a rider of a team is not known
+     */
+    private void writeTeams(SnapshotOutput out) throws IOException {
+        int teamCount = teamObjects.size();
+        out.writeVarInt(teamCount);
+        for (int i = 0; i < teamCount; i++) {
+            Team team = teamObjects.get(i);
+            out.writeVarInt(team.getId());
+            out.writeString(team.getName());
+            out.writeString(team.getDescription());
+            int riderCount = team.getRiderCount();
+            out.writeVarInt(riderCount);
+            for (int j = 0; j < riderCount; j++) {
+                Rider rider = riderRegistry.get(team.getRiderIdAtIndex(j));
+                if (rider == null) {
+                    throw new IOException("Rider " + team.getRiderIdAtIndex(j) + " of team " + team.getId() + " is not known.");
+                }
+                out.writeVarInt(rider.getId());
+                out.writeString(rider.getName());
+                out.writeSignedVarLong(rider.getYearOfBirth());
+            }
+        }
     }
 
-    @Override
-    public void saveCyclingPortal(String filename) throws IOException {
-        FileOutputStream file = new FileOutputStream(filename);
-        ObjectOutputStream out = new ObjectOutputStream(file);
-        out.writeObject(teamObjects);
-        out.writeObject(raceObjects);
-        out.writeObject(counterStates);
-        out.close();
-        file.close();
+    /**
+     * reads the teams and their riders from a snapshot
+     * 
+     * @param in           the snapshot
+     * @param loadedTeams  the list the teams are added to
+     * @param loadedRiders the list the riders are added to
+     * @throws IOException if the snapshot is not valid
+     */
+    private static void readTeams(SnapshotInput in, ArrayList<Team> loadedTeams, ArrayList<Rider> loadedRiders)
+            throws IOException {
+        int teamCount = in.readVarInt();
+        for (int i = 0; i < teamCount; i++) {
+            Team team = new Team(in.readVarInt(), in.readString(), in.readString());
+            int riderCount = in.readVarInt();
+            for (int j = 0; j < riderCount; j++) {
+                Rider rider = new Rider(in.readVarInt(), team.getId(), in.readString(), (int) in.readSignedVarLong());
+                team.addRider(rider);
+                loadedRiders.add(rider);
+            }
+            loadedTeams.add(team);
+        }
     }
 
-    @Override
-    public void loadCyclingPortal(String filename) throws IOException, ClassNotFoundException {
-        FileInputStream file = new FileInputStream(filename);
-        ObjectInputStream in = new ObjectInputStream(file);
-        teamObjects = (ArrayList<Team>) in.readObject();
-        raceObjects = (ArrayList<Race>) in.readObject();
-        counterStates = (CounterStates) in.readObject();
+    /**
+     * replaces the portal with one saved with Java serialization
+     * 
+     * @param data the contents of the save
+     * @throws IOException            if the save cannot be read
+     * @throws ClassNotFoundException if the save holds unknown classes
+     */
+    private void loadLegacySave(byte[] data) throws IOException, ClassNotFoundException {
+        LegacyPortalInputStream in = new LegacyPortalInputStream(new ByteArrayInputStream(data));
+        ArrayList<Team> loadedTeams = (ArrayList<Team>) in.readObject();
+        ArrayList<Race> loadedRaces = (ArrayList<Race>) in.readObject();
+        CounterStates loadedCounterStates = (CounterStates) in.readObject();
         in.close();
-        file.close();
+
+        teamObjects = loadedTeams;
+        raceObjects = loadedRaces;
+        counterStates = loadedCounterStates;
+        journalSequence = 0;
+        raceArchive = null;
+        rebuildRegistries(in.getRiders());
+        savedDirectory = null;
+        teamsChanged = true;
+        // the segments are handed to their races so they can be saved again
+        ArrayList<Segment> segmentObjects = in.getSegments();
+        int segmentCount = segmentObjects.size();
+        for (int k = 0; k < segmentCount; k++) {
+            Race race = stageRaceRegistry.get(segmentObjects.get(k).getStageId());
+            if (race != null) {
+                race.recordSegment(segmentObjects.get(k));
+            }
+        }
     }
 
     @Override
@@ -579,7 +1746,9 @@ public class CyclingPortal implements CyclingPortalInterface {
             int raceCount = raceObjects.size();
             for (int i = 0; i < raceCount; i++) {
                 if (raceObjects.get(i).getName().equals(name)) {
-                    raceObjects.remove(i);
+                    Race race = loadRace(raceObjects.get(i));
+                    journal(Journal.REMOVE_RACE_BY_NAME, name);
+                    unregisterRace(race);
                     break;
                 }
             }
@@ -593,13 +1762,23 @@ public class CyclingPortal implements CyclingPortalInterface {
         if (!doesRaceIdExist(raceId)) {
             throw new IDNotRecognisedException("Race ID was not found in the system.");
         }
-        int raceCount = raceObjects.size();
-        for (int i = 0; i < raceCount; i++) {
-            if (raceObjects.get(i).getId() == raceId) {
-                return raceObjects.get(i).getGeneralClassificationTimesInRace();
-            }
+        return loadRace(raceRegistry.get(raceId)).getGeneralClassificationTimesInRace();
+    }
+
+    /**
+     * gets the riders' total adjusted elapsed times in a race in nanoseconds,
+     * unlike {@link #getGeneralClassificationTimesInRace(int)} the totals
+     * do not wrap around after 24 hours
+     * 
+     * @param raceId the Id of the race
+     * @return the totals in general classification order
+     * @throws IDNotRecognisedException if the race Id is not found
+     */
+    public long[] getGeneralClassificationNanosInRace(int raceId) throws IDNotRecognisedException {
+        if (!doesRaceIdExist(raceId)) {
+            throw new IDNotRecognisedException("Race ID was not found in the system.");
         }
-        return new LocalTime[] {};
+        return loadRace(raceRegistry.get(raceId)).getGeneralClassificationNanosInRace();
     }
 
     @Override
@@ -608,13 +1787,7 @@ public class CyclingPortal implements CyclingPortalInterface {
             throw new IDNotRecognisedException("Race ID was not found in the system.");
         }
         // Finds the relevant race object and gets the rider points in the race.
-        int raceCount = raceObjects.size();
-        for (int i = 0; i < raceCount; i++) {
-            if (raceObjects.get(i).getId() == raceId) {
-                return raceObjects.get(i).getRidersPointsInRace();
-            }
-        }
-        return new int[] {};
+        return loadRace(raceRegistry.get(raceId)).getRidersPointsInRace();
     }
 
     @Override
@@ -622,13 +1795,7 @@ public class CyclingPortal implements CyclingPortalInterface {
         if (!doesRaceIdExist(raceId)) {
             throw new IDNotRecognisedException("Race ID was not found in the system.");
         }
-        int raceCount = raceObjects.size();
-        for (int i = 0; i < raceCount; i++) {
-            if (raceObjects.get(i).getId() == raceId) {
-                return raceObjects.get(i).getRidersMountainPointsInRace();
-            }
-        }
-        return new int[] {};
+        return loadRace(raceRegistry.get(raceId)).getRidersMountainPointsInRace();
     }
 
     @Override
@@ -636,13 +1803,7 @@ public class CyclingPortal implements CyclingPortalInterface {
         if (!doesRaceIdExist(raceId)) {
             throw new IDNotRecognisedException("Race ID was not found in the system.");
         }
-        int raceCount = raceObjects.size();
-        for (int i = 0; i < raceCount; i++) {
-            if (raceObjects.get(i).getId() == raceId) {
-                return raceObjects.get(i).getRidersGeneralClassificationRank();
-            }
-        }
-        return new int[] {};
+        return loadRace(raceRegistry.get(raceId)).getRidersGeneralClassificationRank();
     }
 
     @Override
@@ -650,13 +1811,7 @@ public class CyclingPortal implements CyclingPortalInterface {
         if (!doesRaceIdExist(raceId)) {
             throw new IDNotRecognisedException("Race ID was not found in the system.");
         }
-        int raceCount = raceObjects.size();
-        for (int i = 0; i < raceCount; i++) {
-            if (raceObjects.get(i).getId() == raceId) {
-                return raceObjects.get(i).getRidersPointClassificationRank();
-            }
-        }
-        return new int[] {};
+        return loadRace(raceRegistry.get(raceId)).getRidersPointClassificationRank();
     }
 
     @Override
@@ -664,13 +1819,7 @@ public class CyclingPortal implements CyclingPortalInterface {
         if (!doesRaceIdExist(raceId)) {
             throw new IDNotRecognisedException("Race ID was not found in the system.");
         }
-        int raceCount = raceObjects.size();
-        for (int i = 0; i < raceCount; i++) {
-            if (raceObjects.get(i).getId() == raceId) {
-                return raceObjects.get(i).getRidersMountainPointClassificationRank();
-            }
-        }
-        return new int[] {};
+        return loadRace(raceRegistry.get(raceId)).getRidersMountainPointClassificationRank();
     }
 
     // Segment Handler Functions
@@ -681,16 +1830,11 @@ public class CyclingPortal implements CyclingPortalInterface {
      * @param segment the segment object
      */
     public void addSegmentToStage(int stageId, Segment segment) {
-        int[] raceIds = getRaceIds();
-        int raceCount = raceIds.length;
-        for (int i = 0; i < raceCount; i++) {
-            ArrayList<Stage> stageObjects = getStages(raceIds[i]);
-            int stageCount = stageObjects.size();
-            for (int j = 0; j < stageCount; j++) {
-                if (stageObjects.get(j).getId() == stageId) {
-                    stageObjects.get(j).addSegment(segment);
-                }
-            }
+        Stage stage = stageRegistry.get(stageId);
+        if (stage != null) {
+            stage.addSegment(segment);
+            stageRaceRegistry.get(stageId).segmentAdded(stage, segment);
+            segmentStageRegistry.put(segment.getId(), stage);
         }
     }
 
@@ -698,24 +1842,14 @@ public class CyclingPortal implements CyclingPortalInterface {
      * gets the current state of the stage by the segment Id
      * 
      * @param segmentId the Id of the segment
-     * @return whether the stage is waiting for results or not
+     * @return the state of the stage, null if the segment does not exist
      */
-    public String getStageStateBySegmentId(int segmentId) {
-        int[] raceIds = getRaceIds();
-        int raceCount = raceIds.length;
-        for (int i = 0; i < raceCount; i++) {
-            ArrayList<Stage> stageObjects = getStages(raceIds[i]);
-            int stageCount = stageObjects.size();
-            for (int j = 0; j < stageCount; j++) {
-                int[] segmentIds = stageObjects.get(j).getSegmentIds();
-                for (int k = 0; k < segmentIds.length; k++) {
-                    if (segmentIds[k] == segmentId) {
-                        return stageObjects.get(j).getState();
-                    }
-                }
-            }
+    public StageState getStageStateBySegmentId(int segmentId) {
+        Stage stage = segmentStageRegistry.get(segmentId);
+        if (stage == null) {
+            return null;
         }
-        return "";
+        return stageLifecycleRegistry.get(stage.getId()).getState();
     }
 
     /**
@@ -725,21 +1859,15 @@ public class CyclingPortal implements CyclingPortalInterface {
      * @return true if the Id exists, false if it doesn't
      */
     public boolean doesSegmentIdExist(int segmentId) {
-        int[] raceIds = getRaceIds();
-        int raceCount = raceIds.length;
-        for (int i = 0; i < raceCount; i++) {
-            ArrayList<Stage> stageObjects = getStages(raceIds[i]);
-            int stageCount = stageObjects.size();
-            for (int j = 0; j < stageCount; j++) {
-                int[] segmentIds = stageObjects.get(j).getSegmentIds();
-                for (int k = 0; k < segmentIds.length; k++) {
-                    if (segmentIds[k] == segmentId) {
-                        return true;
-                    }
-                }
+        if (raceArchive != null) {
+            Stage stage = segmentStageRegistry.get(segmentId);
+            Race race = stage == null ? raceArchive.getSegmentRace(segmentId) : stageRaceRegistry.get(stage.getId());
+            // a segment of a race which has since been removed is not looked for
+            if (race != null && raceRegistry.get(race.getId()) == race) {
+                loadRace(race);
             }
         }
-        return false;
+        return segmentStageRegistry.contains(segmentId);
     }
 
     // Rider Handler Functions
@@ -750,14 +1878,7 @@ public class CyclingPortal implements CyclingPortalInterface {
      * @return true if the riderId exists, false if it doesn't
      */
     public boolean doesRiderIdExist(int riderId) {
-        ArrayList<Team> teamObjects = getTeamObjects();
-        int teamCount = teamObjects.size();
-        for (int i = 0; i < teamCount; i++) {
-            if (teamObjects.get(i).doesRiderExist(riderId)) {
-                return true;
-            }
-        }
-        return false;
+        return riderTeamRegistry.contains(riderId);
     }
 
     // Team Handler Functions
@@ -768,6 +1889,7 @@ public class CyclingPortal implements CyclingPortalInterface {
      */
     public void registerTeam(Team team) {
         teamObjects.add(team);
+        teamRegistry.put(team.getId(), team);
     }
 
     /**
@@ -777,11 +1899,11 @@ public class CyclingPortal implements CyclingPortalInterface {
      * @param rider the rider Object to be added
      */
     public void addRiderToTeam(int teamId, Rider rider) {
-        int teamCount = teamObjects.size();
-        for (int i = 0; i < teamCount; i++) {
-            if (teamObjects.get(i).getId() == teamId) {
-                teamObjects.get(i).addRider(rider);
-            }
+        Team team = teamRegistry.get(teamId);
+        if (team != null) {
+            team.addRider(rider);
+            riderTeamRegistry.put(rider.getId(), team);
+            riderRegistry.put(rider.getId(), rider);
         }
     }
 
@@ -808,13 +1930,7 @@ public class CyclingPortal implements CyclingPortalInterface {
      * @return True if the team Id exists, false if it doesn't
      */
     public boolean doesTeamIdExist(int idSearch) {
-        int teamCount = teamObjects.size();
-        for (int i = 0; i < teamCount; i++) {
-            if (teamObjects.get(i).getId() == idSearch) {
-                return true;
-            }
-        }
-        return false;
+        return teamRegistry.contains(idSearch);
     }
 
     /**
@@ -825,19 +1941,19 @@ public class CyclingPortal implements CyclingPortalInterface {
      * @param teamId the id of the team
      */
     public void removeTeamById(int teamId) {
-        int teamCount = teamObjects.size();
-        for (int i = 0; i < teamCount; i++) {
-            if (teamObjects.get(i).getId() == teamId) {
-                Team teamTBD = teamObjects.get(i);
-                int riderCount = teamTBD.getRiderCount();
-                for (int j = 0; j < riderCount; j++) {
-                    int riderId = teamTBD.getRiderIdAtIndex(j);
-                    removeAllResultsForRider(riderId);
-                }
-                teamObjects.remove(i);
-                break;
-            }
+        Team teamTBD = teamRegistry.get(teamId);
+        if (teamTBD == null) {
+            return;
         }
+        int riderCount = teamTBD.getRiderCount();
+        for (int j = 0; j < riderCount; j++) {
+            int riderId = teamTBD.getRiderIdAtIndex(j);
+            removeAllResultsForRider(riderId);
+            riderTeamRegistry.remove(riderId);
+            riderRegistry.remove(riderId);
+        }
+        teamObjects.remove(teamTBD);
+        teamRegistry.remove(teamId);
     }
 
     /**
@@ -855,15 +1971,49 @@ public class CyclingPortal implements CyclingPortalInterface {
      * @param riderId the id of the rider
      */
     public void removeAllResultsForRider(int riderId) {
-        int[] raceIds = getRaceIds();
-        int raceCount = raceIds.length;
-        for (int i = 0; i < raceCount; i++) {
-            ArrayList<Stage> stageObjects = getStages(raceIds[i]);
-            int stageCount = stageObjects.size();
-            for (int j = 0; j < stageCount; j++) {
-                stageObjects.get(j).removeAllRiderResults(riderId);
+        int raceCount = raceObjects.size();
+        if (raceArchive != null) {
+            /*
+             * the results index only covers the races whose stages are held,
+             * so in archive mode the races are searched in turn. An archived
+             * race is only read if its riders, kept in its index, include
+             * the rider. A race the rider had results in has changed and so
+             * stays held.
+             */
+            for (int i = 0; i < raceCount; i++) {
+                if (!raceArchive.mayHaveRider(raceObjects.get(i), riderId)) {
+                    continue;
+                }
+                Race race = loadRace(raceObjects.get(i));
+                race.removeLiveRider(riderId);
+                ArrayList<Stage> stageObjects = race.getStages();
+                int stageCount = stageObjects.size();
+                for (int j = 0; j < stageCount; j++) {
+                    if (race.getStageResults(stageObjects.get(j)).indexOfRider(riderId) >= 0) {
+                        race.removeRiderResults(stageObjects.get(j), riderId);
+                        unindexRiderResult(riderId, stageObjects.get(j));
+                    }
+                }
             }
+            return;
+        }
+        for (int i = 0; i < raceCount; i++) {
+            raceObjects.get(i).removeLiveRider(riderId);
+        }
+        /*
+         * only the stages the rider has a result in are visited,
+         * found through the rider's entry in the results index
+         */
+        ArrayList<Stage> stageObjects = riderResultsRegistry.get(riderId);
+        if (stageObjects == null) {
+            return;
+        }
+        int stageCount = stageObjects.size();
+        for (int j = 0; j < stageCount; j++) {
+            Stage stage = stageObjects.get(j);
+            stageRaceRegistry.get(stage.getId()).removeRiderResults(stage, riderId);
         }
+        riderResultsRegistry.remove(riderId);
     }
 
     // Stage Handler Functions
@@ -889,21 +2039,14 @@ public class CyclingPortal implements CyclingPortalInterface {
      * gets the current state of the stage by the stage Id
      * 
      * @param stageId the Id of the stage
-     * @return whether the stage is waiting for results or not
+     * @return the state of the stage, null if the stage does not exist
      */
-    public String getStageStateByStageId(int stageId) {
-        int[] raceIds = getRaceIds();
-        int raceCount = raceIds.length;
-        for (int i = 0; i < raceCount; i++) {
-            ArrayList<Stage> stageObjects = getStages(raceIds[i]);
-            int stageCount = stageObjects.size();
-            for (int j = 0; j < stageCount; j++) {
-                if (stageObjects.get(j).getId() == stageId) {
-                    return stageObjects.get(j).getState();
-                }
-            }
+    public StageState getStageStateByStageId(int stageId) {
+        StageLifecycle lifecycle = stageLifecycleRegistry.get(stageId);
+        if (lifecycle == null) {
+            return null;
         }
-        return "";
+        return lifecycle.getState();
     }
 
     /**
@@ -913,18 +2056,11 @@ public class CyclingPortal implements CyclingPortalInterface {
      * @return the type of the stage
      */
     public StageType getStageType(int stageId) {
-        int[] raceIds = getRaceIds();
-        int raceCount = raceIds.length;
-        for (int i = 0; i < raceCount; i++) {
-            ArrayList<Stage> stageObjects = getStages(raceIds[i]);
-            int stageCount = stageObjects.size();
-            for (int j = 0; j < stageCount; j++) {
-                if (stageObjects.get(j).getId() == stageId) {
-                    return stageObjects.get(j).getType();
-                }
-            }
+        Stage stage = stageRegistry.get(stageId);
+        if (stage == null) {
+            return null;
         }
-        return null;
+        return stage.getType();
     }
 
     /**
@@ -934,18 +2070,44 @@ public class CyclingPortal implements CyclingPortalInterface {
      * @return true if the stage Id exists, false if it doesn't
      */
     public boolean doesStageIdExist(int stageId) {
-        int[] raceIds = getRaceIds();
-        int raceCount = raceIds.length;
-        for (int i = 0; i < raceCount; i++) {
-            ArrayList<Stage> stageObjects = getStages(raceIds[i]);
-            int stageCount = stageObjects.size();
-            for (int j = 0; j < stageCount; j++) {
-                if (stageObjects.get(j).getId() == stageId) {
-                    return true;
-                }
+        if (raceArchive != null) {
+            Race race = stageRaceRegistry.get(stageId);
+            if (race != null) {
+                loadRace(race);
             }
         }
-        return false;
+        return stageRegistry.contains(stageId);
+    }
+
+    /**
+     * gets the Id of the race a stage belongs to
+     * 
+     * @param stageId the Id of the stage
+     * @return the Id of the race, 0 if the stage is not found
+     */
+    public int getStageRaceId(int stageId) {
+        Race race = stageRaceRegistry.get(stageId);
+        if (race == null) {
+            return 0;
+        }
+        return race.getId();
+    }
+
+    /**
+     * gets the Id of the race a segment belongs to
+     * 
+     * @param segmentId the Id of the segment
+     * @return the Id of the race, 0 if the segment is not found
+     */
+    public int getSegmentRaceId(int segmentId) {
+        Stage stage = segmentStageRegistry.get(segmentId);
+        if (stage != null) {
+            return getStageRaceId(stage.getId());
+        }
+        if (raceArchive != null && raceArchive.getSegmentRace(segmentId) != null) {
+            return raceArchive.getSegmentRace(segmentId).getId();
+        }
+        return 0;
     }
 
     /**
@@ -956,18 +2118,22 @@ public class CyclingPortal implements CyclingPortalInterface {
      * @return True if the rider has a result, false if he doesn't
      */
     public boolean doesRiderHaveResult(int stageId, int riderId) {
-        int[] raceIds = getRaceIds();
-        int raceCount = raceIds.length;
-        for (int i = 0; i < raceCount; i++) {
-            ArrayList<Stage> stageObjects = getStages(raceIds[i]);
-            int stageCount = stageObjects.size();
-            for (int j = 0; j < stageCount; j++) {
-                if (stageObjects.get(j).getId() == stageId) {
-                    return stageObjects.get(j).doesRiderHaveResult(riderId);
-                }
-            }
+        Stage stage = stageRegistry.get(stageId);
+        if (stage == null) {
+            return false;
         }
-        return false;
+        return stageRaceRegistry.get(stageId).getStageResults(stage).indexOfRider(riderId) >= 0;
+    }
+
+    /**
+     * gets the plan a stage's results are checked and scored against,
+     * the stage must exist
+     * 
+     * @param stageId the Id of the stage
+     * @return the plan of the stage
+     */
+    private StagePlan getStagePlan(int stageId) {
+        return stageRaceRegistry.get(stageId).getStagePlan(stageRegistry.get(stageId));
     }
 
     /**
@@ -977,18 +2143,11 @@ public class CyclingPortal implements CyclingPortalInterface {
      * @return the number of segments in the stage
      */
     public int getSegmentsCount(int stageId) {
-        int[] raceIds = getRaceIds();
-        int raceCount = raceIds.length;
-        for (int i = 0; i < raceCount; i++) {
-            ArrayList<Stage> stageObjects = getStages(raceIds[i]);
-            int stageCount = stageObjects.size();
-            for (int j = 0; j < stageCount; j++) {
-                if (stageObjects.get(j).getId() == stageId) {
-                    return stageObjects.get(j).getSegmentsCount();
-                }
-            }
+        Stage stage = stageRegistry.get(stageId);
+        if (stage == null) {
+            return 0;
         }
-        return 0;
+        return stage.getSegmentsCount();
     }
 
     /**
@@ -998,16 +2157,26 @@ public class CyclingPortal implements CyclingPortalInterface {
      * @param result  result Object
      */
     public void linkRiderResultsInStage(int stageId, Result result) {
-        int[] raceIds = getRaceIds();
-        int raceCount = raceIds.length;
+        Stage stage = stageRegistry.get(stageId);
+        if (stage != null) {
+            stageRaceRegistry.get(stageId).addResult(stage, result);
+            indexRiderResult(result.getRiderId(), stage);
+        }
+    }
+
+    /**
+     * sets where the result columns of the stages are kept. For events
+     * with many thousands of riders per stage the columns can be kept in
+     * direct buffers or in mapped files, out of the way of the garbage
+     * collector. The storage stays set across loads.
+     * 
+     * @param resultStorage the storage, see ResultStorage
+     */
+    public void setResultStorage(ResultStorage resultStorage) {
+        this.resultStorage = resultStorage;
+        int raceCount = raceObjects.size();
         for (int i = 0; i < raceCount; i++) {
-            ArrayList<Stage> stageObjects = getStages(raceIds[i]);
-            int stageCount = stageObjects.size();
-            for (int j = 0; j < stageCount; j++) {
-                if (stageObjects.get(j).getId() == stageId) {
-                    stageObjects.get(j).addResult(result);
-                }
-            }
+            raceObjects.get(i).setResultStorage(resultStorage);
         }
     }
 
@@ -1018,18 +2187,11 @@ public class CyclingPortal implements CyclingPortalInterface {
      * @return the number of results in the stage
      */
     public int getStageResultsCount(int stageId) {
-        int[] raceIds = getRaceIds();
-        int raceCount = raceIds.length;
-        for (int i = 0; i < raceCount; i++) {
-            ArrayList<Stage> stageObjects = getStages(raceIds[i]);
-            int stageCount = stageObjects.size();
-            for (int j = 0; j < stageCount; j++) {
-                if (stageObjects.get(j).getId() == stageId) {
-                    return stageObjects.get(j).getResultsCount();
-                }
-            }
+        Stage stage = stageRegistry.get(stageId);
+        if (stage == null) {
+            return 0;
         }
-        return 0;
+        return stageRaceRegistry.get(stageId).getStageResults(stage).size();
     }
 
     // Race Handler Functions
@@ -1039,7 +2201,9 @@ public class CyclingPortal implements CyclingPortalInterface {
      * @param race the race object
      */
     public void registerRace(Race race) {
+        race.setResultStorage(resultStorage);
         raceObjects.add(race);
+        raceRegistry.put(race.getId(), race);
     }
 
     /**
@@ -1065,13 +2229,23 @@ public class CyclingPortal implements CyclingPortalInterface {
      * @return true if the race id exists, false if it doesn't
      */
     public boolean doesRaceIdExist(int idSearch) {
-        int raceCount = raceObjects.size();
-        for (int i = 0; i < raceCount; i++) {
-            if (raceObjects.get(i).getId() == idSearch) {
-                return true;
-            }
+        return raceRegistry.contains(idSearch);
+    }
+
+    /**
+     * makes a version of a race which does not change, for readers which
+     * work out its classifications while the race carries on changing
+     * 
+     * @param raceId  the Id of the race
+     * @param version the number of the version
+     * @return the version, null if the race is not found
+     */
+    public RaceVersion newRaceVersion(int raceId, long version) {
+        Race race = raceRegistry.get(raceId);
+        if (race == null) {
+            return null;
         }
-        return false;
+        return loadRace(race).newVersion(version);
     }
 
     /**
@@ -1081,12 +2255,12 @@ public class CyclingPortal implements CyclingPortalInterface {
      * @param stage  stage's Id
      */
     public void addStageToRaceObject(int raceId, Stage stage) {
-        int raceCount = raceObjects.size();
-        for (int i = 0; i < raceCount; i++) {
-            if (raceObjects.get(i).getId() == raceId) {
-                raceObjects.get(i).addStage(stage);
-                break;
-            }
+        Race race = raceRegistry.get(raceId);
+        if (race != null) {
+            loadRace(race).addStage(stage);
+            stageRegistry.put(stage.getId(), stage);
+            stageLifecycleRegistry.put(stage.getId(), new StageLifecycle(stage));
+            stageRaceRegistry.put(stage.getId(), race);
         }
     }
 
@@ -1097,13 +2271,11 @@ public class CyclingPortal implements CyclingPortalInterface {
      * @return a list of the stages in the race
      */
     public ArrayList<Stage> getStages(int raceId) {
-        int raceCount = raceObjects.size();
-        for (int i = 0; i < raceCount; i++) {
-            if (raceObjects.get(i).getId() == raceId) {
-                return raceObjects.get(i).getStages();
-            }
+        Race race = raceRegistry.get(raceId);
+        if (race == null) {
+            return new ArrayList<Stage>();
         }
-        return new ArrayList<Stage>();
+        return loadRace(race).getStages();
     }
 
     /**
@@ -1113,6 +2285,174 @@ public class CyclingPortal implements CyclingPortalInterface {
      * @param stageIndex stage object's position
      */
     public void removeStage(int raceIndex, int stageIndex) {
-        raceObjects.get(raceIndex).removeStage(stageIndex);
+        Race race = loadRace(raceObjects.get(raceIndex));
+        unregisterStage(race.getStages().get(stageIndex));
+        race.removeStage(stageIndex);
+    }
+
+    // Registry Functions
+    /**
+     * removes a race from the system along with
+     * the Ids of its stages and segments
+     * 
+     * @param race the race object
+     */
+    private void unregisterRace(Race race) {
+        ArrayList<Stage> stageObjects = race.getStages();
+        int stageCount = stageObjects.size();
+        for (int j = 0; j < stageCount; j++) {
+            unregisterStage(stageObjects.get(j));
+        }
+        if (raceArchive != null) {
+            raceArchive.remove(race);
+        }
+        raceObjects.remove(race);
+        raceRegistry.remove(race.getId());
+    }
+
+    /**
+     * removes the Ids of a stage and its segments from the registries,
+     * the stage itself is removed from its race by the caller
+     * 
+     * @param stage the stage object
+     */
+    private void unregisterStage(Stage stage) {
+        int[] segmentIds = stage.getSegmentIds();
+        for (int k = 0; k < segmentIds.length; k++) {
+            segmentStageRegistry.remove(segmentIds[k]);
+        }
+        StageResults results = stageRaceRegistry.get(stage.getId()).getStageResults(stage);
+        for (int i = 0; i < results.size(); i++) {
+            unindexRiderResult(results.getRiderId(i), stage);
+        }
+        stageRegistry.remove(stage.getId());
+        stageLifecycleRegistry.remove(stage.getId());
+        stageRaceRegistry.remove(stage.getId());
+    }
+
+    /**
+     * records that a rider has a result in a stage
+     * 
+     * @param riderId the Id of the rider
+     * @param stage   the stage object
+     */
+    private void indexRiderResult(int riderId, Stage stage) {
+        // a rider's results in different races can be changed at the same time
+        synchronized (riderResultsRegistry) {
+            ArrayList<Stage> stageObjects = riderResultsRegistry.get(riderId);
+            if (stageObjects == null) {
+                stageObjects = new ArrayList<Stage>();
+                riderResultsRegistry.put(riderId, stageObjects);
+            }
+            stageObjects.add(stage);
+        }
+    }
+
+    /**
+     * forgets that a rider has a result in a stage
+     * 
+     * @param riderId the Id of the rider
+     * @param stage   the stage object
+     */
+    private void unindexRiderResult(int riderId, Stage stage) {
+        synchronized (riderResultsRegistry) {
+            ArrayList<Stage> stageObjects = riderResultsRegistry.get(riderId);
+            if (stageObjects == null) {
+                return;
+            }
+            stageObjects.remove(stage);
+            if (stageObjects.isEmpty()) {
+                riderResultsRegistry.remove(riderId);
+            }
+        }
+    }
+
+    /**
+     * adds the stages of a race, their segments and results to the registries
+     * 
+     * @param race the race object
+     */
+    private void registerRaceContents(Race race) {
+        ArrayList<Stage> stageObjects = race.getStages();
+        int stageCount = stageObjects.size();
+        for (int j = 0; j < stageCount; j++) {
+            Stage stage = stageObjects.get(j);
+            stageRegistry.put(stage.getId(), stage);
+            stageLifecycleRegistry.put(stage.getId(), new StageLifecycle(stage));
+            stageRaceRegistry.put(stage.getId(), race);
+            int[] segmentIds = stage.getSegmentIds();
+            for (int k = 0; k < segmentIds.length; k++) {
+                segmentStageRegistry.put(segmentIds[k], stage);
+            }
+            StageResults results = race.getStageResults(stage);
+            for (int i = 0; i < results.size(); i++) {
+                indexRiderResult(results.getRiderId(i), stage);
+            }
+        }
+    }
+
+    /**
+     * removes the stages of a race being archived from the registries,
+     * the race is still found by the Ids of its stages so it can be read
+     * again
+     * 
+     * @param race the race object
+     */
+    private void unregisterRaceContents(Race race) {
+        ArrayList<Stage> stageObjects = race.getStages();
+        int stageCount = stageObjects.size();
+        for (int j = 0; j < stageCount; j++) {
+            Stage stage = stageObjects.get(j);
+            unregisterStage(stage);
+            stageRaceRegistry.put(stage.getId(), race);
+        }
+    }
+
+    /**
+     * empties every registry
+     */
+    private void clearRegistries() {
+        raceRegistry.clear();
+        stageRegistry.clear();
+        stageLifecycleRegistry.clear();
+        stageRaceRegistry.clear();
+        segmentStageRegistry.clear();
+        teamRegistry.clear();
+        riderTeamRegistry.clear();
+        riderRegistry.clear();
+        riderResultsRegistry.clear();
+    }
+
+    /**
+     * fills the registries again from the race and team lists,
+     * used after the lists have been replaced by a load
+     * 
+     * @param riderObjects the riders read along with the teams
+     */
+    private void rebuildRegistries(ArrayList<Rider> riderObjects) {
+        clearRegistries();
+        int raceCount = raceObjects.size();
+        for (int i = 0; i < raceCount; i++) {
+            Race race = raceObjects.get(i);
+            race.setResultStorage(resultStorage);
+            raceRegistry.put(race.getId(), race);
+            // an archived race is found by the Ids in its index, registered by the caller
+            if (!race.isArchived()) {
+                registerRaceContents(race);
+            }
+        }
+        int teamCount = teamObjects.size();
+        for (int i = 0; i < teamCount; i++) {
+            Team team = teamObjects.get(i);
+            teamRegistry.put(team.getId(), team);
+            int riderCount = team.getRiderCount();
+            for (int j = 0; j < riderCount; j++) {
+                riderTeamRegistry.put(team.getRiderIdAtIndex(j), team);
+            }
+        }
+        int riderCount = riderObjects.size();
+        for (int i = 0; i < riderCount; i++) {
+            riderRegistry.put(riderObjects.get(i).getId(), riderObjects.get(i));
+        }
     }
 }
@@ -0,0 +1,106 @@
+package cycling;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+/**
+ * DirectorySnapshot - A class which holds the files of a portal saved to a
+ * directory as they were at one point in time, so they can be written out
+ * while the portal carries on changing.
+ * <p>
+ * Only the files which have changed since the directory was last written
+ * are held, already encoded, along with the manifest which is written last.
+ */
+public class DirectorySnapshot {
+    private Path directory;
+    private ArrayList<String> filenames = new ArrayList<String>();
+    private ArrayList<SnapshotOutput> contents = new ArrayList<SnapshotOutput>();
+    private SnapshotOutput manifest;
+    private HashSet<String> raceFilenames;
+    private long captureNanos;
+
+    /**
+     * Constructor for the Objects of DirectorySnapshot class
+     *
+     * @param directory     the location of the directory
+     * @param raceFilenames the names of the files and indexes of every
+     *                      race in the portal, any other race file is
+     *                      deleted
+     */
+    public DirectorySnapshot(Path directory, HashSet<String> raceFilenames) {
+        this.directory = directory;
+        this.raceFilenames = raceFilenames;
+    }
+
+    public void addFile(String filename, SnapshotOutput out) {
+        filenames.add(filename);
+        contents.add(out);
+    }
+
+    public void setManifest(String filename, SnapshotOutput out) {
+        manifest = out;
+        filenames.add(filename);
+    }
+
+    public void setCaptureNanos(long captureNanos) {
+        this.captureNanos = captureNanos;
+    }
+
+    /**
+     * writes the files, each to a temporary file which is moved into
+     * place, then deletes the files of races which have been removed
+     *
+     * @return how much was written and how long it took
+     * @throws IOException if a file cannot be written
+     */
+    public SaveStatistics write() throws IOException {
+        long start = System.nanoTime();
+        Files.createDirectories(directory);
+        long bytesWritten = 0;
+        int fileCount = contents.size();
+        for (int i = 0; i < fileCount; i++) {
+            bytesWritten += writeFile(contents.get(i), directory.resolve(filenames.get(i)));
+        }
+        bytesWritten += writeFile(manifest, directory.resolve(filenames.get(fileCount)));
+
+        // the files of races which have been removed are deleted once the manifest no longer names them
+        DirectoryStream<Path> files = Files.newDirectoryStream(directory, "race-*.{bin,idx}");
+        try {
+            for (Path file : files) {
+                if (!raceFilenames.contains(file.getFileName().toString())) {
+                    Files.delete(file);
+                }
+            }
+        } finally {
+            files.close();
+        }
+        return new SaveStatistics(fileCount + 1, bytesWritten, captureNanos, System.nanoTime() - start);
+    }
+
+    /**
+     * writes a snapshot to a temporary file and moves it into place
+     *
+     * @param out  the snapshot
+     * @param file the location of the file
+     * @return the number of bytes written
+     * @throws IOException if the file cannot be written
+     */
+    private static long writeFile(SnapshotOutput out, Path file) throws IOException {
+        Path temporaryFile = file.resolveSibling(file.getFileName() + ".tmp");
+        OutputStream stream = Files.newOutputStream(temporaryFile);
+        try {
+            out.writeTo(stream);
+        } finally {
+            stream.close();
+        }
+        long size = Files.size(temporaryFile);
+        Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return size;
+    }
+}
@@ -0,0 +1,210 @@
+package cycling;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.TreeSet;
+
+/**
+ * GeneralClassification - A class which keeps the general classification
+ * of a race up to date as results are added to and removed from its stages.
+ * Each rider's cumulative adjusted elapsed time is kept along with an ordered
+ * set of the riders who have a result in every stage, so a query only has to
+ * read the current order.
+ */
+public class GeneralClassification {
+
+    /**
+     * Standing - the cumulative time of a rider and the number of
+     * stages the rider has a result in
+     */
+    private static class Standing implements Comparable<Standing> {
+        private final int riderId;
+        private long totalNanos;
+        private int stagesCompleted;
+
+        private Standing(int riderId) {
+            this.riderId = riderId;
+        }
+
+        @Override
+        public int compareTo(Standing other) {
+            if (totalNanos != other.totalNanos) {
+                return Long.compare(totalNanos, other.totalNanos);
+            }
+            return Integer.compare(riderId, other.riderId);
+        }
+    }
+
+    private Race race;
+    private int stageCount;
+    // the adjusted elapsed times each stage has added to the totals
+    private HashMap<Integer, int[]> stageRiderIds = new HashMap<Integer, int[]>();
+    private HashMap<Integer, long[]> stageTimes = new HashMap<Integer, long[]>();
+    // stages whose results changed since the classification was last read
+    private LinkedHashMap<Integer, Stage> changedStages = new LinkedHashMap<Integer, Stage>();
+
+    private HashMap<Integer, Standing> standings = new HashMap<Integer, Standing>();
+    private TreeSet<Standing> order = new TreeSet<Standing>();
+
+    private int[] rankCache;
+    private long[] timesCache;
+
+    /**
+     * Constructor for the Objects of GeneralClassification class
+     *
+     * @param race the race the classification belongs to
+     */
+    public GeneralClassification(Race race) {
+        this.race = race;
+    }
+
+    /**
+     * adds a stage to the classification, no rider has a
+     * result in it yet so the order is emptied
+     *
+     * @param stage the stage object
+     */
+    public void addStage(Stage stage) {
+        stageCount++;
+        order.clear();
+        stageChanged(stage);
+    }
+
+    /**
+     * removes a stage along with the times it added to the riders' totals
+     *
+     * @param stage the stage object
+     */
+    public void removeStage(Stage stage) {
+        changedStages.remove(stage.getId());
+        subtractStage(stage.getId());
+        stageCount--;
+        /*
+         * riders who were only missing the removed stage now have a result
+         * in every stage, so every rider's place in the order is checked
+         */
+        order.clear();
+        for (Standing standing : standings.values()) {
+            if (stageCount > 0 && standing.stagesCompleted == stageCount) {
+                order.add(standing);
+            }
+        }
+        clearCache();
+    }
+
+    /**
+     * marks the results of a stage as changed, the new times
+     * are applied the next time the classification is read
+     *
+     * @param stage the stage object
+     */
+    public void stageChanged(Stage stage) {
+        changedStages.put(stage.getId(), stage);
+        clearCache();
+    }
+
+    /**
+     * gets the riders' Ids sorted by their total adjusted elapsed time
+     *
+     * @return the ranked rider Ids, empty if a stage has no results
+     */
+    public int[] getRidersRank() {
+        refresh();
+        return rankCache.clone();
+    }
+
+    /**
+     * gets the riders' total adjusted elapsed times in nanoseconds
+     *
+     * @return the totals in the same order as {@link #getRidersRank()}
+     */
+    public long[] getTimes() {
+        refresh();
+        return timesCache.clone();
+    }
+
+    /**
+     * applies the stages that changed since the last read
+     * and rebuilds the cached arrays if needed
+     */
+    private void refresh() {
+        if (!changedStages.isEmpty()) {
+            ArrayList<Stage> stages = new ArrayList<Stage>(changedStages.values());
+            changedStages.clear();
+            for (int i = 0; i < stages.size(); i++) {
+                applyStage(stages.get(i));
+            }
+        }
+        if (rankCache == null) {
+            int riderCount = order.size();
+            rankCache = new int[riderCount];
+            timesCache = new long[riderCount];
+            int i = 0;
+            for (Standing standing : order) {
+                rankCache[i] = standing.riderId;
+                timesCache[i] = standing.totalNanos;
+                i++;
+            }
+        }
+    }
+
+    /**
+     * replaces the times a stage added to the riders' totals with its current
+     * adjusted elapsed times
+     *
+     * @param stage the stage object
+     */
+    private void applyStage(Stage stage) {
+        subtractStage(stage.getId());
+        StageRanking ranking = race.getStageRanking(stage);
+        int[] riderIds = ranking.getRidersRank();
+        long[] times = ranking.getAdjustedTimes();
+        for (int i = 0; i < riderIds.length; i++) {
+            Standing standing = standings.get(riderIds[i]);
+            if (standing == null) {
+                standing = new Standing(riderIds[i]);
+                standings.put(riderIds[i], standing);
+            }
+            order.remove(standing);
+            standing.totalNanos += times[i];
+            standing.stagesCompleted++;
+            if (standing.stagesCompleted == stageCount) {
+                order.add(standing);
+            }
+        }
+        stageRiderIds.put(stage.getId(), riderIds);
+        stageTimes.put(stage.getId(), times);
+        clearCache();
+    }
+
+    /**
+     * takes the times a stage added away from the riders' totals
+     *
+     * @param stageId the Id of the stage
+     */
+    private void subtractStage(int stageId) {
+        int[] riderIds = stageRiderIds.remove(stageId);
+        long[] times = stageTimes.remove(stageId);
+        if (riderIds == null) {
+            return;
+        }
+        for (int i = 0; i < riderIds.length; i++) {
+            Standing standing = standings.get(riderIds[i]);
+            order.remove(standing);
+            standing.totalNanos -= times[i];
+            standing.stagesCompleted--;
+            if (standing.stagesCompleted == 0) {
+                standings.remove(riderIds[i]);
+            } else if (standing.stagesCompleted == stageCount) {
+                order.add(standing);
+            }
+        }
+        clearCache();
+    }
+
+    private void clearCache() {
+        rankCache = null;
+        timesCache = null;
+    }
+}
@@ -0,0 +1,162 @@
+package cycling;
+
+/**
+ * HeapResultStore - A class which keeps the result columns of a stage in
+ * arrays on the heap, one array per column and one flat array holding the
+ * checkpoints of every row.
+ */
+public class HeapResultStore implements ResultStore {
+    private int size;
+    private int[] riderIds;
+    private long[] startTimes;
+    private long[] elapsedTimes;
+    private int[] checkpointCounts;
+    private int stride;
+    private long[] checkpointOffsets;
+
+    public HeapResultStore() {
+        riderIds = new int[16];
+        startTimes = new long[16];
+        elapsedTimes = new long[16];
+        checkpointCounts = new int[16];
+        stride = 1;
+        checkpointOffsets = new long[16];
+        size = 0;
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public void setSize(int size) {
+        this.size = size;
+    }
+
+    @Override
+    public int getStride() {
+        return stride;
+    }
+
+    @Override
+    public void reserve(int rows, int newStride) {
+        if (newStride > stride) {
+            setStride(newStride);
+        }
+        while (rows > riderIds.length) {
+            grow();
+        }
+    }
+
+    @Override
+    public int getRiderId(int row) {
+        return riderIds[row];
+    }
+
+    @Override
+    public void setRiderId(int row, int riderId) {
+        riderIds[row] = riderId;
+    }
+
+    @Override
+    public long getStartTime(int row) {
+        return startTimes[row];
+    }
+
+    @Override
+    public void setStartTime(int row, long startTime) {
+        startTimes[row] = startTime;
+    }
+
+    @Override
+    public long getElapsedTime(int row) {
+        return elapsedTimes[row];
+    }
+
+    @Override
+    public void setElapsedTime(int row, long elapsedTime) {
+        elapsedTimes[row] = elapsedTime;
+    }
+
+    @Override
+    public int getCheckpointCount(int row) {
+        return checkpointCounts[row];
+    }
+
+    @Override
+    public void setCheckpointCount(int row, int checkpointCount) {
+        checkpointCounts[row] = checkpointCount;
+    }
+
+    @Override
+    public long getCheckpointOffset(int row, int slot) {
+        return checkpointOffsets[row * stride + slot];
+    }
+
+    @Override
+    public void setCheckpointOffset(int row, int slot, long offset) {
+        checkpointOffsets[row * stride + slot] = offset;
+    }
+
+    @Override
+    public void moveRows(int from, int to, int count) {
+        System.arraycopy(riderIds, from, riderIds, to, count);
+        System.arraycopy(startTimes, from, startTimes, to, count);
+        System.arraycopy(elapsedTimes, from, elapsedTimes, to, count);
+        System.arraycopy(checkpointCounts, from, checkpointCounts, to, count);
+        System.arraycopy(checkpointOffsets, from * stride, checkpointOffsets, to * stride, count * stride);
+    }
+
+    @Override
+    public long getStamp() {
+        return 0;
+    }
+
+    @Override
+    public void changeStamp() {
+        // the arrays do not outlive the portal, so there is nothing to stamp
+    }
+
+    @Override
+    public void release() {
+        // the arrays are collected along with the store
+    }
+
+    /**
+     * doubles the length of every column
+     */
+    private void grow() {
+        int capacity = riderIds.length * 2;
+        int[] newRiderIds = new int[capacity];
+        long[] newStartTimes = new long[capacity];
+        long[] newElapsedTimes = new long[capacity];
+        int[] newCheckpointCounts = new int[capacity];
+        long[] newCheckpointOffsets = new long[capacity * stride];
+        System.arraycopy(riderIds, 0, newRiderIds, 0, size);
+        System.arraycopy(startTimes, 0, newStartTimes, 0, size);
+        System.arraycopy(elapsedTimes, 0, newElapsedTimes, 0, size);
+        System.arraycopy(checkpointCounts, 0, newCheckpointCounts, 0, size);
+        System.arraycopy(checkpointOffsets, 0, newCheckpointOffsets, 0, size * stride);
+        riderIds = newRiderIds;
+        startTimes = newStartTimes;
+        elapsedTimes = newElapsedTimes;
+        checkpointCounts = newCheckpointCounts;
+        checkpointOffsets = newCheckpointOffsets;
+    }
+
+    /**
+     * lays the checkpoints out again with more room per row, needed when
+     * a result arrives with more checkpoints than the rows before it
+     *
+     * @param newStride the number of checkpoints stored per row
+     */
+    private void setStride(int newStride) {
+        long[] newCheckpointOffsets = new long[riderIds.length * newStride];
+        for (int i = 0; i < size; i++) {
+            System.arraycopy(checkpointOffsets, i * stride, newCheckpointOffsets, i * newStride, stride);
+        }
+        stride = newStride;
+        checkpointOffsets = newCheckpointOffsets;
+    }
+}
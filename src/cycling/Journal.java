@@ -0,0 +1,447 @@
+package cycling;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.zip.CRC32;
+
+/**
+ * Journal - A class which appends every change made to the portal to a file,
+ * so the changes since the last snapshot can be made again after a crash.
+ * <p>
+ * Each record holds a sequence number, the kind of change and the values it
+ * was made with, and is framed by its length and a checksum. A record cut
+ * short by a crash fails its checksum and is dropped along with anything
+ * after it when the journal is read back.
+ */
+public class Journal {
+    public static final int CREATE_RACE = 1;
+    public static final int REMOVE_RACE = 2;
+    public static final int REMOVE_RACE_BY_NAME = 3;
+    public static final int ADD_STAGE = 4;
+    public static final int REMOVE_STAGE = 5;
+    public static final int ADD_CLIMB = 6;
+    public static final int ADD_SPRINT = 7;
+    public static final int REMOVE_SEGMENT = 8;
+    public static final int CONCLUDE_STAGE = 9;
+    public static final int CREATE_TEAM = 10;
+    public static final int REMOVE_TEAM = 11;
+    public static final int CREATE_RIDER = 12;
+    public static final int REMOVE_RIDER = 13;
+    public static final int REGISTER_RESULT = 14;
+    public static final int REGISTER_RESULTS = 15;
+    public static final int DELETE_RESULT = 16;
+    public static final int REGISTER_PASSING = 17;
+    public static final int ERASE = 18;
+    public static final int LEASE_TEAM_IDS = 19;
+    public static final int CREATE_LEASED_TEAM = 20;
+    public static final int LEASE_RIDER_IDS = 21;
+    public static final int CREATE_LEASED_RIDER = 22;
+    public static final int LEASE_SEGMENT_IDS = 23;
+    public static final int ADD_LEASED_CLIMB = 24;
+    public static final int ADD_LEASED_SPRINT = 25;
+    public static final int REGISTER_RESULT_NANOS = 26;
+
+    private static final int DEFAULT_GROUP_SIZE = 256;
+    private static final long DEFAULT_GROUP_DELAY = 20;
+
+    // the tags written before each value so a record can be read without knowing its kind
+    private static final int NULL = 0;
+    private static final int INT = 1;
+    private static final int DOUBLE = 2;
+    private static final int STRING = 3;
+    private static final int TIME = 4;
+    private static final int DATE_TIME = 5;
+    private static final int STAGE_TYPE = 6;
+    private static final int SEGMENT_TYPE = 7;
+    private static final int INT_ARRAY = 8;
+    private static final int TIME_ARRAY = 9;
+    private static final int TIME_ARRAYS = 10;
+    private static final int NANOS_ARRAY = 11;
+
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private JournalSyncPolicy policy;
+    private int groupSize;
+    private long lastSequence;
+
+    // records written since the journal was last forced to disk
+    private SnapshotOutput pending = new SnapshotOutput();
+    private int pendingCount;
+    private Timer groupTimer;
+
+    /**
+     * Constructor for the Objects of Journal class which uses the
+     * default group size and delay
+     *
+     * @param filename the location of the journal
+     * @param policy   how often records are forced to disk
+     * @throws IOException if the journal cannot be opened
+     */
+    public Journal(String filename, JournalSyncPolicy policy) throws IOException {
+        this(filename, policy, DEFAULT_GROUP_SIZE, DEFAULT_GROUP_DELAY);
+    }
+
+    /**
+     * Constructor for the Objects of Journal class
+     *
+     * @param filename   the location of the journal
+     * @param policy     how often records are forced to disk
+     * @param groupSize  the number of records forced together with group commit
+     * @param groupDelay the longest a record waits to be forced with group
+     *                   commit, in milliseconds
+     * @throws IOException if the journal cannot be opened
+     */
+    public Journal(String filename, JournalSyncPolicy policy, int groupSize, long groupDelay) throws IOException {
+        this.file = new RandomAccessFile(filename, "rw");
+        this.channel = file.getChannel();
+        this.policy = policy;
+        this.groupSize = groupSize;
+        if (policy == JournalSyncPolicy.GROUP_COMMIT) {
+            groupTimer = new Timer("journal group commit", true);
+            groupTimer.scheduleAtFixedRate(new TimerTask() {
+                @Override
+                public void run() {
+                    try {
+                        sync();
+                    } catch (IOException e) {
+                        // the next record or sync reports the failure
+                    }
+                }
+            }, groupDelay, groupDelay);
+        }
+    }
+
+    /**
+     * reads every record in the journal. Anything after the first record
+     * that is incomplete or fails its checksum is cut off, as it was being
+     * written when the portal stopped.
+     *
+     * @return the records in the order they were written
+     * @throws IOException if the journal cannot be read
+     */
+    public synchronized ArrayList<JournalRecord> readRecords() throws IOException {
+        byte[] data = new byte[(int) channel.size()];
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        channel.position(0);
+        while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+            // reads until the buffer is full
+        }
+
+        ArrayList<JournalRecord> records = new ArrayList<JournalRecord>();
+        int position = 0;
+        CRC32 checksum = new CRC32();
+        while (position < data.length) {
+            try {
+                SnapshotInput frame = SnapshotInput.ofBody(data, position);
+                int length = frame.readVarInt();
+                long expected = 0;
+                for (int i = 0; i < 4; i++) {
+                    expected = (expected << 8) | frame.readByte();
+                }
+                int start = frame.getPosition();
+                if (length < 0 || start + length > data.length) {
+                    break;
+                }
+                checksum.reset();
+                checksum.update(data, start, length);
+                if (checksum.getValue() != expected) {
+                    break;
+                }
+                records.add(readRecord(SnapshotInput.ofBody(data, start)));
+                position = start + length;
+            } catch (IOException e) {
+                break;
+            }
+        }
+        channel.truncate(position);
+        channel.position(position);
+        if (!records.isEmpty()) {
+            lastSequence = Math.max(lastSequence, records.get(records.size() - 1).getSequence());
+        }
+        return records;
+    }
+
+    /**
+     * makes the sequence numbers carry on after the given one, used so
+     * that new records come after those already in a snapshot
+     *
+     * @param sequence the last sequence number used
+     */
+    public synchronized void continueAfter(long sequence) {
+        lastSequence = Math.max(lastSequence, sequence);
+    }
+
+    /**
+     * appends a record of a change, before the change is made. If the record
+     * cannot be written it is taken back out of the journal, so the change
+     * must not be made.
+     *
+     * @param type   the kind of change
+     * @param values the values the change will be made with
+     * @return the sequence number of the record
+     * @throws IOException if the record cannot be written
+     */
+    public synchronized long append(int type, Object... values) throws IOException {
+        int mark = pending.size();
+        lastSequence++;
+        SnapshotOutput record = new SnapshotOutput();
+        record.writeVarLong(lastSequence);
+        record.writeVarInt(type);
+        record.writeVarInt(values.length);
+        for (int i = 0; i < values.length; i++) {
+            writeValue(record, values[i]);
+        }
+        byte[] payload = record.toByteArray();
+        CRC32 checksum = new CRC32();
+        checksum.update(payload, 0, payload.length);
+        long value = checksum.getValue();
+
+        pending.writeVarInt(payload.length);
+        for (int i = 3; i >= 0; i--) {
+            pending.writeByte((int) (value >>> (i * 8)));
+        }
+        for (int i = 0; i < payload.length; i++) {
+            pending.writeByte(payload[i]);
+        }
+        pendingCount++;
+
+        try {
+            if (policy == JournalSyncPolicy.EVERY_RECORD) {
+                write(true);
+            } else if (policy == JournalSyncPolicy.OPERATING_SYSTEM) {
+                write(false);
+            } else if (pendingCount >= groupSize) {
+                write(true);
+            }
+        } catch (IOException e) {
+            /* the records before this one were made with their changes, so only this one is dropped */
+            byte[] kept = pending.toByteArray();
+            pending = new SnapshotOutput();
+            for (int i = 0; i < mark; i++) {
+                pending.writeByte(kept[i]);
+            }
+            pendingCount--;
+            lastSequence--;
+            throw e;
+        }
+        return lastSequence;
+    }
+
+    public synchronized long getLastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * writes any records still waiting and forces them to disk
+     *
+     * @throws IOException if the records cannot be written
+     */
+    public synchronized void sync() throws IOException {
+        if (pendingCount > 0 || policy == JournalSyncPolicy.OPERATING_SYSTEM) {
+            write(true);
+        }
+    }
+
+    /**
+     * empties the journal, used once a snapshot holding
+     * every change in it has been saved
+     *
+     * @throws IOException if the journal cannot be emptied
+     */
+    public synchronized void truncate() throws IOException {
+        pending = new SnapshotOutput();
+        pendingCount = 0;
+        channel.truncate(0);
+        channel.force(true);
+    }
+
+    /**
+     * writes any records still waiting and closes the journal
+     *
+     * @throws IOException if the records cannot be written
+     */
+    public synchronized void close() throws IOException {
+        if (groupTimer != null) {
+            groupTimer.cancel();
+        }
+        sync();
+        channel.close();
+        file.close();
+    }
+
+    /**
+     * writes the records waiting. If they cannot all be written the file is
+     * cut back to where it was and they are kept waiting, so a record is
+     * never left half written or written twice.
+     *
+     * @param force true if the records are forced to disk
+     * @throws IOException if the records cannot be written
+     */
+    private void write(boolean force) throws IOException {
+        long start = channel.position();
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(pending.toByteArray());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            if (force) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            try {
+                channel.truncate(start);
+                channel.position(start);
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+        pending = new SnapshotOutput();
+        pendingCount = 0;
+    }
+
+    private static void writeValue(SnapshotOutput out, Object value) {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof Integer) {
+            out.writeByte(INT);
+            out.writeSignedVarLong((Integer) value);
+        } else if (value instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof String) {
+            out.writeByte(STRING);
+            out.writeInlineString((String) value);
+        } else if (value instanceof LocalTime) {
+            out.writeByte(TIME);
+            out.writeVarLong(((LocalTime) value).toNanoOfDay());
+        } else if (value instanceof LocalDateTime) {
+            out.writeByte(DATE_TIME);
+            out.writeSignedVarLong(((LocalDateTime) value).toLocalDate().toEpochDay());
+            out.writeVarLong(((LocalDateTime) value).toLocalTime().toNanoOfDay());
+        } else if (value instanceof StageType) {
+            out.writeByte(STAGE_TYPE);
+            out.writeVarInt(((StageType) value).ordinal());
+        } else if (value instanceof SegmentType) {
+            out.writeByte(SEGMENT_TYPE);
+            out.writeVarInt(((SegmentType) value).ordinal());
+        } else if (value instanceof int[]) {
+            int[] ints = (int[]) value;
+            out.writeByte(INT_ARRAY);
+            out.writeVarInt(ints.length);
+            for (int i = 0; i < ints.length; i++) {
+                out.writeSignedVarLong(ints[i]);
+            }
+        } else if (value instanceof LocalTime[]) {
+            out.writeByte(TIME_ARRAY);
+            writeTimes(out, (LocalTime[]) value);
+        } else if (value instanceof long[]) {
+            long[] nanos = (long[]) value;
+            out.writeByte(NANOS_ARRAY);
+            out.writeVarInt(nanos.length);
+            long previous = 0;
+            for (int i = 0; i < nanos.length; i++) {
+                out.writeSignedVarLong(nanos[i] - previous);
+                previous = nanos[i];
+            }
+        } else if (value instanceof LocalTime[][]) {
+            LocalTime[][] times = (LocalTime[][]) value;
+            out.writeByte(TIME_ARRAYS);
+            out.writeVarInt(times.length);
+            for (int i = 0; i < times.length; i++) {
+                writeTimes(out, times[i]);
+            }
+        } else {
+            throw new IllegalArgumentException("A " + value.getClass().getName() + " cannot be journalled.");
+        }
+    }
+
+    /**
+     * writes checkpoints, each as the gap to the one before
+     * as they are usually close together
+     */
+    private static void writeTimes(SnapshotOutput out, LocalTime[] times) {
+        out.writeVarInt(times.length);
+        long previous = 0;
+        for (int i = 0; i < times.length; i++) {
+            long time = times[i].toNanoOfDay();
+            out.writeSignedVarLong(time - previous);
+            previous = time;
+        }
+    }
+
+    private static LocalTime[] readTimes(SnapshotInput in) throws IOException {
+        LocalTime[] times = new LocalTime[in.readVarInt()];
+        long time = 0;
+        for (int i = 0; i < times.length; i++) {
+            time += in.readSignedVarLong();
+            times[i] = LocalTime.ofNanoOfDay(time);
+        }
+        return times;
+    }
+
+    private static JournalRecord readRecord(SnapshotInput in) throws IOException {
+        long sequence = in.readVarLong();
+        int type = in.readVarInt();
+        Object[] values = new Object[in.readVarInt()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = readValue(in);
+        }
+        return new JournalRecord(sequence, type, values);
+    }
+
+    private static Object readValue(SnapshotInput in) throws IOException {
+        int tag = in.readByte();
+        switch (tag) {
+            case NULL:
+                return null;
+            case INT:
+                return (int) in.readSignedVarLong();
+            case DOUBLE:
+                return in.readDouble();
+            case STRING:
+                return in.readInlineString();
+            case TIME:
+                return LocalTime.ofNanoOfDay(in.readVarLong());
+            case DATE_TIME:
+                LocalDate date = LocalDate.ofEpochDay(in.readSignedVarLong());
+                return LocalDateTime.of(date, LocalTime.ofNanoOfDay(in.readVarLong()));
+            case STAGE_TYPE:
+                return StageType.values()[in.readVarInt()];
+            case SEGMENT_TYPE:
+                return SegmentType.values()[in.readVarInt()];
+            case INT_ARRAY:
+                int[] ints = new int[in.readVarInt()];
+                for (int i = 0; i < ints.length; i++) {
+                    ints[i] = (int) in.readSignedVarLong();
+                }
+                return ints;
+            case TIME_ARRAY:
+                return readTimes(in);
+            case TIME_ARRAYS:
+                LocalTime[][] times = new LocalTime[in.readVarInt()][];
+                for (int i = 0; i < times.length; i++) {
+                    times[i] = readTimes(in);
+                }
+                return times;
+            case NANOS_ARRAY:
+                long[] nanos = new long[in.readVarInt()];
+                long previous = 0;
+                for (int i = 0; i < nanos.length; i++) {
+                    previous += in.readSignedVarLong();
+                    nanos[i] = previous;
+                }
+                return nanos;
+            default:
+                throw new IOException("The journal has a value of an unknown kind (" + tag + ").");
+        }
+    }
+}
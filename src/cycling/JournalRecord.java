@@ -0,0 +1,36 @@
+package cycling;
+
+/**
+ * JournalRecord - A class which holds one change read back from the journal:
+ * its sequence number, the kind of change and the values it was made with.
+ */
+public class JournalRecord {
+    private long sequence;
+    private int type;
+    private Object[] values;
+
+    /**
+     * Constructor for the Objects of JournalRecord class
+     *
+     * @param sequence the sequence number of the record
+     * @param type     the kind of change, one of the Journal constants
+     * @param values   the values the change was made with
+     */
+    public JournalRecord(long sequence, int type, Object[] values) {
+        this.sequence = sequence;
+        this.type = type;
+        this.values = values;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public Object[] getValues() {
+        return values;
+    }
+}
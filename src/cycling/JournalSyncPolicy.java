@@ -0,0 +1,15 @@
+package cycling;
+
+/**
+ * JournalSyncPolicy - how often the journal forces its records to disk.
+ * <p>
+ * EVERY_RECORD forces each record before the change returns. GROUP_COMMIT
+ * gathers records and forces them together, once enough are waiting or a
+ * short delay has passed, so a crash loses at most that group.
+ * OPERATING_SYSTEM writes each record but leaves forcing it to the system.
+ */
+public enum JournalSyncPolicy {
+    EVERY_RECORD,
+    GROUP_COMMIT,
+    OPERATING_SYSTEM
+}
@@ -0,0 +1,99 @@
+package cycling;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * LeasedIds - A class which keeps the Ids leased from a counter which have
+ * not been used yet. They are held as ranges, so a block of Ids leased by
+ * an importer takes one entry however large it is, and an Id is taken out
+ * of its range the first time it is used so it can never be used again,
+ * even once the object given it has been removed.
+ */
+public class LeasedIds {
+    // the first Id of each range and the Id after its last
+    private final TreeMap<Integer, Integer> ranges = new TreeMap<Integer, Integer>();
+
+    /**
+     * adds a block of Ids which has just been leased
+     *
+     * @param firstId the first Id of the block
+     * @param count   the number of Ids
+     */
+    public synchronized void add(int firstId, int count) {
+        ranges.put(firstId, firstId + count);
+    }
+
+    /**
+     * checks if an Id is leased and not yet used
+     *
+     * @param id the Id
+     * @return true if the Id is leased and not yet used, false if not
+     */
+    public synchronized boolean contains(int id) {
+        Map.Entry<Integer, Integer> range = ranges.floorEntry(id);
+        return range != null && id < range.getValue();
+    }
+
+    /**
+     * takes an Id out of the leased Ids, as it is about to be used
+     *
+     * @param id the Id
+     * @return true if the Id was leased and not yet used, false if not
+     */
+    public synchronized boolean take(int id) {
+        Map.Entry<Integer, Integer> range = ranges.floorEntry(id);
+        if (range == null || id >= range.getValue()) {
+            return false;
+        }
+        int first = range.getKey();
+        int end = range.getValue();
+        ranges.remove(first);
+        if (first < id) {
+            ranges.put(first, id);
+        }
+        if (id + 1 < end) {
+            ranges.put(id + 1, end);
+        }
+        return true;
+    }
+
+    public synchronized void clear() {
+        ranges.clear();
+    }
+
+    /**
+     * writes the ranges to a snapshot, each as the gap from the end of the
+     * range before and its length
+     *
+     * @param out the snapshot being written
+     */
+    public synchronized void writeSnapshot(SnapshotOutput out) {
+        out.writeVarInt(ranges.size());
+        int previous = 0;
+        for (Map.Entry<Integer, Integer> range : ranges.entrySet()) {
+            out.writeVarInt(range.getKey() - previous);
+            out.writeVarInt(range.getValue() - range.getKey());
+            previous = range.getValue();
+        }
+    }
+
+    /**
+     * reads ranges written by {@link #writeSnapshot(SnapshotOutput)} in
+     * place of the ones held
+     *
+     * @param in the snapshot being read
+     * @throws IOException if the snapshot is not valid
+     */
+    public synchronized void readSnapshot(SnapshotInput in) throws IOException {
+        ranges.clear();
+        int rangeCount = in.readVarInt();
+        int previous = 0;
+        for (int i = 0; i < rangeCount; i++) {
+            int first = previous + in.readVarInt();
+            previous = first + in.readVarInt();
+            ranges.put(first, previous);
+        }
+    }
+}
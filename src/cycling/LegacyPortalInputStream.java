@@ -0,0 +1,46 @@
+package cycling;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.util.ArrayList;
+
+/**
+ * LegacyPortalInputStream - A class which reads portals saved with Java
+ * serialization, before the binary snapshot format. The riders and segments
+ * are kept inside teams and stages which do not give them out, so they are
+ * collected as they are read so that they can be saved again as a snapshot.
+ */
+public class LegacyPortalInputStream extends ObjectInputStream {
+    private ArrayList<Rider> riderObjects = new ArrayList<Rider>();
+    private ArrayList<Segment> segmentObjects = new ArrayList<Segment>();
+
+    /**
+     * Constructor for the Objects of LegacyPortalInputStream class
+     *
+     * @param in the stream the portal is read from
+     * @throws IOException if the stream header cannot be read
+     */
+    public LegacyPortalInputStream(InputStream in) throws IOException {
+        super(in);
+        enableResolveObject(true);
+    }
+
+    @Override
+    protected Object resolveObject(Object obj) throws IOException {
+        if (obj instanceof Rider) {
+            riderObjects.add((Rider) obj);
+        } else if (obj instanceof Segment) {
+            segmentObjects.add((Segment) obj);
+        }
+        return obj;
+    }
+
+    public ArrayList<Rider> getRiders() {
+        return riderObjects;
+    }
+
+    public ArrayList<Segment> getSegments() {
+        return segmentObjects;
+    }
+}
@@ -0,0 +1,394 @@
+package cycling;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.time.LocalTime;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * LiveStage - A class which follows a stage while it is being ridden. The
+ * checkpoints of each rider are recorded one at a time as they are reported,
+ * and the order the riders crossed each segment is kept up to date, so the
+ * sprint and climb points are known before anyone has finished.
+ * <p>
+ * Checkpoint 0 is the start and the last checkpoint is the finish. The
+ * riders are placed at the k-th segment, in the order of the stage's segment
+ * Ids, by their time from the start to checkpoint k, the same checkpoint the
+ * stage's plan gives the points from, so the first segment is placed from
+ * the start. Only the riders still being followed are kept here, the riders
+ * whose results have been sealed are taken from the stage's results and go
+ * before riders still riding on the same time, in finish order. Once every
+ * rider has finished the live order and points are those of the stage.
+ */
+public class LiveStage implements Serializable {
+    // fixed, as a live stage is saved along with its race, so saves still load once fields are added
+    private static final long serialVersionUID = 5313396750426012299L;
+    private static final long NOT_PASSED = -1;
+
+    private SegmentType[] segmentTypes;
+    // the checkpoints each rider has passed as nanoseconds of the day
+    private HashMap<Integer, long[]> passings = new HashMap<Integer, long[]>();
+    private HashMap<Integer, Integer> passingCounts = new HashMap<Integer, Integer>();
+    /*
+     * the riders still being followed who are placed at each segment along
+     * with their times from their start, sorted by that time so the order
+     * is always ready. They are worked out again from the passings when the
+     * object is read back.
+     */
+    private transient int[][] crossingRiders;
+    private transient long[][] crossingTimes;
+    private transient int[] crossingCounts;
+
+    /**
+     * Constructor for the Objects of LiveStage class
+     *
+     * @param segmentTypes the types of the stage's segments in order, a type
+     *                     may be null if it is not known
+     */
+    public LiveStage(SegmentType[] segmentTypes) {
+        this.segmentTypes = segmentTypes;
+        clearCrossings();
+    }
+
+    public int getCheckpointCount() {
+        return segmentTypes.length + 2;
+    }
+
+    /**
+     * gets the number of riders being followed
+     *
+     * @return the number of riders who have passed a checkpoint but not
+     *         yet finished
+     */
+    public int getRiderCount() {
+        return passings.size();
+    }
+
+    /**
+     * gets the riders being followed
+     *
+     * @return the rider Ids in no particular order
+     */
+    public int[] getRiderIds() {
+        int[] riderIds = new int[passings.size()];
+        int count = 0;
+        for (Integer riderId : passings.keySet()) {
+            riderIds[count++] = riderId;
+        }
+        return riderIds;
+    }
+
+    /**
+     * checks if a rider has already passed a checkpoint
+     *
+     * @param riderId         the Id of the rider
+     * @param checkpointIndex the index of the checkpoint
+     * @return true if the passing has been recorded, false if it hasn't
+     */
+    public boolean hasPassed(int riderId, int checkpointIndex) {
+        long[] checkpoints = passings.get(riderId);
+        return checkpoints != null && checkpoints[checkpointIndex] != NOT_PASSED;
+    }
+
+    /**
+     * records a rider passing a checkpoint. Once the rider has passed every
+     * checkpoint, the finish included, the rider's checkpoints are returned
+     * so a result can be registered and the rider is no longer followed.
+     *
+     * @param riderId         the Id of the rider
+     * @param checkpointIndex the index of the checkpoint
+     * @param time            the time the checkpoint was passed
+     * @return the rider's checkpoints if they are now all known, otherwise null
+     */
+    public LocalTime[] recordPassing(int riderId, int checkpointIndex, LocalTime time) {
+        long[] checkpoints = passings.get(riderId);
+        if (checkpoints == null) {
+            checkpoints = new long[getCheckpointCount()];
+            Arrays.fill(checkpoints, NOT_PASSED);
+            passings.put(riderId, checkpoints);
+            passingCounts.put(riderId, 0);
+        }
+        checkpoints[checkpointIndex] = time.toNanoOfDay();
+        int passed = passingCounts.get(riderId) + 1;
+        passingCounts.put(riderId, passed);
+
+        /*
+         * a segment can only be timed once the start is known, so the start
+         * being reported late places the rider at every segment already passed
+         */
+        if (checkpointIndex == 0) {
+            addCrossings(riderId, checkpoints);
+        } else if (checkpointIndex < segmentTypes.length && checkpoints[0] != NOT_PASSED) {
+            addCrossing(checkpointIndex, riderId, checkpoints[checkpointIndex] - checkpoints[0]);
+        }
+
+        if (passed < checkpoints.length) {
+            return null;
+        }
+        // the rider's result is sealed, from now on the rider is placed from it
+        removeRider(riderId);
+        LocalTime[] times = new LocalTime[checkpoints.length];
+        for (int k = 0; k < checkpoints.length; k++) {
+            times[k] = LocalTime.ofNanoOfDay(checkpoints[k]);
+        }
+        return times;
+    }
+
+    /**
+     * gets the riders who have crossed a segment
+     *
+     * @param segmentIndex the position of the segment in the stage
+     * @param results      the sealed results of the stage
+     * @return the rider Ids in the order they are placed at the segment
+     */
+    public int[] getCrossingOrder(int segmentIndex, StageResults results) {
+        int resultCount = results.size();
+        long[] times = new long[resultCount];
+        for (int i = 0; i < resultCount; i++) {
+            times[i] = StagePlan.getSegmentTime(results, i, segmentIndex);
+        }
+        int[] order = Ranking.orderByTime(times);
+        int count = crossingCounts[segmentIndex];
+        int[] riderIds = new int[resultCount + count];
+        int sealed = 0;
+        int live = 0;
+        while (sealed < resultCount || live < count) {
+            if (live == count
+                    || sealed < resultCount && times[order[sealed]] <= crossingTimes[segmentIndex][live]) {
+                riderIds[sealed + live] = results.getRiderId(order[sealed++]);
+            } else {
+                riderIds[sealed + live] = crossingRiders[segmentIndex][live++];
+            }
+        }
+        return riderIds;
+    }
+
+    /**
+     * gets the points every rider has won so far, from the sprints if
+     * mountain is false or from the climbs if it is true
+     *
+     * @param riderIds the Ids of the riders
+     * @param mountain whether the climbs are counted rather than the sprints
+     * @param results  the sealed results of the stage
+     * @param plan     the plan of the stage, which gives the points
+     * @return the points in the same order as the rider Ids
+     */
+    public int[] getRidersPoints(int[] riderIds, boolean mountain, StageResults results, StagePlan plan) {
+        HashMap<Integer, Integer> pointsMap = new HashMap<Integer, Integer>();
+        for (int k = 0; k < segmentTypes.length; k++) {
+            SegmentType type = segmentTypes[k];
+            if (type == null || type.equals(SegmentType.SPRINT) == mountain) {
+                continue;
+            }
+            // the sealed and live riders placed high enough to score are merged
+            int[] leaders = plan.getSegmentLeaders(results, k);
+            int count = crossingCounts[k];
+            int sealed = 0;
+            int live = 0;
+            for (int place = 0; place < plan.getScoringPlaces(k); place++) {
+                int riderId;
+                if (sealed < leaders.length && (live == count || StagePlan.getSegmentTime(results, leaders[sealed],
+                        k) <= crossingTimes[k][live])) {
+                    riderId = results.getRiderId(leaders[sealed++]);
+                } else if (live < count) {
+                    riderId = crossingRiders[k][live++];
+                } else {
+                    break;
+                }
+                Integer points = pointsMap.get(riderId);
+                pointsMap.put(riderId, (points == null ? 0 : points) + plan.getSegmentPoints(k, place));
+            }
+        }
+        int[] points = new int[riderIds.length];
+        for (int i = 0; i < riderIds.length; i++) {
+            Integer riderPoints = pointsMap.get(riderIds[i]);
+            points[i] = riderPoints == null ? 0 : riderPoints;
+        }
+        return points;
+    }
+
+    /**
+     * gets every rider who is placed at at least one segment, the riders
+     * whose results are sealed are placed at every segment
+     *
+     * @param results the sealed results of the stage
+     * @return the rider Ids in ascending order
+     */
+    public int[] getCrossedRiders(StageResults results) {
+        if (segmentTypes.length == 0) {
+            return new int[0];
+        }
+        int total = results.size();
+        for (int k = 0; k < segmentTypes.length; k++) {
+            total += crossingCounts[k];
+        }
+        int[] riderIds = new int[total];
+        int count = results.size();
+        for (int i = 0; i < count; i++) {
+            riderIds[i] = results.getRiderId(i);
+        }
+        for (int k = 0; k < segmentTypes.length; k++) {
+            System.arraycopy(crossingRiders[k], 0, riderIds, count, crossingCounts[k]);
+            count += crossingCounts[k];
+        }
+        Arrays.sort(riderIds);
+        int unique = 0;
+        for (int i = 0; i < count; i++) {
+            if (unique == 0 || riderIds[unique - 1] != riderIds[i]) {
+                riderIds[unique++] = riderIds[i];
+            }
+        }
+        return Arrays.copyOf(riderIds, unique);
+    }
+
+    /**
+     * forgets a rider, used when the rider's result is sealed or the rider
+     * or the rider's results are removed. The crossing orders are always
+     * searched, so nothing of the rider's is left behind.
+     *
+     * @param riderId the Id of the rider
+     * @return true if anything of the rider's was kept, false if not
+     */
+    public boolean removeRider(int riderId) {
+        boolean removed = passings.remove(riderId) != null;
+        passingCounts.remove(riderId);
+        for (int k = 0; k < segmentTypes.length; k++) {
+            int count = crossingCounts[k];
+            for (int i = 0; i < count; i++) {
+                if (crossingRiders[k][i] == riderId) {
+                    System.arraycopy(crossingRiders[k], i + 1, crossingRiders[k], i, count - i - 1);
+                    System.arraycopy(crossingTimes[k], i + 1, crossingTimes[k], i, count - i - 1);
+                    crossingCounts[k]--;
+                    removed = true;
+                    break;
+                }
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * writes the live timing to a snapshot
+     *
+     * @param out the snapshot being written
+     */
+    public void writeSnapshot(SnapshotOutput out) {
+        out.writeVarInt(segmentTypes.length);
+        for (int k = 0; k < segmentTypes.length; k++) {
+            out.writeVarInt(segmentTypes[k] == null ? 0 : segmentTypes[k].ordinal() + 1);
+        }
+        out.writeVarInt(passings.size());
+        for (Integer riderId : passings.keySet()) {
+            out.writeVarInt(riderId);
+            long[] checkpoints = passings.get(riderId);
+            for (int k = 0; k < checkpoints.length; k++) {
+                out.writeSignedVarLong(checkpoints[k]);
+            }
+        }
+    }
+
+    /**
+     * reads live timing written by {@link #writeSnapshot(SnapshotOutput)}
+     *
+     * @param in the snapshot being read
+     * @return the live timing object
+     * @throws IOException if the snapshot is not valid
+     */
+    public static LiveStage readSnapshot(SnapshotInput in) throws IOException {
+        SegmentType[] types = new SegmentType[in.readVarInt()];
+        for (int k = 0; k < types.length; k++) {
+            int type = in.readVarInt();
+            types[k] = type == 0 ? null : SegmentType.values()[type - 1];
+        }
+        LiveStage liveStage = new LiveStage(types);
+        int riderCount = in.readVarInt();
+        for (int i = 0; i < riderCount; i++) {
+            int riderId = in.readVarInt();
+            long[] checkpoints = new long[liveStage.getCheckpointCount()];
+            int passed = 0;
+            for (int k = 0; k < checkpoints.length; k++) {
+                checkpoints[k] = in.readSignedVarLong();
+                if (checkpoints[k] != NOT_PASSED) {
+                    passed++;
+                }
+            }
+            liveStage.passings.put(riderId, checkpoints);
+            liveStage.passingCounts.put(riderId, passed);
+        }
+        // the crossings are worked out from the passings
+        liveStage.clearCrossings();
+        return liveStage;
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        clearCrossings();
+    }
+
+    /**
+     * empties the crossing orders and places every rider being followed
+     * again from their passings
+     */
+    private void clearCrossings() {
+        crossingRiders = new int[segmentTypes.length][16];
+        crossingTimes = new long[segmentTypes.length][16];
+        crossingCounts = new int[segmentTypes.length];
+        for (Integer riderId : passings.keySet()) {
+            addCrossings(riderId, passings.get(riderId));
+        }
+    }
+
+    /**
+     * places a rider at every segment whose checkpoint the rider has passed,
+     * once the rider's start is known
+     *
+     * @param riderId     the Id of the rider
+     * @param checkpoints the rider's passings
+     */
+    private void addCrossings(int riderId, long[] checkpoints) {
+        if (checkpoints[0] == NOT_PASSED) {
+            return;
+        }
+        for (int k = 0; k < segmentTypes.length; k++) {
+            if (checkpoints[k] != NOT_PASSED) {
+                addCrossing(k, riderId, checkpoints[k] - checkpoints[0]);
+            }
+        }
+    }
+
+    /**
+     * adds a rider to the crossing order of a segment, riders with the
+     * same time are kept in the order of their Ids so the order is the
+     * same however the passings were reported
+     *
+     * @param segmentIndex the position of the segment in the stage
+     * @param riderId      the Id of the rider
+     * @param time         the time from the rider's start to the segment
+     */
+    private void addCrossing(int segmentIndex, int riderId, long time) {
+        int count = crossingCounts[segmentIndex];
+        if (count == crossingRiders[segmentIndex].length) {
+            crossingRiders[segmentIndex] = Arrays.copyOf(crossingRiders[segmentIndex], count * 2);
+            crossingTimes[segmentIndex] = Arrays.copyOf(crossingTimes[segmentIndex], count * 2);
+        }
+        int[] riders = crossingRiders[segmentIndex];
+        long[] times = crossingTimes[segmentIndex];
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (times[middle] < time || times[middle] == time && riders[middle] < riderId) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        System.arraycopy(riders, low, riders, low + 1, count - low);
+        System.arraycopy(times, low, times, low + 1, count - low);
+        riders[low] = riderId;
+        times[low] = time;
+        crossingCounts[segmentIndex] = count + 1;
+    }
+}
@@ -0,0 +1,21 @@
+package cycling;
+
+/**
+ * PortalCommand - a piece of work submitted to a ShardedCyclingPortal,
+ * applied to the portal by the worker which owns the data it touches.
+ *
+ * @param <T> the type of the answer, Void for commands which only change
+ *            the portal
+ */
+public interface PortalCommand<T> {
+
+    /**
+     * applies the command to the portal
+     *
+     * @param portal the portal, only to be used within this call
+     * @return the answer of the command
+     * @throws Exception if the portal rejects the command, the exception
+     *                   completes the command's future
+     */
+    T apply(CyclingPortal portal) throws Exception;
+}
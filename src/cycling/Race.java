@@ -1,9 +1,13 @@
 package cycling;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
 import java.time.LocalTime;
-import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 
@@ -12,10 +16,41 @@ import java.util.HashMap;
  * and handles some of the operations related to races.
  */
 public class Race implements Serializable {
+    // kept as it was before any fields were added, so older saves still load
+    private static final long serialVersionUID = -5152439650629275387L;
+    // a day in nanoseconds, where LocalTime wraps around, also used by RaceVersion
+    static final long NANOS_PER_DAY = 24L * 60 * 60 * 1000000000L;
+
     private int id;
     private String name;
     private String description;
     private ArrayList<Stage> stageObjects = new ArrayList<Stage>();
+    // the segments of the stages by Id, null in races saved before they were kept
+    private HashMap<Integer, Segment> segmentObjects;
+    // the stages being followed live by stage Id, null in older saves
+    private HashMap<Integer, LiveStage> liveStages;
+    // rebuilt from the stages when the race is loaded
+    private transient GeneralClassification generalClassification;
+    // the results of the stages in columns, rebuilt when the race is loaded
+    private transient HashMap<Integer, StageResults> stageResults;
+    // where the result columns are kept, null for the heap
+    private transient ResultStorage resultStorage;
+    // rankings of the stages, dropped when a stage's results change
+    private transient HashMap<Integer, StageRanking> stageRankings;
+    // the stages' results published to readers, dropped along with the rankings
+    private transient HashMap<Integer, StageVersion> stageVersions;
+    // the rows the published stages are built from, dropped when a result is removed
+    private transient HashMap<Integer, StageVersion.Builder> stageVersionBuilders;
+    // the plans of the stages, dropped when a stage's segments change
+    private transient HashMap<Integer, StagePlan> stagePlans;
+    // every classification of the race, dropped when anything changes
+    private transient RaceStandings standings;
+    // false until the race is written to its own file, and again once it changes
+    private transient boolean saved;
+    // set while only the details of the race are held, see RaceArchive
+    private transient boolean archived;
+    private transient int archivedStageCount;
+    private transient double archivedTotalLength;
 
     /**
      * Constructor for the Objects of Race class
@@ -30,6 +65,145 @@ public class Race implements Serializable {
         this.description = description;
     }
 
+    /**
+     * creates a race of which only the details are held, its stages are
+     * read from the archive the first time they are needed
+     * 
+     * @param id          the Id of the race
+     * @param name        the name of the race
+     * @param description the description of the race
+     * @param stageCount  the number of stages
+     * @param totalLength the total length of the stages in kms
+     * @return the race object
+     */
+    public static Race archived(int id, String name, String description, int stageCount, double totalLength) {
+        Race race = new Race(id, name, description);
+        race.stageObjects = null;
+        race.archived = true;
+        race.saved = true;
+        race.archivedStageCount = stageCount;
+        race.archivedTotalLength = totalLength;
+        return race;
+    }
+
+    public boolean isArchived() {
+        return archived;
+    }
+
+    /**
+     * drops the stages of the race and keeps only its details,
+     * used once the race is saved and has not been used for a while
+     */
+    public void archive() {
+        archivedStageCount = getNumberOfStages();
+        archivedTotalLength = getTotalLength();
+        stageObjects = null;
+        segmentObjects = null;
+        liveStages = null;
+        generalClassification = null;
+        stageResults = null;
+        stageRankings = null;
+        stageVersions = null;
+        stageVersionBuilders = null;
+        stagePlans = null;
+        standings = null;
+        archived = true;
+    }
+
+    /**
+     * takes the stages of an archived race from the race read back
+     * from its file
+     * 
+     * @param loaded the race read from the file
+     */
+    public void restore(Race loaded) {
+        stageObjects = loaded.stageObjects;
+        segmentObjects = loaded.segmentObjects;
+        liveStages = loaded.liveStages;
+        // the columns were read back into this race's storage
+        stageResults = loaded.stageResults;
+        stageRankings = loaded.stageRankings;
+        standings = loaded.standings;
+        stageVersions = null;
+        stageVersionBuilders = null;
+        stagePlans = null;
+        archived = false;
+        saved = true;
+    }
+
+    /**
+     * gets the Ids of the stages of the race
+     * 
+     * @return the stage Ids in the order of the stages
+     */
+    public int[] getStageIds() {
+        checkStagesHeld();
+        int[] stageIds = new int[stageObjects.size()];
+        for (int j = 0; j < stageIds.length; j++) {
+            stageIds[j] = stageObjects.get(j).getId();
+        }
+        return stageIds;
+    }
+
+    /**
+     * gets the Ids of the segments of every stage of the race
+     * 
+     * @return the segment Ids in the order of the stages
+     */
+    public int[] getSegmentIds() {
+        checkStagesHeld();
+        int segmentCount = 0;
+        for (int j = 0; j < stageObjects.size(); j++) {
+            segmentCount += stageObjects.get(j).getSegmentsCount();
+        }
+        int[] segmentIds = new int[segmentCount];
+        segmentCount = 0;
+        for (int j = 0; j < stageObjects.size(); j++) {
+            int[] stageSegmentIds = stageObjects.get(j).getSegmentIds();
+            System.arraycopy(stageSegmentIds, 0, segmentIds, segmentCount, stageSegmentIds.length);
+            segmentCount += stageSegmentIds.length;
+        }
+        return segmentIds;
+    }
+
+    /**
+     * gets the Ids of every rider with a result in one of the race's
+     * stages or being followed live in one of them
+     * 
+     * @return the rider Ids in ascending order
+     */
+    public int[] getRiderIds() {
+        checkStagesHeld();
+        int riderCount = 0;
+        for (int j = 0; j < stageObjects.size(); j++) {
+            riderCount += getStageResults(stageObjects.get(j)).size();
+        }
+        for (LiveStage liveStage : getLiveStages().values()) {
+            riderCount += liveStage.getRiderCount();
+        }
+        int[] riderIds = new int[riderCount];
+        riderCount = 0;
+        for (int j = 0; j < stageObjects.size(); j++) {
+            StageResults results = getStageResults(stageObjects.get(j));
+            for (int i = 0; i < results.size(); i++) {
+                riderIds[riderCount++] = results.getRiderId(i);
+            }
+        }
+        for (LiveStage liveStage : getLiveStages().values()) {
+            int[] liveRiderIds = liveStage.getRiderIds();
+            System.arraycopy(liveRiderIds, 0, riderIds, riderCount, liveRiderIds.length);
+            riderCount += liveRiderIds.length;
+        }
+        Arrays.sort(riderIds);
+        int unique = 0;
+        for (int i = 0; i < riderCount; i++) {
+            if (unique == 0 || riderIds[unique - 1] != riderIds[i]) {
+                riderIds[unique++] = riderIds[i];
+            }
+        }
+        return Arrays.copyOf(riderIds, unique);
+    }
+
     public int getId() {
         return id;
     }
@@ -44,17 +218,62 @@ public class Race implements Serializable {
 
     public void setName(String name) {
         this.name = name;
+        saved = false;
     }
 
     public void setDescription(String description) {
         this.description = description;
+        saved = false;
     }
 
     public void addStage(Stage stage) {
+        GeneralClassification classification = getGeneralClassification();
         stageObjects.add(stage);
+        classification.addStage(stage);
+        standings = null;
+        saved = false;
+    }
+
+    /**
+     * checks if the race has changed since it was last written to its own
+     * file, races which have not changed are not written again
+     * 
+     * @return true if the race has changed, false if it hasn't
+     */
+    public boolean hasChanged() {
+        return !saved;
+    }
+
+    /**
+     * records a change made to one of the race's stages directly, such as
+     * a stage concluding or a rider passing a checkpoint
+     */
+    public void markChanged() {
+        saved = false;
+    }
+
+    /**
+     * records that the preparation of one of the race's stages has been
+     * concluded, its plan is compiled now as its segments no longer change
+     * 
+     * @param stage the stage object
+     */
+    public void stageConcluded(Stage stage) {
+        getStagePlan(stage);
+        saved = false;
+    }
+
+    /**
+     * records that the race has been written to its own file
+     */
+    public void markSaved() {
+        saved = true;
     }
 
     public int getNumberOfStages() {
+        if (archived) {
+            return archivedStageCount;
+        }
         return stageObjects.size();
     }
 
@@ -64,6 +283,9 @@ public class Race implements Serializable {
      * @return the total length in kms
      */
     public double getTotalLength() {
+        if (archived) {
+            return archivedTotalLength;
+        }
         int stage_count = stageObjects.size();
         double totalLength = 0;
         for (int i = 0; i < stage_count; i++) {
@@ -73,333 +295,744 @@ public class Race implements Serializable {
     }
 
     public ArrayList<Stage> getStages() {
+        checkStagesHeld();
         return stageObjects;
     }
 
+    /**
+     * checks the stages of the race are held, an archived race only
+     * holds its details until it is read from the archive
+     */
+    private void checkStagesHeld() {
+        if (archived) {
+            throw new IllegalStateException("The stages of race " + id + " have not been read from the archive.");
+        }
+    }
+
     /**
      * Removes a stage from the race
      * 
      * @param stageIndex position of the stage in the arraylist
      */
     public void removeStage(int stageIndex) {
+        getGeneralClassification().removeStage(stageObjects.get(stageIndex));
+        dropRanking(stageObjects.get(stageIndex).getId());
+        dropVersionBuilder(stageObjects.get(stageIndex).getId());
+        getStagePlans().remove(stageObjects.get(stageIndex).getId());
+        StageResults results = getAllStageResults().remove(stageObjects.get(stageIndex).getId());
+        if (results != null) {
+            results.release();
+        }
+        getLiveStages().remove(stageObjects.get(stageIndex).getId());
+        int[] segmentIds = stageObjects.get(stageIndex).getSegmentIds();
+        for (int k = 0; k < segmentIds.length; k++) {
+            getSegments().remove(segmentIds[k]);
+        }
         stageObjects.remove(stageIndex);
+        standings = null;
+        saved = false;
     }
 
-    public int[] getRidersGeneralClassificationRank() {
+    /**
+     * adds a result to one of the race's stages, the result has as many
+     * checkpoints as the stage's plan, as checked when it was registered
+     * 
+     * @param stage  the stage object
+     * @param result the result object
+     */
+    public void addResult(Stage stage, Result result) {
         /*
-         * A loop to check if the stage has results
-         * if not an empty array is returned
+         * the results of a stage are kept sorted by elapsed time, so the
+         * position is found with a binary search over the elapsed time
+         * column
          */
-        int stage_count = stageObjects.size();
-        for (int j = 0; j < stage_count; j++) {
-            if (stageObjects.get(j).getResultsCount() == 0) {
-                return new int[] {};
+        StageResults results = getStageResults(stage);
+        int checkpointCount = getStagePlan(stage).getCheckpointCount();
+        int row = results.findRow(StageResults.elapsedTimeOf(result, checkpointCount));
+        results.insert(row, result, checkpointCount);
+        StageVersion.Builder builder = getVersionBuilder(stage);
+        if (builder != null) {
+            builder.add(results, row);
+        }
+        removeLiveRider(stage, result.getRiderId());
+        resultsChanged(stage);
+    }
+
+    /**
+     * adds many results to one of the race's stages at once, the new
+     * results are sorted and merged with the stage's results in one pass.
+     * Each has as many checkpoints as the stage's plan.
+     * 
+     * @param stage    the stage object
+     * @param riderIds the Ids of the riders
+     * @param times    the checkpoints of each rider one after another, as
+     *                 nanoseconds of the day
+     */
+    public void addResults(Stage stage, int[] riderIds, long[] times) {
+        int checkpointCount = getStagePlan(stage).getCheckpointCount();
+        getStageResults(stage).merge(riderIds, times, checkpointCount);
+        StageVersion.Builder builder = getVersionBuilder(stage);
+        for (int i = 0; i < riderIds.length; i++) {
+            if (builder != null) {
+                builder.add(riderIds[i], times, i * checkpointCount, checkpointCount);
             }
+            removeLiveRider(stage, riderIds[i]);
         }
+        resultsChanged(stage);
+    }
 
-        // A sample of the results of a stage are stored in an arraylist
-        ArrayList<Result> sampleResultObjects = stageObjects.get(0).getResultObjects();
-        int result_count = sampleResultObjects.size();
+    /**
+     * removes a rider's results from one of the race's stages, along with
+     * anything of the rider's the stage's live timing still holds
+     * 
+     * @param stage   the stage object
+     * @param riderId the Id of the rider
+     */
+    public void removeRiderResults(Stage stage, int riderId) {
+        getStageResults(stage).removeRider(riderId);
+        // the rows handed to readers are only ever added to, so they are built again
+        dropVersionBuilder(stage.getId());
+        removeLiveRider(stage, riderId);
+        resultsChanged(stage);
+    }
 
-        /*
-         * A Hashmap to store the riderId along with its corresponding
-         * score is created and is initialized by storing the riderIds
-         * from the array of the sample results
-         */
-        HashMap<Integer, LocalTime> riderHashMap = new HashMap<Integer, LocalTime>();
-        for (int i = 0; i < result_count; i++) {
-            riderHashMap.put(sampleResultObjects.get(i).getRiderId(), LocalTime.ofNanoOfDay(0));
+    /**
+     * removes a rider from the live timing of one of the race's stages,
+     * once the rider has a result it is placed from that instead
+     * 
+     * @param stage   the stage object
+     * @param riderId the Id of the rider
+     */
+    private void removeLiveRider(Stage stage, int riderId) {
+        LiveStage liveStage = getLiveStages().get(stage.getId());
+        if (liveStage != null) {
+            liveStage.removeRider(riderId);
         }
+    }
 
-        LocalTime currentAdjElapsedTime;
-        int rider_count = riderHashMap.size();
-        /*
-         * the key part of the hashmap, which consists of the riderIds
-         * is converted to an arrray which will store the ridersIds
-         */
-        int[] rider_ids = riderHashMap.keySet().stream().mapToInt(Number::intValue).toArray();
+    /**
+     * records a segment added to one of the race's stages
+     * 
+     * @param stage   the stage object
+     * @param segment the segment object
+     */
+    public void segmentAdded(Stage stage, Segment segment) {
+        recordSegment(segment);
+        segmentsChanged(stage);
+    }
 
-        /*
-         * A loop to check if the rider has taken part in all of the stages
-         * of a specific race, if not his riderId is removed from the Hashmap
-         * as it will provide an unfair advantage
-         */
-        for (int j = 0; j < stage_count; j++) {
-            for (int i = 0; i < rider_count; i++) {
-                if (!stageObjects.get(j).doesRiderHaveResult(rider_ids[i])) {
-                    riderHashMap.remove(rider_ids[i]);
-                    rider_count = riderHashMap.size();
-                    rider_ids = riderHashMap.keySet().stream().mapToInt(Number::intValue).toArray();
-                }
+    /**
+     * keeps a segment of one of the race's stages, used for segments
+     * read from a save as well as new ones
+     * 
+     * @param segment the segment object
+     */
+    public void recordSegment(Segment segment) {
+        getSegments().put(segment.getId(), segment);
+    }
+
+    /**
+     * records a segment removed from one of the race's stages
+     * 
+     * @param stage     the stage object
+     * @param segmentId the Id of the segment
+     */
+    public void segmentRemoved(Stage stage, int segmentId) {
+        getSegments().remove(segmentId);
+        segmentsChanged(stage);
+    }
+
+    /**
+     * drops what was worked out from a stage's segments, as the
+     * points of the stage change when a segment is added or removed.
+     * The checkpoints of a stage followed live no longer line up with
+     * its segments, so the passings not yet sealed are dropped too.
+     * 
+     * @param stage the stage object
+     */
+    private void segmentsChanged(Stage stage) {
+        dropRanking(stage.getId());
+        getStagePlans().remove(stage.getId());
+        getLiveStages().remove(stage.getId());
+        standings = null;
+        saved = false;
+    }
+
+    /**
+     * gets the live timing of one of the race's stages,
+     * it is started the first time it is asked for
+     * 
+     * @param stage the stage object
+     * @return the live timing of the stage
+     */
+    public LiveStage getLiveStage(Stage stage) {
+        LiveStage liveStage = getLiveStages().get(stage.getId());
+        if (liveStage == null) {
+            liveStage = new LiveStage(getStagePlan(stage).getSegmentTypes());
+            getLiveStages().put(stage.getId(), liveStage);
+        }
+        return liveStage;
+    }
+
+    /**
+     * removes a rider from every stage being followed live
+     * 
+     * @param riderId the Id of the rider
+     */
+    public void removeLiveRider(int riderId) {
+        for (LiveStage liveStage : getLiveStages().values()) {
+            if (liveStage.removeRider(riderId)) {
+                saved = false;
             }
         }
+    }
 
-        for (int i = 0; i < rider_count; i++) {
-            /*
-             * a loop that loops for the number of stages in a race
-             * it gets current elapsed time of a rider by the function
-             * getRiderAdjustedElapsedTimeInStage and updates the Hashmap
-             * after adding it to the previous sum of elapsed times
-             */
-            for (int j = 0; j < stage_count; j++) {
-                currentAdjElapsedTime = stageObjects.get(j).getRiderAdjustedElapsedTimeInStage(rider_ids[i]);
-                LocalTime elapsedTimeSum = riderHashMap.get(rider_ids[i]);
-                riderHashMap.replace(rider_ids[i],
-                        elapsedTimeSum.plus(currentAdjElapsedTime.toNanoOfDay(), ChronoUnit.NANOS));
+    /**
+     * gets the plan of one of the race's stages, compiled from the types
+     * of its segments in the order of its segment Ids the first time it is
+     * asked for
+     * 
+     * @param stage the stage object
+     * @return the plan of the stage
+     */
+    public StagePlan getStagePlan(Stage stage) {
+        StagePlan plan = getStagePlans().get(stage.getId());
+        if (plan == null) {
+            int[] segmentIds = stage.getSegmentIds();
+            SegmentType[] types = new SegmentType[segmentIds.length];
+            for (int k = 0; k < segmentIds.length; k++) {
+                Segment segment = getSegments().get(segmentIds[k]);
+                types[k] = segment == null ? null : segment.getSegmentType();
             }
+            plan = new StagePlan(stage.getType(), types);
+            getStagePlans().put(stage.getId(), plan);
         }
+        return plan;
+    }
 
-        ArrayList<Result> resultsArray = new ArrayList<Result>();
-        /*
-         * A loop that creates a result object for each rider to store
-         * the riderID along with the result, then each object is
-         * stored in an Arraylist named resultsArray
-         */
-        for (int i = 0; i < rider_count; i++) {
-            Result result = new Result(rider_ids[i], riderHashMap.get(rider_ids[i]));
-            resultsArray.add(result);
+    private HashMap<Integer, StagePlan> getStagePlans() {
+        if (stagePlans == null) {
+            stagePlans = new HashMap<Integer, StagePlan>();
         }
+        return stagePlans;
+    }
 
-        // the resultsArray is sorted by the elapsed time
-        Collections.sort(resultsArray);
+    private HashMap<Integer, Segment> getSegments() {
+        if (segmentObjects == null) {
+            segmentObjects = new HashMap<Integer, Segment>();
+        }
+        return segmentObjects;
+    }
 
-        int[] finalIdsArray = new int[resultsArray.size()];
-        /*
-         * A loop that takes the riderId part of the Hashmap after it
-         * has been sorted by elapsed time to store it an Array named
-         * finalIds which is returned later
-         */
-        for (int i = 0; i < resultsArray.size(); i++) {
-            finalIdsArray[i] = resultsArray.get(i).getRiderId();
+    private HashMap<Integer, LiveStage> getLiveStages() {
+        if (liveStages == null) {
+            liveStages = new HashMap<Integer, LiveStage>();
         }
-        return finalIdsArray;
+        return liveStages;
     }
 
-    public LocalTime[] getGeneralClassificationTimesInRace() {
+    /**
+     * drops what was worked out from a stage's results
+     * 
+     * @param stage the stage object
+     */
+    private void resultsChanged(Stage stage) {
+        dropRanking(stage.getId());
+        getGeneralClassification().stageChanged(stage);
+        standings = null;
+        saved = false;
+    }
 
-        int stage_count = stageObjects.size();
-        /*
-         * A loop to check that the each Stage of the Race has results
-         * otherwise an empty array of localtime is returned
-         */
-        for (int j = 0; j < stage_count; j++) {
-            if (stageObjects.get(j).getResultsCount() == 0) {
-                return new LocalTime[] {};
+    /**
+     * gets the ranking of one of the race's stages, it is
+     * only built again after the stage's results have changed
+     * 
+     * @param stage the stage object
+     * @return the ranking of the stage
+     */
+    public StageRanking getStageRanking(Stage stage) {
+        StageRanking ranking = getStageRankings().get(stage.getId());
+        if (ranking == null) {
+            ranking = new StageRanking(stage, getStageResults(stage), getStagePlan(stage));
+            getStageRankings().put(stage.getId(), ranking);
+        }
+        return ranking;
+    }
+
+    /**
+     * drops what was worked out from the results of one of the race's stages
+     * 
+     * @param stageId the Id of the stage
+     */
+    private void dropRanking(int stageId) {
+        getStageRankings().remove(stageId);
+        if (stageVersions != null) {
+            stageVersions.remove(stageId);
+        }
+    }
+
+    /**
+     * gets the results of one of the race's stages as a version which does
+     * not change, it is made again only once the stage's results change.
+     * The rows are only copied the first time and again after a result is
+     * removed, otherwise the version shares them with the last one.
+     * 
+     * @param stage the stage object
+     * @return the version of the stage
+     */
+    public StageVersion getStageVersion(Stage stage) {
+        if (stageVersions == null) {
+            stageVersions = new HashMap<Integer, StageVersion>();
+        }
+        StageVersion stageVersion = stageVersions.get(stage.getId());
+        if (stageVersion == null) {
+            StageVersion.Builder builder = getVersionBuilder(stage);
+            if (builder == null) {
+                builder = new StageVersion.Builder(getStageResults(stage));
+                stageVersionBuilders.put(stage.getId(), builder);
             }
+            stageVersion = builder.build(stage, getStagePlan(stage));
+            stageVersions.put(stage.getId(), stageVersion);
         }
+        return stageVersion;
+    }
 
-        ArrayList<Result> sampleResultObjects = stageObjects.get(0).getResultObjects();
-        int result_count = sampleResultObjects.size();
+    /**
+     * gets the rows a stage's versions are built from
+     * 
+     * @param stage the stage object
+     * @return the builder, null if no version of the stage has been made
+     *         since it was last dropped
+     */
+    private StageVersion.Builder getVersionBuilder(Stage stage) {
+        if (stageVersionBuilders == null) {
+            stageVersionBuilders = new HashMap<Integer, StageVersion.Builder>();
+        }
+        return stageVersionBuilders.get(stage.getId());
+    }
 
-        HashMap<Integer, LocalTime> riderHashMap = new HashMap<Integer, LocalTime>();
-        // the riderHashmap is initialized by using the riderIds of a specific stage
-        for (int i = 0; i < result_count; i++) {
-            riderHashMap.put(sampleResultObjects.get(i).getRiderId(), LocalTime.ofNanoOfDay(0));
+    private void dropVersionBuilder(int stageId) {
+        if (stageVersionBuilders != null) {
+            stageVersionBuilders.remove(stageId);
         }
+    }
 
-        LocalTime currentAdjElapsedTime;
-        int rider_count = riderHashMap.size();
-        int[] rider_ids = riderHashMap.keySet().stream().mapToInt(Number::intValue).toArray();
+    /**
+     * makes a version of the race which readers can use while the race
+     * carries on changing. The stages which have not changed since the
+     * last version are shared with it, and its standings are worked out
+     * when they are first read rather than here, unless the race already
+     * has them.
+     * 
+     * @param version the number of the version
+     * @return the version of the race
+     */
+    public RaceVersion newVersion(long version) {
+        int stageCount = stageObjects.size();
+        StageVersion[] stages = new StageVersion[stageCount];
+        for (int j = 0; j < stageCount; j++) {
+            stages[j] = getStageVersion(stageObjects.get(j));
+        }
+        return new RaceVersion(version, id, stages, standings);
+    }
 
-        /*
-         * A loop to check if the rider has participated in all stages of
-         * the race, if not the riderId is removed from the Hashmap
-         */
-        for (int j = 0; j < stage_count; j++) {
-            for (int i = 0; i < rider_count; i++) {
-                if (!stageObjects.get(j).doesRiderHaveResult(rider_ids[i])) {
-                    riderHashMap.remove(rider_ids[i]);
-                    rider_count = riderHashMap.size();
-                    rider_ids = riderHashMap.keySet().stream().mapToInt(Number::intValue).toArray();
-                }
+    /**
+     * gets the result columns of one of the race's stages, which hold the
+     * only copy of its results. The results of a race loaded from a save
+     * made before the columns were kept are moved into them from the
+     * stage's result objects the first time they are needed.
+     * 
+     * @param stage the stage object
+     * @return the result columns of the stage
+     */
+    public StageResults getStageResults(Stage stage) {
+        StageResults results = getAllStageResults().get(stage.getId());
+        if (results == null) {
+            results = new StageResults(getResultStorage().open(stage.getId()));
+            results.clear();
+            ArrayList<Result> resultObjects = stage.getResultObjects();
+            int resultCount = resultObjects.size();
+            for (int i = 0; i < resultCount; i++) {
+                results.insert(i, resultObjects.get(i));
             }
+            resultObjects.clear();
+            getAllStageResults().put(stage.getId(), results);
         }
+        return results;
+    }
 
-        /*
-         * A loop to update the Elapsed time part of the Hashmap after
-         * going through all the results of the rider in all stages
-         */
-        for (int i = 0; i < rider_count; i++) {
+    public ResultStorage getResultStorage() {
+        if (resultStorage == null) {
+            return ResultStorage.heap();
+        }
+        return resultStorage;
+    }
+
+    /**
+     * sets where the result columns of the race's stages are kept, the
+     * columns already filled are moved to the new storage
+     * 
+     * @param resultStorage the storage
+     */
+    public void setResultStorage(ResultStorage resultStorage) {
+        if (resultStorage == getResultStorage()) {
+            return;
+        }
+        this.resultStorage = resultStorage;
+        moveResults(resultStorage);
+    }
+
+    /**
+     * moves the result columns of every stage to a storage, the rankings
+     * worked out from them still hold as the rows are the same
+     * 
+     * @param storage the storage
+     */
+    private void moveResults(ResultStorage storage) {
+        if (stageResults == null) {
+            return;
+        }
+        for (Integer stageId : stageResults.keySet()) {
+            stageResults.get(stageId).moveTo(storage.open(stageId));
+        }
+    }
+
+    private HashMap<Integer, StageResults> getAllStageResults() {
+        if (stageResults == null) {
+            stageResults = new HashMap<Integer, StageResults>();
+        }
+        return stageResults;
+    }
+
+    private HashMap<Integer, StageRanking> getStageRankings() {
+        if (stageRankings == null) {
+            stageRankings = new HashMap<Integer, StageRanking>();
+        }
+        return stageRankings;
+    }
+
+    /**
+     * gets the general classification of the race, building it
+     * from the stages if the race has just been loaded
+     * 
+     * @return the general classification object
+     */
+    public GeneralClassification getGeneralClassification() {
+        if (generalClassification == null) {
+            generalClassification = new GeneralClassification(this);
+            int stage_count = stageObjects.size();
             for (int j = 0; j < stage_count; j++) {
-                currentAdjElapsedTime = stageObjects.get(j).getRiderAdjustedElapsedTimeInStage(rider_ids[i]);
-                LocalTime elapsedTimeSum = riderHashMap.get(rider_ids[i]);
-                riderHashMap.replace(rider_ids[i],
-                        elapsedTimeSum.plus(currentAdjElapsedTime.toNanoOfDay(), ChronoUnit.NANOS));
+                generalClassification.addStage(stageObjects.get(j));
             }
         }
+        return generalClassification;
+    }
 
-        ArrayList<Result> resultsArray = new ArrayList<Result>();
+    public int[] getRidersGeneralClassificationRank() {
         /*
-         * using a loop to make a result object for each rider along with the
-         * elapsed time which is stored in an array named resultsArray
+         * the general classification is kept up to date as results change,
+         * so only riders with a result in every stage are ranked and the
+         * array is empty if a stage has no results
          */
-        for (int i = 0; i < rider_count; i++) {
-            Result result = new Result(rider_ids[i], riderHashMap.get(rider_ids[i]));
-            resultsArray.add(result);
-        }
+        return getStandings().getGeneralClassificationRank();
+    }
 
-        // resultsArray is sorted by Elapsed time
-        Collections.sort(resultsArray);
+    /**
+     * gets the riders' total adjusted elapsed times in nanoseconds, these
+     * do not wrap around after 24 hours
+     * 
+     * @return the totals in general classification order
+     */
+    public long[] getGeneralClassificationNanosInRace() {
+        return getStandings().getGeneralClassificationTimes();
+    }
 
-        LocalTime[] finalElapsedTimesArray = new LocalTime[resultsArray.size()];
+    public LocalTime[] getGeneralClassificationTimesInRace() {
+        long[] times = getGeneralClassificationNanosInRace();
+        LocalTime[] finalElapsedTimesArray = new LocalTime[times.length];
         /*
-         * after the result Array has been sorted, the elapsed time
-         * of each rider is stored in an array named finalElapsedTimesArray
-         * by the following loop
+         * the totals are kept in nanoseconds, they wrap around
+         * midnight when converted as LocalTime only holds a day
          */
-        for (int i = 0; i < resultsArray.size(); i++) {
-            finalElapsedTimesArray[i] = resultsArray.get(i).getCheckPoint(0);
+        for (int i = 0; i < times.length; i++) {
+            finalElapsedTimesArray[i] = LocalTime.ofNanoOfDay(times[i] % NANOS_PER_DAY);
         }
-
         return finalElapsedTimesArray;
     }
 
     public int[] getRidersPointsInRace() {
-        /*
-         * a list of rider Ids sorted by the sum of elapsed time
-         * will be stored in an array named riderIds
-         */
-        int[] riderIds = getRidersGeneralClassificationRank();
-        // If there are no riderIds an empty array will be returned
-        if (riderIds.length == 0) {
-            return new int[] {};
-        }
-        // the riderHashmap is initialized
-        HashMap<Integer, Integer> riderHashMap = new HashMap<Integer, Integer>();
-        for (int i = 0; i < riderIds.length; i++) {
-            riderHashMap.put(riderIds[i], 0);
+        return getStandings().getPoints();
+    }
+
+    public int[] getRidersMountainPointsInRace() {
+        return getStandings().getMountainPoints();
+    }
+
+    public int[] getRidersPointClassificationRank() {
+        return getStandings().getPointsClassificationRank();
+    }
+
+    public int[] getRidersMountainPointClassificationRank() {
+        return getStandings().getMountainPointsClassificationRank();
+    }
+
+    /**
+     * gets the standings of the race, they are computed once
+     * and kept until a result, stage or segment changes
+     * 
+     * @return the standings of the race
+     */
+    public RaceStandings getStandings() {
+        if (standings == null) {
+            standings = new RaceStandings(this);
         }
+        return standings;
+    }
+
+    /**
+     * writes the race, its stages, their segments and results and any stages
+     * being followed live to a snapshot. The checkpoints of each result are
+     * written as the gaps between them, which are much smaller than the
+     * times of day.
+     * 
+     * @param out the snapshot being written
+     * @throws IOException if a segment of the race is not known
+     */
+    public void writeSnapshot(SnapshotOutput out) throws IOException {
+        int start = out.size();
+        out.writeVarInt(id);
+        out.writeString(name);
+        out.writeString(description);
         int stage_count = stageObjects.size();
-        /*
-         * a loop that loops for the number of stages in the race to make sure that
-         * the points of all stages are added up
-         */
-        for (int i = 0; i < stage_count; i++) {
+        out.writeVarInt(stage_count);
+        for (int j = 0; j < stage_count; j++) {
+            Stage stage = stageObjects.get(j);
+            out.writeVarInt(stage.getId());
+            out.writeString(stage.getName());
+            out.writeString(stage.getDescription());
+            out.writeDouble(stage.getLength());
+            out.writeVarInt(stage.getType().ordinal());
+            int flags = stage.getState().equals("waiting for results") ? 1 : 0;
+            if (stage.getStartTime() != null) {
+                flags |= 2;
+            }
+            out.writeByte(flags);
+            if (stage.getStartTime() != null) {
+                out.writeSignedVarLong(stage.getStartTime().toLocalDate().toEpochDay());
+                out.writeVarLong(stage.getStartTime().toLocalTime().toNanoOfDay());
+            }
+
+            int[] segmentIds = stage.getSegmentIds();
+            out.writeVarInt(segmentIds.length);
+            for (int k = 0; k < segmentIds.length; k++) {
+                Segment segment = getSegments().get(segmentIds[k]);
+                if (segment == null) {
+                    throw new IOException("Segment " + segmentIds[k] + " of stage " + stage.getId() + " is not known.");
+                }
+                writeSegment(out, segment);
+            }
+
             /*
-             * two arrrays to store the riderIds and their corresponding points
-             * sorted by their elapsed time
+             * the results are written after the stamp of their store and
+             * their length, so they can be skipped if the store still
+             * holds them when the snapshot is read
              */
-            int[] stageRiderIds = stageObjects.get(i).getRidersRankInStage();
-            int[] stageRiderPoints = stageObjects.get(i).getRidersPointsInStage();
-            // a loop which will update the hashmap with the points for each rider
-            for (int j = 0; j < stageRiderIds.length; j++) {
-                if (riderHashMap.containsKey(stageRiderIds[j])) {
-                    int previousPoints = riderHashMap.get(stageRiderIds[j]);
-                    riderHashMap.replace(stageRiderIds[j], previousPoints + stageRiderPoints[j]);
+            StageResults results = getStageResults(stage);
+            SnapshotOutput rows = new SnapshotOutput();
+            rows.writeVarInt(results.size());
+            for (int i = 0; i < results.size(); i++) {
+                int checkpointCount = results.getCheckpointCount(i);
+                rows.writeVarInt(results.getRiderId(i));
+                rows.writeVarInt(checkpointCount);
+                rows.writeVarLong(results.getStartTime(i));
+                for (int k = 1; k < checkpointCount; k++) {
+                    rows.writeSignedVarLong(results.getCheckpointOffset(i, k) - results.getCheckpointOffset(i, k - 1));
                 }
             }
+            out.writeVarLong(results.getStamp());
+            out.writeVarInt(rows.size());
+            out.write(rows);
         }
-        int[] finalPointsArray = new int[riderIds.length];
-        /*
-         * a loop to store the points part of the hashmap into an array
-         * named finalpointsArray
-         */
-        for (int i = 0; i < riderIds.length; i++) {
-            finalPointsArray[i] = riderHashMap.get(riderIds[i]);
+
+        out.writeVarInt(getLiveStages().size());
+        for (Integer stageId : getLiveStages().keySet()) {
+            out.writeVarInt(stageId);
+            getLiveStages().get(stageId).writeSnapshot(out);
         }
-        return finalPointsArray;
-    }
 
-    public int[] getRidersMountainPointsInRace() {
         /*
-         * the function getRidersGenenralClassificationRank will return a list of
-         * riders' IDs sorted ascending by the sum of their adjusted elasped times
-         * which will be stored in an array named riderIds
+         * the rankings and standings already worked out are written after
+         * everything they are worked out from, stamped with a checksum of
+         * it so they are only used if it is read back unchanged
          */
-        int[] riderIds = getRidersGeneralClassificationRank();
-        // if the array has no rider Ids an empty array will be returned
-        if (riderIds.length == 0) {
-            return new int[] {};
+        out.writeVarLong(standingsStamp(out.checksum(start, out.size())));
+        int standingsStart = out.size();
+        out.writeVarInt(getStageRankings().size());
+        for (Integer stageId : getStageRankings().keySet()) {
+            out.writeVarInt(stageId);
+            getStageRankings().get(stageId).writeSnapshot(out);
         }
-        // A hashmap with the riderIds and their respective point is initialized
-        HashMap<Integer, Integer> riderHashMap = new HashMap<Integer, Integer>();
-        for (int i = 0; i < riderIds.length; i++) {
-            riderHashMap.put(riderIds[i], 0);
+        out.writeByte(standings != null ? 1 : 0);
+        if (standings != null) {
+            standings.writeSnapshot(out);
         }
-        int stage_count = stageObjects.size();
+        // the rankings and standings have a checksum of their own, so they are not used if they are damaged
+        out.writeVarLong(out.checksum(standingsStart, out.size()));
+    }
 
-        for (int i = 0; i < stage_count; i++) {
+    private static long standingsStamp(long checksum) {
+        return ((long) RaceStandings.RULES_VERSION << 32) | checksum;
+    }
+
+    /**
+     * reads a race written by {@link #writeSnapshot(SnapshotOutput)}, its
+     * results are read straight into the storage they are kept in
+     * 
+     * @param in            the snapshot being read
+     * @param resultStorage where the results of the race's stages are kept
+     * @return the race object
+     * @throws IOException if the snapshot is not valid
+     */
+    public static Race readSnapshot(SnapshotInput in, ResultStorage resultStorage) throws IOException {
+        int start = in.getPosition();
+        Race race = new Race(in.readVarInt(), in.readString(), in.readString());
+        race.resultStorage = resultStorage;
+        int stage_count = in.readVarInt();
+        for (int j = 0; j < stage_count; j++) {
+            int stageId = in.readVarInt();
+            String stageName = in.readString();
+            String stageDescription = in.readString();
+            double length = in.readDouble();
+            StageType type = StageType.values()[in.readVarInt()];
+            int flags = in.readByte();
+            LocalDateTime startTime = null;
+            if ((flags & 2) != 0) {
+                LocalDate startDate = LocalDate.ofEpochDay(in.readSignedVarLong());
+                startTime = LocalDateTime.of(startDate, LocalTime.ofNanoOfDay(in.readVarLong()));
+            }
+            Stage stage = new Stage(stageId, race.id, stageName, stageDescription, length, startTime, type);
+            if ((flags & 1) != 0) {
+                stage.conclude();
+            }
+
+            int segmentCount = in.readVarInt();
+            for (int k = 0; k < segmentCount; k++) {
+                Segment segment = readSegment(in, stageId);
+                stage.addSegment(segment);
+                race.recordSegment(segment);
+            }
+
+            race.stageObjects.add(stage);
             /*
-             * the riderIds and their points are retrieved by calling the functions
-             * getRidersRankInstage and getRidersMountainPointsInStage and are
-             * stored in two separate arrays
+             * the results were written in finish order, so they go straight
+             * into the columns, unless the stage's file still holds them
              */
-            int[] stageRiderIds = stageObjects.get(i).getRidersRankInStage();
-            int[] stageRiderPoints = stageObjects.get(i).getRidersMountainPointsInStage();
-            // the following loop for the number of riders in that stage
-            // and will update the hasmap with the points of each rider
-            for (int j = 0; j < stageRiderIds.length; j++) {
-                if (riderHashMap.containsKey(stageRiderIds[j])) {
-                    int previousPoints = riderHashMap.get(stageRiderIds[j]);
-                    riderHashMap.replace(stageRiderIds[j], previousPoints + stageRiderPoints[j]);
+            long stamp = in.readVarLong();
+            int rowsLength = in.readVarInt();
+            StageResults results = new StageResults(resultStorage.open(stageId));
+            race.getAllStageResults().put(stageId, results);
+            if (stamp != 0 && results.getStamp() == stamp) {
+                in.skip(rowsLength);
+                continue;
+            }
+            results.clear();
+            int resultCount = in.readVarInt();
+            long[] times = new long[segmentCount + 2];
+            for (int i = 0; i < resultCount; i++) {
+                int riderId = in.readVarInt();
+                int checkpointCount = in.readVarInt();
+                if (checkpointCount > times.length) {
+                    times = new long[checkpointCount];
                 }
+                times[0] = in.readVarLong();
+                for (int k = 1; k < checkpointCount; k++) {
+                    times[k] = times[k - 1] + in.readSignedVarLong();
+                }
+                results.append(riderId, times, 0, checkpointCount);
             }
         }
 
-        int[] finalPointsArray = new int[riderIds.length];
-        /*
-         * the values part of the hashmap which contains the points of each
-         * rider is called and its values are stored in an array
-         * named finalPointsArray which is returned later
-         */
-        for (int i = 0; i < riderIds.length; i++) {
-            finalPointsArray[i] = riderHashMap.get(riderIds[i]);
+        int liveStageCount = in.readVarInt();
+        for (int j = 0; j < liveStageCount; j++) {
+            int stageId = in.readVarInt();
+            race.getLiveStages().put(stageId, LiveStage.readSnapshot(in));
         }
-        return finalPointsArray;
-    }
 
-    public int[] getRidersPointClassificationRank() {
         /*
-         * the riderIds and their points are retrieved by calling the functions
-         * getRidersGeneralClassificationRank and getRidersPointsInRace and are
-         * stored in two separate arrays
+         * the saved rankings and standings are read either way to move
+         * past them, but only kept if their stamp matches the race as
+         * read and their own checksum matches them, otherwise they are
+         * worked out again when first asked for
          */
-        int[] riderIds = getRidersGeneralClassificationRank();
-        int[] riderPoints = getRidersPointsInRace();
-
-        // the bubblesort function is callled to sort by the riderPoints
-        bubbleSort(riderPoints, riderIds);
-
-        return riderIds;
+        long stamp = standingsStamp(in.checksum(start, in.getPosition()));
+        boolean valid = in.readVarLong() == stamp;
+        int standingsStart = in.getPosition();
+        HashMap<Integer, Stage> stagesById = new HashMap<Integer, Stage>();
+        for (int j = 0; j < race.stageObjects.size(); j++) {
+            stagesById.put(race.stageObjects.get(j).getId(), race.stageObjects.get(j));
+        }
+        HashMap<Integer, StageRanking> rankings = new HashMap<Integer, StageRanking>();
+        int rankingCount = in.readVarInt();
+        for (int j = 0; j < rankingCount; j++) {
+            Stage stage = stagesById.get(in.readVarInt());
+            StageResults results = stage == null ? null : race.getStageResults(stage);
+            StagePlan plan = stage == null ? null : race.getStagePlan(stage);
+            StageRanking ranking = StageRanking.readSnapshot(in, stage, results, plan);
+            if (ranking != null) {
+                rankings.put(stage.getId(), ranking);
+            }
+        }
+        RaceStandings standings = null;
+        if (in.readByte() != 0) {
+            standings = RaceStandings.readSnapshot(in);
+        }
+        long checksum = in.checksum(standingsStart, in.getPosition());
+        valid &= in.readVarLong() == checksum;
+        if (valid) {
+            race.getStageRankings().putAll(rankings);
+            race.standings = standings;
+        }
+        return race;
     }
 
-    public int[] getRidersMountainPointClassificationRank() {
-        /*
-         * the riderIds and their points are retrieved by calling the functions
-         * getRidersGeneralClassificationRank and getRidersMountainPointsInRace and are
-         * stored in two separate arrays
-         */
-        int[] riderIds = getRidersGeneralClassificationRank();
-        int[] riderPoints = getRidersMountainPointsInRace();
-
-        // the bubblesort function is called to sort by the riderPoints
-        bubbleSort(riderPoints, riderIds);
+    private static void writeSegment(SnapshotOutput out, Segment segment) {
+        out.writeVarInt(segment.getId());
+        out.writeVarInt(segment.getSegmentType().ordinal());
+        out.writeDouble(segment.getLocation());
+        // sprints are created without a gradient or a length
+        int flags = (segment.getAverageGradient() != null ? 1 : 0) | (segment.getLength() != null ? 2 : 0);
+        out.writeByte(flags);
+        if (segment.getAverageGradient() != null) {
+            out.writeDouble(segment.getAverageGradient());
+        }
+        if (segment.getLength() != null) {
+            out.writeDouble(segment.getLength());
+        }
+    }
 
-        return riderIds;
+    private static Segment readSegment(SnapshotInput in, int stageId) throws IOException {
+        int segmentId = in.readVarInt();
+        SegmentType type = SegmentType.values()[in.readVarInt()];
+        double location = in.readDouble();
+        int flags = in.readByte();
+        Double averageGradient = (flags & 1) != 0 ? in.readDouble() : null;
+        Double length = (flags & 2) != 0 ? in.readDouble() : null;
+        if (type.equals(SegmentType.SPRINT) && flags == 0) {
+            return new Segment(segmentId, stageId, location);
+        }
+        return new Segment(segmentId, stageId, location, type, averageGradient, length);
     }
 
     /**
-     * An algorithm for sorting by riderPoints
+     * sorts the results of every stage by elapsed time after the race has been
+     * loaded, as races saved by older versions did not keep them sorted. They
+     * are moved into the columns the first time the stage's results are needed.
      */
-    public void bubbleSort(int[] pointsArray, int[] idsArray) {
-        boolean sorted = false;
-        int temp;
-        while (!sorted) {
-            sorted = true;
-            for (int i = 0; i < pointsArray.length - 1; i++) {
-                if (pointsArray[i] < pointsArray[i + 1]) {
-
-                    temp = pointsArray[i];
-                    pointsArray[i] = pointsArray[i + 1];
-                    pointsArray[i + 1] = temp;
-
-                    temp = idsArray[i];
-                    idsArray[i] = idsArray[i + 1];
-                    idsArray[i + 1] = temp;
-
-                    sorted = false;
-                }
-            }
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        int stage_count = stageObjects.size();
+        for (int j = 0; j < stage_count; j++) {
+            Collections.sort(stageObjects.get(j).getResultObjects());
         }
     }
 
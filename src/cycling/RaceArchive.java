@@ -0,0 +1,228 @@
+package cycling;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * RaceArchive - A class which keeps track of the races of a portal loaded
+ * from a directory in archive mode, where only the details of each race are
+ * held until its stages are needed.
+ * <p>
+ * Next to each race's file is an index of the Ids of its stages, segments
+ * and riders. The stage and segment Ids of an archived race are read from
+ * it when the portal is loaded, so the race can be found by them, and are
+ * kept in the portal's registries rather than in the race. Its riders are
+ * only read when a rider is removed, to tell which races need reading.
+ * <p>
+ * The races whose stages are held are kept in the order they were last
+ * used, and once there are more than the archive holds the least recently
+ * used races which have not changed since they were saved are dropped
+ * back to their details. Races which have changed stay until they are saved.
+ */
+public class RaceArchive {
+    private Path directory;
+    private int capacity;
+    // the races whose stages are held, least recently used first
+    private LinkedHashMap<Integer, Race> loadedRaces = new LinkedHashMap<Integer, Race>(16, 0.75f, true);
+    // the race of each segment of an archived race, by segment Id
+    private Registry<Race> segmentRaceRegistry = new Registry<Race>();
+
+    /**
+     * Constructor for the Objects of RaceArchive class
+     *
+     * @param directory the location of the directory the races are read from
+     * @param capacity  the number of races whose stages are held at once
+     */
+    public RaceArchive(Path directory, int capacity) {
+        this.directory = directory;
+        this.capacity = capacity;
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * moves the archive to the directory the portal was saved to,
+     * the races are read from there from then on
+     *
+     * @param directory the location of the directory
+     */
+    public void setDirectory(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * reads a race with its stages from its file in the directory
+     *
+     * @param raceId        the Id of the race
+     * @param resultStorage where the results of the race's stages are kept
+     * @return the race read
+     * @throws IOException if the file cannot be read or is not valid
+     */
+    public Race readRace(int raceId, ResultStorage resultStorage) throws IOException {
+        return Race.readSnapshot(new SnapshotInput(Files.readAllBytes(directory.resolve(filename(raceId)))),
+                resultStorage);
+    }
+
+    public static String filename(int raceId) {
+        return "race-" + raceId + ".bin";
+    }
+
+    public static String indexFilename(int raceId) {
+        return "race-" + raceId + ".idx";
+    }
+
+    /**
+     * writes the index of a race, the Ids of its stages and segments in
+     * order followed by its riders. The riders are sorted, so each is
+     * written as the gap to the one before.
+     *
+     * @param out  the index being written
+     * @param race the race object, with its stages
+     */
+    public static void writeIndex(SnapshotOutput out, Race race) {
+        writeIds(out, race.getStageIds());
+        writeIds(out, race.getSegmentIds());
+        int[] riderIds = race.getRiderIds();
+        out.writeVarInt(riderIds.length);
+        int previous = 0;
+        for (int i = 0; i < riderIds.length; i++) {
+            out.writeVarInt(riderIds[i] - previous);
+            previous = riderIds[i];
+        }
+    }
+
+    /**
+     * reads the stage and segment Ids from the index of a race,
+     * its riders are left unread
+     *
+     * @param directory the location of the directory
+     * @param raceId    the Id of the race
+     * @return the stage Ids, then the segment Ids
+     * @throws IOException if the index cannot be read or is not valid
+     */
+    public static int[][] readIndex(Path directory, int raceId) throws IOException {
+        SnapshotInput in = new SnapshotInput(Files.readAllBytes(directory.resolve(indexFilename(raceId))));
+        int[] stageIds = readIds(in);
+        return new int[][] {stageIds, readIds(in)};
+    }
+
+    /**
+     * checks if a rider might have anything in a race, reading the riders
+     * from the index of an archived race rather than its stages
+     *
+     * @param race    the race object
+     * @param riderId the Id of the rider
+     * @return false if the rider is known to have nothing in the race
+     */
+    public boolean mayHaveRider(Race race, int riderId) {
+        if (!race.isArchived()) {
+            return true;
+        }
+        try {
+            SnapshotInput in = new SnapshotInput(Files.readAllBytes(directory.resolve(indexFilename(race.getId()))));
+            readIds(in);
+            readIds(in);
+            int[] riderIds = new int[in.readVarInt()];
+            int previous = 0;
+            for (int i = 0; i < riderIds.length; i++) {
+                riderIds[i] = previous + in.readVarInt();
+                previous = riderIds[i];
+            }
+            return Arrays.binarySearch(riderIds, riderId) >= 0;
+        } catch (IOException e) {
+            // the race itself is read instead, which reports the problem if it has one
+            return true;
+        }
+    }
+
+    private static void writeIds(SnapshotOutput out, int[] ids) {
+        out.writeVarInt(ids.length);
+        for (int i = 0; i < ids.length; i++) {
+            out.writeVarInt(ids[i]);
+        }
+    }
+
+    private static int[] readIds(SnapshotInput in) throws IOException {
+        int[] ids = new int[in.readVarInt()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = in.readVarInt();
+        }
+        return ids;
+    }
+
+    /**
+     * records that a race has been used, making it the last to be dropped
+     *
+     * @param race the race object
+     */
+    public void touch(Race race) {
+        loadedRaces.put(race.getId(), race);
+    }
+
+    /**
+     * forgets a race which has been removed from the portal, its stages
+     * are held as it is read before it is removed
+     *
+     * @param race the race object
+     */
+    public void remove(Race race) {
+        loadedRaces.remove(race.getId());
+        int[] segmentIds = race.getSegmentIds();
+        for (int k = 0; k < segmentIds.length; k++) {
+            if (segmentRaceRegistry.get(segmentIds[k]) == race) {
+                segmentRaceRegistry.remove(segmentIds[k]);
+            }
+        }
+    }
+
+    /**
+     * records which race the segments of an archived race belong to
+     *
+     * @param race       the race object
+     * @param segmentIds the Ids of the race's segments
+     */
+    public void addSegments(Race race, int[] segmentIds) {
+        for (int k = 0; k < segmentIds.length; k++) {
+            segmentRaceRegistry.put(segmentIds[k], race);
+        }
+    }
+
+    /**
+     * gets the race a segment belonged to when its race was archived
+     *
+     * @param segmentId the Id of the segment
+     * @return the race object, or null if the segment is not known
+     */
+    public Race getSegmentRace(int segmentId) {
+        return segmentRaceRegistry.get(segmentId);
+    }
+
+    /**
+     * takes the least recently used races which have not changed since
+     * they were saved out of the archive, until it holds no more races
+     * than its capacity. The caller drops the stages of the races.
+     *
+     * @param inUse a race which is not taken out as it is being used,
+     *              may be null
+     * @return the races to be archived
+     */
+    public ArrayList<Race> evict(Race inUse) {
+        ArrayList<Race> evicted = new ArrayList<Race>();
+        Iterator<Race> races = loadedRaces.values().iterator();
+        while (loadedRaces.size() > capacity && races.hasNext()) {
+            Race race = races.next();
+            if (race != inUse && !race.hasChanged()) {
+                races.remove();
+                evicted.add(race);
+            }
+        }
+        return evicted;
+    }
+}
@@ -0,0 +1,253 @@
+package cycling;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * RaceStandings - A class which holds every classification of a race:
+ * the general classification order and times, the riders' points and
+ * mountain points, and the two points classification orders. They are
+ * all computed together in one pass over the stages, and never change
+ * once computed. A published version of the race works its own standings
+ * out from its stages the first time they are read.
+ */
+public class RaceStandings {
+    // changed whenever the way the standings are worked out changes, so
+    // standings saved by older versions are worked out again when loaded
+    public static final int RULES_VERSION = 1;
+
+    private int[] generalClassificationRank;
+    private long[] generalClassificationTimes;
+    private int[] points;
+    private int[] mountainPoints;
+    private int[] pointsClassificationRank;
+    private int[] mountainPointsClassificationRank;
+
+    /**
+     * Constructor for the Objects of RaceStandings class
+     *
+     * @param race the race whose standings are computed
+     */
+    public RaceStandings(Race race) {
+        GeneralClassification classification = race.getGeneralClassification();
+        generalClassificationRank = classification.getRidersRank();
+        generalClassificationTimes = classification.getTimes();
+        int[] positions = getPositions();
+
+        // the points of every stage are added up for the classified riders
+        if (generalClassificationRank.length > 0) {
+            ArrayList<Stage> stageObjects = race.getStages();
+            int stageCount = stageObjects.size();
+            for (int j = 0; j < stageCount; j++) {
+                StageRanking ranking = race.getStageRanking(stageObjects.get(j));
+                addStagePoints(positions, ranking.getRidersRank(), ranking.getRidersPoints(),
+                        ranking.getRidersMountainPoints());
+            }
+        }
+        rankByPoints();
+    }
+
+    /**
+     * Constructor for the Objects of RaceStandings class which works the
+     * standings out from a published version of a race's stages, in the
+     * same way the race's own classification orders its riders
+     *
+     * @param stages the stages of the version in order
+     */
+    public RaceStandings(StageVersion[] stages) {
+        // the total adjusted time of each rider and the number of stages added to it
+        HashMap<Integer, long[]> totals = new HashMap<Integer, long[]>();
+        for (int j = 0; j < stages.length; j++) {
+            int[] riderIds = stages[j].getRidersRank();
+            long[] times = stages[j].getAdjustedTimes();
+            for (int i = 0; i < riderIds.length; i++) {
+                long[] total = totals.get(riderIds[i]);
+                if (total == null) {
+                    total = new long[2];
+                    totals.put(riderIds[i], total);
+                }
+                total[0] += times[i];
+                total[1]++;
+            }
+        }
+        ArrayList<Integer> classified = new ArrayList<Integer>();
+        for (Integer riderId : totals.keySet()) {
+            if (totals.get(riderId)[1] == stages.length) {
+                classified.add(riderId);
+            }
+        }
+        final HashMap<Integer, long[]> classifiedTotals = totals;
+        Integer[] order = classified.toArray(new Integer[classified.size()]);
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer first, Integer second) {
+                long firstTotal = classifiedTotals.get(first)[0];
+                long secondTotal = classifiedTotals.get(second)[0];
+                if (firstTotal != secondTotal) {
+                    return Long.compare(firstTotal, secondTotal);
+                }
+                return Integer.compare(first, second);
+            }
+        });
+        generalClassificationRank = new int[order.length];
+        generalClassificationTimes = new long[order.length];
+        for (int i = 0; i < order.length; i++) {
+            generalClassificationRank[i] = order[i];
+            generalClassificationTimes[i] = totals.get(order[i])[0];
+        }
+        int[] positions = getPositions();
+
+        if (generalClassificationRank.length > 0) {
+            for (int j = 0; j < stages.length; j++) {
+                addStagePoints(positions, stages[j].getRidersRank(), stages[j].getRidersPoints(),
+                        stages[j].getRidersMountainPoints());
+            }
+        }
+        rankByPoints();
+    }
+
+    /**
+     * stores the position of each rider in the general classification in
+     * an array indexed by rider Id, riders outside the classification are
+     * marked with -1
+     *
+     * @return the positions
+     */
+    private int[] getPositions() {
+        int riderCount = generalClassificationRank.length;
+        points = new int[riderCount];
+        mountainPoints = new int[riderCount];
+        int maxRiderId = 0;
+        for (int i = 0; i < riderCount; i++) {
+            maxRiderId = Math.max(maxRiderId, generalClassificationRank[i]);
+        }
+        int[] positions = new int[maxRiderId + 1];
+        for (int i = 0; i <= maxRiderId; i++) {
+            positions[i] = -1;
+        }
+        for (int i = 0; i < riderCount; i++) {
+            positions[generalClassificationRank[i]] = i;
+        }
+        return positions;
+    }
+
+    /**
+     * adds the points of a stage to the classified riders
+     */
+    private void addStagePoints(int[] positions, int[] stageRiderIds, int[] stagePoints, int[] stageMountainPoints) {
+        for (int i = 0; i < stageRiderIds.length; i++) {
+            int riderId = stageRiderIds[i];
+            if (riderId < positions.length && positions[riderId] >= 0) {
+                points[positions[riderId]] += stagePoints[i];
+                mountainPoints[positions[riderId]] += stageMountainPoints[i];
+            }
+        }
+    }
+
+    private void rankByPoints() {
+        pointsClassificationRank = Ranking.rankByScore(generalClassificationRank, points);
+        mountainPointsClassificationRank = Ranking.rankByScore(generalClassificationRank, mountainPoints);
+    }
+
+    private RaceStandings() {
+    }
+
+    /**
+     * writes the standings to a snapshot
+     *
+     * @param out the snapshot being written
+     */
+    public void writeSnapshot(SnapshotOutput out) {
+        int riderCount = generalClassificationRank.length;
+        out.writeVarInt(riderCount);
+        long previous = 0;
+        for (int i = 0; i < riderCount; i++) {
+            out.writeVarInt(generalClassificationRank[i]);
+            out.writeSignedVarLong(generalClassificationTimes[i] - previous);
+            previous = generalClassificationTimes[i];
+            out.writeSignedVarLong(points[i]);
+            out.writeSignedVarLong(mountainPoints[i]);
+        }
+        for (int i = 0; i < riderCount; i++) {
+            out.writeVarInt(pointsClassificationRank[i]);
+        }
+        for (int i = 0; i < riderCount; i++) {
+            out.writeVarInt(mountainPointsClassificationRank[i]);
+        }
+    }
+
+    /**
+     * reads standings written by {@link #writeSnapshot(SnapshotOutput)}
+     *
+     * @param in the snapshot being read
+     * @return the standings object
+     * @throws IOException if the snapshot is not valid
+     */
+    public static RaceStandings readSnapshot(SnapshotInput in) throws IOException {
+        RaceStandings standings = new RaceStandings();
+        int riderCount = in.readVarInt();
+        standings.generalClassificationRank = new int[riderCount];
+        standings.generalClassificationTimes = new long[riderCount];
+        standings.points = new int[riderCount];
+        standings.mountainPoints = new int[riderCount];
+        standings.pointsClassificationRank = new int[riderCount];
+        standings.mountainPointsClassificationRank = new int[riderCount];
+        long time = 0;
+        for (int i = 0; i < riderCount; i++) {
+            standings.generalClassificationRank[i] = in.readVarInt();
+            time += in.readSignedVarLong();
+            standings.generalClassificationTimes[i] = time;
+            standings.points[i] = (int) in.readSignedVarLong();
+            standings.mountainPoints[i] = (int) in.readSignedVarLong();
+        }
+        for (int i = 0; i < riderCount; i++) {
+            standings.pointsClassificationRank[i] = in.readVarInt();
+        }
+        for (int i = 0; i < riderCount; i++) {
+            standings.mountainPointsClassificationRank[i] = in.readVarInt();
+        }
+        return standings;
+    }
+
+    public int[] getGeneralClassificationRank() {
+        return generalClassificationRank.clone();
+    }
+
+    /**
+     * gets the riders' total adjusted elapsed times in nanoseconds
+     *
+     * @return the totals in general classification order
+     */
+    public long[] getGeneralClassificationTimes() {
+        return generalClassificationTimes.clone();
+    }
+
+    /**
+     * gets the riders' points
+     *
+     * @return the points in general classification order
+     */
+    public int[] getPoints() {
+        return points.clone();
+    }
+
+    /**
+     * gets the riders' mountain points
+     *
+     * @return the mountain points in general classification order
+     */
+    public int[] getMountainPoints() {
+        return mountainPoints.clone();
+    }
+
+    public int[] getPointsClassificationRank() {
+        return pointsClassificationRank.clone();
+    }
+
+    public int[] getMountainPointsClassificationRank() {
+        return mountainPointsClassificationRank.clone();
+    }
+}
@@ -0,0 +1,141 @@
+package cycling;
+
+import java.time.LocalTime;
+
+/**
+ * RaceVersion - A class which holds a race's results as they were at one
+ * point, published by the writers of a ConcurrentCyclingPortal each time
+ * the race changes. A version never changes once it is published, so its
+ * classifications are read without locks while results carry on being
+ * registered, and every answer read from one version is consistent with
+ * the others. The classifications are worked out from the version's
+ * stages by the first reader which asks for them, so a writer publishing
+ * a version only pays for the stages it changed. If the race had already
+ * worked its standings out when the version was made they are used as
+ * they are.
+ * <p>
+ * Versions are numbered from one counter for the whole portal, so a later
+ * version of a race always has a larger number and a reader can compare the
+ * number of the version it holds with the latest one to tell whether it is
+ * up to date.
+ */
+public class RaceVersion {
+    private final long version;
+    private final int raceId;
+    private final StageVersion[] stages;
+    // worked out the first time they are asked for, any thread may do so
+    private volatile RaceStandings standings;
+
+    /**
+     * Constructor for the Objects of RaceVersion class
+     *
+     * @param version   the number of the version
+     * @param raceId    the Id of the race
+     * @param stages    the stages of the race in order
+     * @param standings the standings of the race, which are never changed,
+     *                  null to work them out from the stages when read
+     */
+    public RaceVersion(long version, int raceId, StageVersion[] stages, RaceStandings standings) {
+        this.version = version;
+        this.raceId = raceId;
+        this.stages = stages;
+        this.standings = standings;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public int getRaceId() {
+        return raceId;
+    }
+
+    /**
+     * gets one of the stages of the version
+     *
+     * @param stageId the Id of the stage
+     * @return the stage, null if the stage was not in the race when the
+     *         version was published
+     */
+    public StageVersion getStage(int stageId) {
+        for (int j = 0; j < stages.length; j++) {
+            if (stages[j].getStageId() == stageId) {
+                return stages[j];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * checks if another version holds the very same stages as this one,
+     * in which case nothing has changed between them
+     *
+     * @param other the other version
+     * @return true if the stages are the same
+     */
+    public boolean hasSameStages(RaceVersion other) {
+        if (other.stages.length != stages.length) {
+            return false;
+        }
+        for (int j = 0; j < stages.length; j++) {
+            if (other.stages[j] != stages[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * gets the classifications of the version, working them out from
+     * its stages the first time they are asked for
+     *
+     * @return the standings
+     */
+    public RaceStandings getStandings() {
+        RaceStandings result = standings;
+        if (result == null) {
+            result = new RaceStandings(stages);
+            standings = result;
+        }
+        return result;
+    }
+
+    public int[] getRidersGeneralClassificationRank() {
+        return getStandings().getGeneralClassificationRank();
+    }
+
+    /**
+     * gets the riders' total adjusted elapsed times in nanoseconds
+     *
+     * @return the totals in general classification order
+     */
+    public long[] getGeneralClassificationNanosInRace() {
+        return getStandings().getGeneralClassificationTimes();
+    }
+
+    public LocalTime[] getGeneralClassificationTimesInRace() {
+        long[] times = getGeneralClassificationNanosInRace();
+        LocalTime[] localTimes = new LocalTime[times.length];
+        // the totals wrap around midnight as they do in Race
+        for (int i = 0; i < times.length; i++) {
+            localTimes[i] = LocalTime.ofNanoOfDay(times[i] % Race.NANOS_PER_DAY);
+        }
+        return localTimes;
+    }
+
+    public int[] getRidersPointsInRace() {
+        return getStandings().getPoints();
+    }
+
+    public int[] getRidersMountainPointsInRace() {
+        return getStandings().getMountainPoints();
+    }
+
+    public int[] getRidersPointClassificationRank() {
+        return getStandings().getPointsClassificationRank();
+    }
+
+    public int[] getRidersMountainPointClassificationRank() {
+        return getStandings().getMountainPointsClassificationRank();
+    }
+}
@@ -0,0 +1,116 @@
+package cycling;
+
+import java.util.Arrays;
+
+/**
+ * Ranking - A class which sorts riders by their scores or times. Each value is
+ * packed together with the rider's position into a single long, so the riders
+ * are ranked with one primitive sort and riders on the same value keep the
+ * order they were given in.
+ */
+public class Ranking {
+
+    private Ranking() {
+    }
+
+    /**
+     * ranks riders by their scores, highest first, riders on the same
+     * score stay in the order they were given in
+     *
+     * @param riderIds the Ids of the riders, usually in general classification
+     *                 order so ties are broken by the general classification
+     * @param scores   the scores in the same order as the rider Ids
+     * @return the ranked rider Ids
+     */
+    public static int[] rankByScore(int[] riderIds, int[] scores) {
+        int riderCount = riderIds.length;
+        /*
+         * the complement of the score is stored in the high half so a
+         * higher score gives a smaller key, and the position in the low
+         * half breaks ties
+         */
+        long[] keys = new long[riderCount];
+        for (int i = 0; i < riderCount; i++) {
+            keys[i] = ((long) ~scores[i] << 32) | i;
+        }
+        Arrays.sort(keys);
+
+        int[] rank = new int[riderCount];
+        for (int i = 0; i < riderCount; i++) {
+            rank[i] = riderIds[(int) keys[i]];
+        }
+        return rank;
+    }
+
+    /**
+     * orders times from shortest to longest, equal times
+     * stay in the order they were given in
+     *
+     * @param times the times in nanoseconds
+     * @return the positions of the times in order
+     */
+    public static int[] orderByTime(long[] times) {
+        int count = times.length;
+        int[] order = new int[count];
+        /*
+         * the position takes the low bits of each key, so the times are
+         * packed only if none is negative or too long to leave room for it
+         */
+        int positionBits = 64 - Long.numberOfLeadingZeros(Math.max(count - 1, 1));
+        long limit = 1L << (63 - positionBits);
+        boolean packable = true;
+        for (int i = 0; i < count; i++) {
+            if (times[i] < 0 || times[i] >= limit) {
+                packable = false;
+                break;
+            }
+        }
+
+        if (packable) {
+            long[] keys = new long[count];
+            for (int i = 0; i < count; i++) {
+                keys[i] = (times[i] << positionBits) | i;
+            }
+            Arrays.sort(keys);
+            long positionMask = (1L << positionBits) - 1;
+            for (int i = 0; i < count; i++) {
+                order[i] = (int) (keys[i] & positionMask);
+            }
+        } else {
+            for (int i = 0; i < count; i++) {
+                order[i] = i;
+            }
+            mergeSort(order, new int[count], 0, count, times);
+        }
+        return order;
+    }
+
+    /**
+     * sorts positions by their times, a merge sort is used
+     * as it keeps equal times in the order they were given in
+     *
+     * @param order  the positions being sorted
+     * @param buffer space for merging, as long as order
+     * @param from   the first position of the range
+     * @param to     the end of the range, exclusive
+     * @param times  the times of the positions
+     */
+    private static void mergeSort(int[] order, int[] buffer, int from, int to, long[] times) {
+        if (to - from < 2) {
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        mergeSort(order, buffer, from, middle, times);
+        mergeSort(order, buffer, middle, to, times);
+        int left = from;
+        int right = middle;
+        for (int i = from; i < to; i++) {
+            if (right >= to || (left < middle && times[order[left]] <= times[order[right]])) {
+                buffer[i] = order[left++];
+            } else {
+                buffer[i] = order[right++];
+            }
+        }
+        System.arraycopy(buffer, from, order, from, to - from);
+    }
+}
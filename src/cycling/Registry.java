@@ -0,0 +1,94 @@
+package cycling;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Registry - A class which stores objects in an array indexed by their ID.
+ * IDs are handed out sequentially by CounterStates, so the array stays dense
+ * and an object can be found without searching through every list.
+ * <p>
+ * Objects can be looked up while other threads register and remove them,
+ * a lookup takes no lock and sees every change made before it.
+ */
+public class Registry<T> {
+    private volatile AtomicReferenceArray<T> entries;
+    private int size;
+
+    public Registry() {
+        entries = new AtomicReferenceArray<T>(16);
+        size = 0;
+    }
+
+    /**
+     * gets the object registered under an Id
+     *
+     * @param id the Id of the object
+     * @return the object, or null if nothing is registered under the Id
+     */
+    public T get(int id) {
+        AtomicReferenceArray<T> current = entries;
+        if (id < 0 || id >= current.length()) {
+            return null;
+        }
+        return current.get(id);
+    }
+
+    /**
+     * checks if an object is registered under an Id
+     *
+     * @param id the Id of the object
+     * @return true if the Id is registered, false if it isn't
+     */
+    public boolean contains(int id) {
+        return get(id) != null;
+    }
+
+    /**
+     * registers an object under an Id, growing the array when needed
+     *
+     * @param id    the Id of the object
+     * @param entry the object to be registered
+     */
+    public synchronized void put(int id, T entry) {
+        AtomicReferenceArray<T> current = entries;
+        if (id >= current.length()) {
+            int newLength = current.length();
+            while (newLength <= id) {
+                newLength = newLength * 2;
+            }
+            AtomicReferenceArray<T> newEntries = new AtomicReferenceArray<T>(newLength);
+            for (int i = 0; i < current.length(); i++) {
+                newEntries.set(i, current.get(i));
+            }
+            entries = newEntries;
+            current = newEntries;
+        }
+        if (current.getAndSet(id, entry) == null) {
+            size++;
+        }
+    }
+
+    /**
+     * removes the object registered under an Id
+     *
+     * @param id the Id of the object
+     */
+    public synchronized void remove(int id) {
+        AtomicReferenceArray<T> current = entries;
+        if (id >= 0 && id < current.length() && current.getAndSet(id, null) != null) {
+            size--;
+        }
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * removes every object from the registry
+     */
+    public synchronized void clear() {
+        entries = new AtomicReferenceArray<T>(16);
+        size = 0;
+    }
+}
@@ -0,0 +1,87 @@
+package cycling;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * ResultStorage - A class which decides where the result columns of each
+ * stage are kept. Results are kept on the heap unless a portal is set up
+ * for a mass-participation event, where keeping them in direct buffers or
+ * in files mapped into memory keeps them out of garbage collection.
+ */
+public class ResultStorage {
+    private static final ResultStorage HEAP = new ResultStorage(null, false);
+    private static final ResultStorage DIRECT = new ResultStorage(null, true);
+
+    private Path directory;
+    private boolean offHeap;
+
+    private ResultStorage(Path directory, boolean offHeap) {
+        this.directory = directory;
+        this.offHeap = offHeap;
+    }
+
+    /**
+     * gets the storage which keeps results in arrays on the heap
+     *
+     * @return the storage
+     */
+    public static ResultStorage heap() {
+        return HEAP;
+    }
+
+    /**
+     * gets the storage which keeps results in direct buffers
+     *
+     * @return the storage
+     */
+    public static ResultStorage direct() {
+        return DIRECT;
+    }
+
+    /**
+     * gets a storage which keeps the results of each stage in a file in a
+     * directory, mapped into memory. When a snapshot is loaded, a stage's
+     * file is used as it is if its stamp shows it still holds the results
+     * the snapshot was written with, without reading them.
+     *
+     * @param directory the location of the directory, created if needed
+     * @return the storage
+     */
+    public static ResultStorage mapped(String directory) {
+        Path path = Paths.get(directory);
+        try {
+            Files.createDirectories(path);
+        } catch (IOException e) {
+            throw new UncheckedIOException("The directory " + directory + " could not be created.", e);
+        }
+        return new ResultStorage(path, true);
+    }
+
+    public boolean isOffHeap() {
+        return offHeap;
+    }
+
+    /**
+     * opens the store for the results of a stage
+     *
+     * @param stageId the Id of the stage
+     * @return the store
+     */
+    public ResultStore open(int stageId) {
+        if (!offHeap) {
+            return new HeapResultStore();
+        }
+        if (directory == null) {
+            return BufferResultStore.direct();
+        }
+        try {
+            return BufferResultStore.mapped(directory.resolve("stage-" + stageId + ".res"));
+        } catch (IOException e) {
+            throw new UncheckedIOException("The results of stage " + stageId + " could not be opened.", e);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package cycling;
+
+/**
+ * ResultStore - the storage behind the result columns of a stage. Each row
+ * holds a rider Id, a start time, an elapsed time, a checkpoint count and
+ * a fixed number of checkpoint slots, the stride, which are read and written
+ * by StageResults.
+ */
+public interface ResultStore {
+
+    /**
+     * gets the number of rows in use
+     *
+     * @return the number of rows
+     */
+    int getSize();
+
+    void setSize(int size);
+
+    /**
+     * gets the number of checkpoint slots in each row
+     *
+     * @return the stride
+     */
+    int getStride();
+
+    /**
+     * makes room for at least the given number of rows and checkpoint
+     * slots per row, keeping the rows in use
+     *
+     * @param rows   the number of rows needed
+     * @param stride the number of checkpoint slots needed per row
+     */
+    void reserve(int rows, int stride);
+
+    int getRiderId(int row);
+
+    void setRiderId(int row, int riderId);
+
+    long getStartTime(int row);
+
+    void setStartTime(int row, long startTime);
+
+    long getElapsedTime(int row);
+
+    void setElapsedTime(int row, long elapsedTime);
+
+    int getCheckpointCount(int row);
+
+    void setCheckpointCount(int row, int checkpointCount);
+
+    long getCheckpointOffset(int row, int slot);
+
+    void setCheckpointOffset(int row, int slot, long offset);
+
+    /**
+     * copies rows to another place in the store, the rows may overlap
+     *
+     * @param from  the first row copied
+     * @param to    the row the first row is copied to
+     * @param count the number of rows copied
+     */
+    void moveRows(int from, int to, int count);
+
+    /**
+     * gets the stamp of the rows. A store kept in a file changes its stamp
+     * before its rows change, so a snapshot written with the stamp can tell
+     * if the file still holds the rows it was written with.
+     *
+     * @return the stamp, 0 for a store which does not outlive the portal
+     */
+    long getStamp();
+
+    /**
+     * changes the stamp, called before any row is changed
+     */
+    void changeStamp();
+
+    /**
+     * frees the store once its stage has been removed
+     */
+    void release();
+}
@@ -0,0 +1,50 @@
+package cycling;
+
+/**
+ * SaveStatistics - A class which holds how much a save of the portal wrote
+ * and how long it took, split into the time the portal was held while
+ * the save was captured and the time spent writing the files.
+ */
+public class SaveStatistics {
+    private int filesWritten;
+    private long bytesWritten;
+    private long captureNanos;
+    private long writeNanos;
+
+    /**
+     * Constructor for the Objects of SaveStatistics class
+     *
+     * @param filesWritten the number of files written
+     * @param bytesWritten the number of bytes written
+     * @param captureNanos the time taken to capture the save, in nanoseconds
+     * @param writeNanos   the time taken to write the files, in nanoseconds
+     */
+    public SaveStatistics(int filesWritten, long bytesWritten, long captureNanos, long writeNanos) {
+        this.filesWritten = filesWritten;
+        this.bytesWritten = bytesWritten;
+        this.captureNanos = captureNanos;
+        this.writeNanos = writeNanos;
+    }
+
+    public int getFilesWritten() {
+        return filesWritten;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public long getCaptureNanos() {
+        return captureNanos;
+    }
+
+    public long getWriteNanos() {
+        return writeNanos;
+    }
+
+    @Override
+    public String toString() {
+        return filesWritten + " files, " + bytesWritten + " bytes, captured in " + captureNanos / 1000 + "us, written in "
+                + writeNanos / 1000 + "us";
+    }
+}
@@ -0,0 +1,804 @@
+package cycling;
+
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * ShardedCyclingPortal - A class which shares a CyclingPortal between many
+ * threads by giving each race to one worker thread, its shard, rather than
+ * by locking.
+ * <p>
+ * Callers submit commands and get back a future of the answer. Everything
+ * done to a race, its stages, segments and results is applied by the
+ * race's shard in the order it was submitted, so the races of different
+ * shards are worked on at the same time without any lock around the race
+ * and a caller which submits a result and then a classification is
+ * answered with its result counted. Teams and riders have a shard of their
+ * own. Creating races and listing them is done by the portal's worker,
+ * which also runs the changes reaching across every race, such as removing
+ * a race, team or rider, erasing, saving and loading, once every shard has
+ * finished the commands submitted before them and stopped.
+ * <p>
+ * A command which fails completes its future exceptionally with whatever
+ * it threw, errors included, so a caller is never left waiting on a future
+ * which will not complete. The portal should not be loaded in archive
+ * mode while it is shared, as reading one race can drop the stages of
+ * another.
+ */
+public class ShardedCyclingPortal {
+    private final CyclingPortal portal;
+    private final ExecutorService[] raceShards;
+    private final ExecutorService teamShard;
+    private final ExecutorService portalWorker;
+    /*
+     * stages and segments are created one at a time across every shard, so
+     * they are written to the journal in the order their Ids were handed out
+     * and get the same Ids when it is replayed
+     */
+    private final ReentrantLock allocationLock = new ReentrantLock();
+
+    public ShardedCyclingPortal() {
+        this(new CyclingPortal(), Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Constructor for the Objects of ShardedCyclingPortal class
+     *
+     * @param portal the portal to be shared, it should not be used
+     *               directly once it has been handed over
+     * @param shards the number of race shards, races whose Ids differ by a
+     *               multiple of this share one
+     */
+    public ShardedCyclingPortal(CyclingPortal portal, int shards) {
+        if (shards < 1) {
+            throw new IllegalArgumentException("There must be at least one shard.");
+        }
+        this.portal = portal;
+        raceShards = new ExecutorService[shards];
+        for (int i = 0; i < shards; i++) {
+            raceShards[i] = Executors.newSingleThreadExecutor(newThreadFactory("race-shard-" + i));
+        }
+        teamShard = Executors.newSingleThreadExecutor(newThreadFactory("team-shard"));
+        portalWorker = Executors.newSingleThreadExecutor(newThreadFactory("portal-worker"));
+    }
+
+    public int getShardCount() {
+        return raceShards.length;
+    }
+
+    /**
+     * submits a command to the shard of a race
+     *
+     * @param raceId  the Id of the race
+     * @param command the command, which should only touch that race
+     * @return the future of the command's answer
+     */
+    public <T> CompletableFuture<T> submitToRace(int raceId, PortalCommand<T> command) {
+        return submit(raceShards[Math.floorMod(raceId, raceShards.length)], command);
+    }
+
+    /**
+     * submits a command to the shard of the race a stage belongs to
+     *
+     * @param stageId the Id of the stage
+     * @param command the command, which should only touch that race
+     * @return the future of the command's answer, completed exceptionally
+     *         with an IDNotRecognisedException if the stage is not found
+     */
+    public <T> CompletableFuture<T> submitToStage(int stageId, PortalCommand<T> command) {
+        int raceId = portal.getStageRaceId(stageId);
+        if (raceId == 0) {
+            return CompletableFuture.failedFuture(
+                    new IDNotRecognisedException("Stage ID does not match to any stage in the system."));
+        }
+        return submitToRace(raceId, command);
+    }
+
+    /**
+     * submits a command to the shard of the race a segment belongs to
+     *
+     * @param segmentId the Id of the segment
+     * @param command   the command, which should only touch that race
+     * @return the future of the command's answer, completed exceptionally
+     *         with an IDNotRecognisedException if the segment is not found
+     */
+    public <T> CompletableFuture<T> submitToSegment(int segmentId, PortalCommand<T> command) {
+        int raceId = portal.getSegmentRaceId(segmentId);
+        if (raceId == 0) {
+            return CompletableFuture.failedFuture(
+                    new IDNotRecognisedException("Segment ID was not found in the system."));
+        }
+        return submitToRace(raceId, command);
+    }
+
+    /**
+     * submits a command to the shard of the teams and riders
+     *
+     * @param command the command, which should only touch teams and riders
+     * @return the future of the command's answer
+     */
+    public <T> CompletableFuture<T> submitToTeams(PortalCommand<T> command) {
+        return submit(teamShard, command);
+    }
+
+    /**
+     * submits a command which may touch anything in the portal. It is run
+     * once every shard has finished the commands submitted before it, and
+     * the shards wait for it to finish before carrying on.
+     *
+     * @param command the command
+     * @return the future of the command's answer
+     */
+    public <T> CompletableFuture<T> submitExclusive(final PortalCommand<T> command) {
+        final CompletableFuture<T> future = new CompletableFuture<T>();
+        portalWorker.execute(new Runnable() {
+            @Override
+            public void run() {
+                final CountDownLatch stopped = new CountDownLatch(raceShards.length + 1);
+                final CountDownLatch finished = new CountDownLatch(1);
+                Runnable stop = new Runnable() {
+                    @Override
+                    public void run() {
+                        stopped.countDown();
+                        awaitLatch(finished);
+                    }
+                };
+                for (int i = 0; i < raceShards.length; i++) {
+                    raceShards[i].execute(stop);
+                }
+                teamShard.execute(stop);
+                try {
+                    awaitLatch(stopped);
+                    future.complete(command.apply(portal));
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                } finally {
+                    finished.countDown();
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * stops the shards once the commands already submitted are finished,
+     * commands submitted afterwards are rejected
+     */
+    public void shutdown() {
+        /*
+         * the shards are stopped by the portal's worker, after any exclusive
+         * command still waiting has had them stop for it
+         */
+        portalWorker.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < raceShards.length; i++) {
+                    raceShards[i].shutdown();
+                }
+                teamShard.shutdown();
+            }
+        });
+        portalWorker.shutdown();
+    }
+
+    public CompletableFuture<int[]> getRaceIds() {
+        return submit(portalWorker, new PortalCommand<int[]>() {
+            @Override
+            public int[] apply(CyclingPortal portal) {
+                return portal.getRaceIds();
+            }
+        });
+    }
+
+    public CompletableFuture<Integer> createRace(final String name, final String description) {
+        // races are only created by the portal's worker, so names are checked one at a time
+        return submit(portalWorker, new PortalCommand<Integer>() {
+            @Override
+            public Integer apply(CyclingPortal portal) throws Exception {
+                return portal.createRace(name, description);
+            }
+        });
+    }
+
+    public CompletableFuture<String> viewRaceDetails(final int raceId) {
+        return submitToRace(raceId, new PortalCommand<String>() {
+            @Override
+            public String apply(CyclingPortal portal) throws Exception {
+                return portal.viewRaceDetails(raceId);
+            }
+        });
+    }
+
+    public CompletableFuture<Void> removeRaceById(final int raceId) {
+        return submitExclusive(new PortalCommand<Void>() {
+            @Override
+            public Void apply(CyclingPortal portal) throws Exception {
+                portal.removeRaceById(raceId);
+                return null;
+            }
+        });
+    }
+
+    public CompletableFuture<Void> removeRaceByName(final String name) {
+        return submitExclusive(new PortalCommand<Void>() {
+            @Override
+            public Void apply(CyclingPortal portal) throws Exception {
+                portal.removeRaceByName(name);
+                return null;
+            }
+        });
+    }
+
+    public CompletableFuture<int[]> getRaceStages(final int raceId) {
+        return submitToRace(raceId, new PortalCommand<int[]>() {
+            @Override
+            public int[] apply(CyclingPortal portal) throws Exception {
+                return portal.getRaceStages(raceId);
+            }
+        });
+    }
+
+    public CompletableFuture<Integer> getNumberOfStages(final int raceId) {
+        return submitToRace(raceId, new PortalCommand<Integer>() {
+            @Override
+            public Integer apply(CyclingPortal portal) throws Exception {
+                return portal.getNumberOfStages(raceId);
+            }
+        });
+    }
+
+    public CompletableFuture<Integer> addStageToRace(final int raceId, final String stageName,
+            final String description, final double length, final LocalDateTime startTime, final StageType type) {
+        return submitToRace(raceId, new PortalCommand<Integer>() {
+            @Override
+            public Integer apply(CyclingPortal portal) throws Exception {
+                allocationLock.lock();
+                try {
+                    return portal.addStageToRace(raceId, stageName, description, length, startTime, type);
+                } finally {
+                    allocationLock.unlock();
+                }
+            }
+        });
+    }
+
+    public CompletableFuture<Void> removeStageById(final int stageId) {
+        return submitToStage(stageId, new PortalCommand<Void>() {
+            @Override
+            public Void apply(CyclingPortal portal) throws Exception {
+                portal.removeStageById(stageId);
+                return null;
+            }
+        });
+    }
+
+    public CompletableFuture<Double> getStageLength(final int stageId) {
+        return submitToStage(stageId, new PortalCommand<Double>() {
+            @Override
+            public Double apply(CyclingPortal portal) throws Exception {
+                return portal.getStageLength(stageId);
+            }
+        });
+    }
+
+    public CompletableFuture<Integer> addCategorizedClimbToStage(final int stageId, final Double location,
+            final SegmentType type, final Double averageGradient, final Double length) {
+        return submitToStage(stageId, new PortalCommand<Integer>() {
+            @Override
+            public Integer apply(CyclingPortal portal) throws Exception {
+                allocationLock.lock();
+                try {
+                    return portal.addCategorizedClimbToStage(stageId, location, type, averageGradient, length);
+                } finally {
+                    allocationLock.unlock();
+                }
+            }
+        });
+    }
+
+    public CompletableFuture<Integer> addIntermediateSprintToStage(final int stageId, final double location) {
+        return submitToStage(stageId, new PortalCommand<Integer>() {
+            @Override
+            public Integer apply(CyclingPortal portal) throws Exception {
+                allocationLock.lock();
+                try {
+                    return portal.addIntermediateSprintToStage(stageId, location);
+                } finally {
+                    allocationLock.unlock();
+                }
+            }
+        });
+    }
+
+    public CompletableFuture<Integer> leaseSegmentIds(final int count) {
+        // taken along with the segments created so leases reach the journal in the order they were made
+        return submit(portalWorker, new PortalCommand<Integer>() {
+            @Override
+            public Integer apply(CyclingPortal portal) {
+                allocationLock.lock();
+                try {
+                    return portal.leaseSegmentIds(count);
+                } finally {
+                    allocationLock.unlock();
+                }
+            }
+        });
+    }
+
+    public CompletableFuture<Integer> addCategorizedClimbToStage(final int stageId, final Double location,
+            final SegmentType type, final Double averageGradient, final Double length, final int segmentId) {
+        return submitToStage(stageId, new PortalCommand<Integer>() {
+            @Override
+            public Integer apply(CyclingPortal portal) throws Exception {
+                return portal.addCategorizedClimbToStage(stageId, location, type, averageGradient, length, segmentId);
+            }
+        });
+    }
+
+    public CompletableFuture<Integer> addIntermediateSprintToStage(final int stageId, final double location,
+            final int segmentId) {
+        return submitToStage(stageId, new PortalCommand<Integer>() {
+            @Override
+            public Integer apply(CyclingPortal portal) throws Exception {
+                return portal.addIntermediateSprintToStage(stageId, location, segmentId);
+            }
+        });
+    }
+
+    public CompletableFuture<Void> removeSegment(final int segmentId) {
+        return submitToSegment(segmentId, new PortalCommand<Void>() {
+            @Override
+            public Void apply(CyclingPortal portal) throws Exception {
+                portal.removeSegment(segmentId);
+                return null;
+            }
+        });
+    }
+
+    public CompletableFuture<int[]> getStageSegments(final int stageId) {
+        return submitToStage(stageId, new PortalCommand<int[]>() {
+            @Override
+            public int[] apply(CyclingPortal portal) throws Exception {
+                return portal.getStageSegments(stageId);
+            }
+        });
+    }
+
+    public CompletableFuture<Void> concludeStagePreparation(final int stageId) {
+        return submitToStage(stageId, new PortalCommand<Void>() {
+            @Override
+            public Void apply(CyclingPortal portal) throws Exception {
+                portal.concludeStagePreparation(stageId);
+                return null;
+            }
+        });
+    }
+
+    public CompletableFuture<Integer> createTeam(final String name, final String description) {
+        return submitToTeams(new PortalCommand<Integer>() {
+            @Override
+            public Integer apply(CyclingPortal portal) throws Exception {
+                return portal.createTeam(name, description);
+            }
+        });
+    }
+
+    public CompletableFuture<Integer> leaseTeamIds(final int count) {
+        // leased on the team shard so leases reach the journal in the order they were made
+        return submitToTeams(new PortalCommand<Integer>() {
+            @Override
+            public Integer apply(CyclingPortal portal) {
+                return portal.leaseTeamIds(count);
+            }
+        });
+    }
+
+    public CompletableFuture<Integer> createTeam(final String name, final String description, final int teamId) {
+        return submitToTeams(new PortalCommand<Integer>() {
+            @Override
+            public Integer apply(CyclingPortal portal) throws Exception {
+                return portal.createTeam(name, description, teamId);
+            }
+        });
+    }
+
+    public CompletableFuture<Void> removeTeam(final int teamId) {
+        return submitExclusive(new PortalCommand<Void>() {
+            @Override
+            public Void apply(CyclingPortal portal) throws Exception {
+                portal.removeTeam(teamId);
+                return null;
+            }
+        });
+    }
+
+    public CompletableFuture<int[]> getTeams() {
+        return submitToTeams(new PortalCommand<int[]>() {
+            @Override
+            public int[] apply(CyclingPortal portal) {
+                return portal.getTeams();
+            }
+        });
+    }
+
+    public CompletableFuture<int[]> getTeamRiders(final int teamId) {
+        return submitToTeams(new PortalCommand<int[]>() {
+            @Override
+            public int[] apply(CyclingPortal portal) throws Exception {
+                return portal.getTeamRiders(teamId);
+            }
+        });
+    }
+
+    public CompletableFuture<Integer> createRider(final int teamId, final String name, final int yearOfBirth) {
+        return submitToTeams(new PortalCommand<Integer>() {
+            @Override
+            public Integer apply(CyclingPortal portal) throws Exception {
+                return portal.createRider(teamId, name, yearOfBirth);
+            }
+        });
+    }
+
+    public CompletableFuture<Integer> leaseRiderIds(final int count) {
+        return submitToTeams(new PortalCommand<Integer>() {
+            @Override
+            public Integer apply(CyclingPortal portal) {
+                return portal.leaseRiderIds(count);
+            }
+        });
+    }
+
+    public CompletableFuture<Integer> createRider(final int teamId, final String name, final int yearOfBirth,
+            final int riderId) {
+        return submitToTeams(new PortalCommand<Integer>() {
+            @Override
+            public Integer apply(CyclingPortal portal) throws Exception {
+                return portal.createRider(teamId, name, yearOfBirth, riderId);
+            }
+        });
+    }
+
+    public CompletableFuture<Void> removeRider(final int riderId) {
+        return submitExclusive(new PortalCommand<Void>() {
+            @Override
+            public Void apply(CyclingPortal portal) throws Exception {
+                portal.removeRider(riderId);
+                return null;
+            }
+        });
+    }
+
+    public CompletableFuture<Void> registerRiderResultsInStage(final int stageId, final int riderId,
+            final LocalTime... checkpoints) {
+        return submitToStage(stageId, new PortalCommand<Void>() {
+            @Override
+            public Void apply(CyclingPortal portal) throws Exception {
+                portal.registerRiderResultsInStage(stageId, riderId, checkpoints);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * registers the results of many riders in a stage at once
+     *
+     * @param stageId     the Id of the stage
+     * @param riderIds    the Ids of the riders
+     * @param checkpoints the checkpoint times of each rider
+     * @return the future completed once the results are registered
+     * @see CyclingPortal#registerRidersResultsInStage(int, int[], LocalTime[][])
+     */
+    public CompletableFuture<Void> registerRidersResultsInStage(final int stageId, final int[] riderIds,
+            final LocalTime[][] checkpoints) {
+        return submitToStage(stageId, new PortalCommand<Void>() {
+            @Override
+            public Void apply(CyclingPortal portal) throws Exception {
+                portal.registerRidersResultsInStage(stageId, riderIds, checkpoints);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * registers the results of many riders in a stage at once from
+     * primitive arrays
+     *
+     * @param stageId         the Id of the stage
+     * @param riderIds        the Ids of the riders
+     * @param checkpointNanos the checkpoints of each rider one after another,
+     *                        as nanoseconds of the day
+     * @return the future completed once the results are registered
+     * @see CyclingPortal#registerRidersResultsInStage(int, int[], long[])
+     */
+    public CompletableFuture<Void> registerRidersResultsInStage(final int stageId, final int[] riderIds,
+            final long[] checkpointNanos) {
+        return submitToStage(stageId, new PortalCommand<Void>() {
+            @Override
+            public Void apply(CyclingPortal portal) throws Exception {
+                portal.registerRidersResultsInStage(stageId, riderIds, checkpointNanos);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * records a rider passing a checkpoint of a stage being ridden
+     *
+     * @param stageId         the Id of the stage
+     * @param riderId         the Id of the rider
+     * @param checkpointIndex the index of the checkpoint
+     * @param time            the time the rider passed it
+     * @return the future of whether the passing completed the rider's result
+     * @see CyclingPortal#registerRiderPassingInStage(int, int, int, LocalTime)
+     */
+    public CompletableFuture<Boolean> registerRiderPassingInStage(final int stageId, final int riderId,
+            final int checkpointIndex, final LocalTime time) {
+        return submitToStage(stageId, new PortalCommand<Boolean>() {
+            @Override
+            public Boolean apply(CyclingPortal portal) throws Exception {
+                return portal.registerRiderPassingInStage(stageId, riderId, checkpointIndex, time);
+            }
+        });
+    }
+
+    public CompletableFuture<Void> deleteRiderResultsInStage(final int stageId, final int riderId) {
+        return submitToStage(stageId, new PortalCommand<Void>() {
+            @Override
+            public Void apply(CyclingPortal portal) throws Exception {
+                portal.deleteRiderResultsInStage(stageId, riderId);
+                return null;
+            }
+        });
+    }
+
+    public CompletableFuture<LocalTime[]> getRiderResultsInStage(final int stageId, final int riderId) {
+        return submitToStage(stageId, new PortalCommand<LocalTime[]>() {
+            @Override
+            public LocalTime[] apply(CyclingPortal portal) throws Exception {
+                return portal.getRiderResultsInStage(stageId, riderId);
+            }
+        });
+    }
+
+    public CompletableFuture<LocalTime> getRiderAdjustedElapsedTimeInStage(final int stageId, final int riderId) {
+        return submitToStage(stageId, new PortalCommand<LocalTime>() {
+            @Override
+            public LocalTime apply(CyclingPortal portal) throws Exception {
+                return portal.getRiderAdjustedElapsedTimeInStage(stageId, riderId);
+            }
+        });
+    }
+
+    public CompletableFuture<int[]> getRidersRankInStage(final int stageId) {
+        return submitToStage(stageId, new PortalCommand<int[]>() {
+            @Override
+            public int[] apply(CyclingPortal portal) throws Exception {
+                return portal.getRidersRankInStage(stageId);
+            }
+        });
+    }
+
+    public CompletableFuture<LocalTime[]> getRankedAdjustedElapsedTimesInStage(final int stageId) {
+        return submitToStage(stageId, new PortalCommand<LocalTime[]>() {
+            @Override
+            public LocalTime[] apply(CyclingPortal portal) throws Exception {
+                return portal.getRankedAdjustedElapsedTimesInStage(stageId);
+            }
+        });
+    }
+
+    public CompletableFuture<int[]> getRidersPointsInStage(final int stageId) {
+        return submitToStage(stageId, new PortalCommand<int[]>() {
+            @Override
+            public int[] apply(CyclingPortal portal) throws Exception {
+                return portal.getRidersPointsInStage(stageId);
+            }
+        });
+    }
+
+    public CompletableFuture<int[]> getRidersMountainPointsInStage(final int stageId) {
+        return submitToStage(stageId, new PortalCommand<int[]>() {
+            @Override
+            public int[] apply(CyclingPortal portal) throws Exception {
+                return portal.getRidersMountainPointsInStage(stageId);
+            }
+        });
+    }
+
+    public CompletableFuture<LocalTime[]> getGeneralClassificationTimesInRace(final int raceId) {
+        return submitToRace(raceId, new PortalCommand<LocalTime[]>() {
+            @Override
+            public LocalTime[] apply(CyclingPortal portal) throws Exception {
+                return portal.getGeneralClassificationTimesInRace(raceId);
+            }
+        });
+    }
+
+    public CompletableFuture<int[]> getRidersGeneralClassificationRank(final int raceId) {
+        return submitToRace(raceId, new PortalCommand<int[]>() {
+            @Override
+            public int[] apply(CyclingPortal portal) throws Exception {
+                return portal.getRidersGeneralClassificationRank(raceId);
+            }
+        });
+    }
+
+    public CompletableFuture<int[]> getRidersPointsInRace(final int raceId) {
+        return submitToRace(raceId, new PortalCommand<int[]>() {
+            @Override
+            public int[] apply(CyclingPortal portal) throws Exception {
+                return portal.getRidersPointsInRace(raceId);
+            }
+        });
+    }
+
+    public CompletableFuture<int[]> getRidersMountainPointsInRace(final int raceId) {
+        return submitToRace(raceId, new PortalCommand<int[]>() {
+            @Override
+            public int[] apply(CyclingPortal portal) throws Exception {
+                return portal.getRidersMountainPointsInRace(raceId);
+            }
+        });
+    }
+
+    public CompletableFuture<int[]> getRidersPointClassificationRank(final int raceId) {
+        return submitToRace(raceId, new PortalCommand<int[]>() {
+            @Override
+            public int[] apply(CyclingPortal portal) throws Exception {
+                return portal.getRidersPointClassificationRank(raceId);
+            }
+        });
+    }
+
+    public CompletableFuture<int[]> getRidersMountainPointClassificationRank(final int raceId) {
+        return submitToRace(raceId, new PortalCommand<int[]>() {
+            @Override
+            public int[] apply(CyclingPortal portal) throws Exception {
+                return portal.getRidersMountainPointClassificationRank(raceId);
+            }
+        });
+    }
+
+    public CompletableFuture<Void> eraseCyclingPortal() {
+        return submitExclusive(new PortalCommand<Void>() {
+            @Override
+            public Void apply(CyclingPortal portal) {
+                portal.eraseCyclingPortal();
+                return null;
+            }
+        });
+    }
+
+    public CompletableFuture<Void> saveCyclingPortal(final String filename) {
+        return submitExclusive(new PortalCommand<Void>() {
+            @Override
+            public Void apply(CyclingPortal portal) throws Exception {
+                portal.saveCyclingPortal(filename);
+                return null;
+            }
+        });
+    }
+
+    public CompletableFuture<Void> loadCyclingPortal(final String filename) {
+        return submitExclusive(new PortalCommand<Void>() {
+            @Override
+            public Void apply(CyclingPortal portal) throws Exception {
+                portal.loadCyclingPortal(filename);
+                return null;
+            }
+        });
+    }
+
+    public CompletableFuture<SaveStatistics> saveCyclingPortalToDirectory(final String directory) {
+        return submitExclusive(new PortalCommand<SaveStatistics>() {
+            @Override
+            public SaveStatistics apply(CyclingPortal portal) throws Exception {
+                return portal.saveCyclingPortalToDirectory(directory);
+            }
+        });
+    }
+
+    public CompletableFuture<Void> loadCyclingPortalFromDirectory(final String directory) {
+        return submitExclusive(new PortalCommand<Void>() {
+            @Override
+            public Void apply(CyclingPortal portal) throws Exception {
+                portal.loadCyclingPortalFromDirectory(directory);
+                return null;
+            }
+        });
+    }
+
+    public CompletableFuture<Void> openJournal(final String filename, final JournalSyncPolicy policy) {
+        return submitExclusive(new PortalCommand<Void>() {
+            @Override
+            public Void apply(CyclingPortal portal) throws Exception {
+                portal.openJournal(filename, policy);
+                return null;
+            }
+        });
+    }
+
+    public CompletableFuture<Void> checkpointJournal(final String filename) {
+        return submitExclusive(new PortalCommand<Void>() {
+            @Override
+            public Void apply(CyclingPortal portal) throws Exception {
+                portal.checkpointJournal(filename);
+                return null;
+            }
+        });
+    }
+
+    public CompletableFuture<Void> closeJournal() {
+        return submitExclusive(new PortalCommand<Void>() {
+            @Override
+            public Void apply(CyclingPortal portal) throws Exception {
+                portal.closeJournal();
+                return null;
+            }
+        });
+    }
+
+    public CompletableFuture<Void> setResultStorage(final ResultStorage resultStorage) {
+        return submitExclusive(new PortalCommand<Void>() {
+            @Override
+            public Void apply(CyclingPortal portal) {
+                portal.setResultStorage(resultStorage);
+                return null;
+            }
+        });
+    }
+
+    private <T> CompletableFuture<T> submit(ExecutorService shard, final PortalCommand<T> command) {
+        final CompletableFuture<T> future = new CompletableFuture<T>();
+        shard.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    future.complete(command.apply(portal));
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * waits for a latch to reach zero, a shard which is interrupted while
+     * stopped keeps waiting so the exclusive command never runs alongside it
+     *
+     * @param latch the latch
+     */
+    private static void awaitLatch(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static ThreadFactory newThreadFactory(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name);
+                // the shards don't keep the program running once the callers are done
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
@@ -0,0 +1,181 @@
+package cycling;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * SnapshotInput - A class which reads a portal written by SnapshotOutput.
+ * The header and string table are read when it is created, after which
+ * the body is read in the same order it was written.
+ */
+public class SnapshotInput {
+    private byte[] data;
+    private int position;
+    private String[] strings;
+
+    private SnapshotInput(byte[] data, int offset) {
+        this.data = data;
+        this.position = offset;
+        this.strings = new String[0];
+    }
+
+    /**
+     * Constructor for the Objects of SnapshotInput class
+     *
+     * @param data the contents of the snapshot file
+     * @throws IOException if the data is not a snapshot or was written
+     *                     in another version of the format
+     */
+    public SnapshotInput(byte[] data) throws IOException {
+        this.data = data;
+        if (!isSnapshot(data)) {
+            throw new IOException("The file is not a cycling portal snapshot.");
+        }
+        position = 4;
+        int version = readVarInt();
+        if (version != SnapshotOutput.VERSION) {
+            throw new IOException("The snapshot was written in another version of the format (" + version + ").");
+        }
+        strings = new String[readVarInt()];
+        for (int i = 0; i < strings.length; i++) {
+            int length = readVarInt();
+            checkAvailable(length);
+            strings[i] = new String(data, position, length, StandardCharsets.UTF_8);
+            position += length;
+        }
+    }
+
+    /**
+     * reads bytes which have no header or string table, such as a
+     * journal record
+     *
+     * @param data   the bytes
+     * @param offset where the reading starts
+     * @return the input object
+     */
+    public static SnapshotInput ofBody(byte[] data, int offset) {
+        return new SnapshotInput(data, offset);
+    }
+
+    /**
+     * checks if some data starts with the snapshot magic number
+     *
+     * @param data the contents of a file
+     * @return true if the data is a snapshot, false if it isn't
+     */
+    public static boolean isSnapshot(byte[] data) {
+        if (data.length < 4) {
+            return false;
+        }
+        int magic = ((data[0] & 0xFF) << 24) | ((data[1] & 0xFF) << 16) | ((data[2] & 0xFF) << 8)
+                | (data[3] & 0xFF);
+        return magic == SnapshotOutput.MAGIC;
+    }
+
+    public int readByte() throws IOException {
+        checkAvailable(1);
+        return data[position++] & 0xFF;
+    }
+
+    public long readVarLong() throws IOException {
+        long value = 0;
+        int shift = 0;
+        int current;
+        do {
+            if (shift > 63) {
+                throw new IOException("The snapshot has a number which is too long.");
+            }
+            current = readByte();
+            value |= (long) (current & 0x7F) << shift;
+            shift += 7;
+        } while ((current & 0x80) != 0);
+        return value;
+    }
+
+    public int readVarInt() throws IOException {
+        return (int) readVarLong();
+    }
+
+    public long readSignedVarLong() throws IOException {
+        long value = readVarLong();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    public double readDouble() throws IOException {
+        long bits = 0;
+        for (int i = 0; i < 8; i++) {
+            bits |= (long) readByte() << (i * 8);
+        }
+        return Double.longBitsToDouble(bits);
+    }
+
+    /**
+     * reads a string from its position in the string table
+     *
+     * @return the string, may be null
+     * @throws IOException if the position is not in the table
+     */
+    public String readString() throws IOException {
+        int index = readVarInt();
+        if (index == 0) {
+            return null;
+        } else if (index < 0 || index > strings.length) {
+            throw new IOException("The snapshot refers to a string which is not in its table.");
+        }
+        return strings[index - 1];
+    }
+
+    /**
+     * reads a string written in place by
+     * {@link SnapshotOutput#writeInlineString(String)}
+     *
+     * @return the string, may be null
+     * @throws IOException if the string runs past the end of the data
+     */
+    public String readInlineString() throws IOException {
+        int length = readVarInt();
+        if (length == 0) {
+            return null;
+        }
+        checkAvailable(length - 1);
+        String value = new String(data, position, length - 1, StandardCharsets.UTF_8);
+        position += length - 1;
+        return value;
+    }
+
+    public int getPosition() {
+        return position;
+    }
+
+    /**
+     * moves past a block without reading it
+     *
+     * @param length the length of the block in bytes
+     * @throws IOException if the snapshot ends before the block does
+     */
+    public void skip(int length) throws IOException {
+        checkAvailable(length);
+        position += length;
+    }
+
+    /**
+     * works out a checksum of part of what has been read, matching
+     * {@link SnapshotOutput#checksum(int, int)}
+     *
+     * @param from the position of the first byte
+     * @param to   the position after the last byte
+     * @return the CRC32 of the bytes
+     */
+    public long checksum(int from, int to) {
+        CRC32 checksum = new CRC32();
+        checksum.update(data, from, to - from);
+        return checksum.getValue();
+    }
+
+    private void checkAvailable(int length) throws IOException {
+        if (length < 0 || position + length > data.length) {
+            throw new IOException("The snapshot ended unexpectedly.");
+        }
+    }
+}
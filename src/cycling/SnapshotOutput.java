@@ -0,0 +1,180 @@
+package cycling;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+
+/**
+ * SnapshotOutput - A class which writes the portal in its binary snapshot
+ * format. Numbers are written as variable length integers, and every string
+ * is written once in a table at the start of the file and referred to by its
+ * position in the table everywhere else.
+ * <p>
+ * The file starts with the magic number and the format version, followed by
+ * the string table and then the body.
+ */
+public class SnapshotOutput {
+    public static final int MAGIC = 0x43595053;
+    // raised whenever the format changes once it has been released
+    public static final int VERSION = 1;
+
+    private byte[] body;
+    private int size;
+    private ArrayList<String> strings = new ArrayList<String>();
+    private HashMap<String, Integer> stringIndexes = new HashMap<String, Integer>();
+
+    public SnapshotOutput() {
+        body = new byte[4096];
+        size = 0;
+    }
+
+    public void writeByte(int value) {
+        if (size == body.length) {
+            byte[] newBody = new byte[body.length * 2];
+            System.arraycopy(body, 0, newBody, 0, size);
+            body = newBody;
+        }
+        body[size++] = (byte) value;
+    }
+
+    /**
+     * writes a number which is never negative, such as an Id or a count,
+     * seven bits at a time so small numbers take a single byte
+     *
+     * @param value the number
+     */
+    public void writeVarLong(long value) {
+        while ((value & ~0x7FL) != 0) {
+            writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        writeByte((int) value);
+    }
+
+    public void writeVarInt(int value) {
+        writeVarLong(value & 0xFFFFFFFFL);
+    }
+
+    /**
+     * writes a number which may be negative, the sign is moved to
+     * the lowest bit so small negative numbers stay short
+     *
+     * @param value the number
+     */
+    public void writeSignedVarLong(long value) {
+        writeVarLong((value << 1) ^ (value >> 63));
+    }
+
+    public void writeDouble(double value) {
+        long bits = Double.doubleToLongBits(value);
+        for (int i = 0; i < 8; i++) {
+            writeByte((int) (bits >>> (i * 8)));
+        }
+    }
+
+    /**
+     * writes a string as its position in the string table,
+     * adding it to the table the first time it is written
+     *
+     * @param value the string, may be null
+     */
+    public void writeString(String value) {
+        if (value == null) {
+            writeVarInt(0);
+            return;
+        }
+        Integer index = stringIndexes.get(value);
+        if (index == null) {
+            index = strings.size() + 1;
+            strings.add(value);
+            stringIndexes.put(value, index);
+        }
+        writeVarInt(index);
+    }
+
+    /**
+     * writes a string in place rather than through the string table,
+     * used for journal records which are read on their own
+     *
+     * @param value the string, may be null
+     */
+    public void writeInlineString(String value) {
+        if (value == null) {
+            writeVarInt(0);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(bytes.length + 1);
+        for (int i = 0; i < bytes.length; i++) {
+            writeByte(bytes[i]);
+        }
+    }
+
+    /**
+     * appends what has been written to another output, such as a block
+     * written on its own so its length can be written before it. The
+     * other output must not have written any strings.
+     *
+     * @param part the other output
+     */
+    public void write(SnapshotOutput part) {
+        for (int i = 0; i < part.size; i++) {
+            writeByte(part.body[i]);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * works out a checksum of part of what has been written
+     *
+     * @param from the position of the first byte
+     * @param to   the position after the last byte
+     * @return the CRC32 of the bytes
+     */
+    public long checksum(int from, int to) {
+        CRC32 checksum = new CRC32();
+        checksum.update(body, from, to - from);
+        return checksum.getValue();
+    }
+
+    /**
+     * gets what has been written so far, without a header or string table
+     *
+     * @return the bytes written
+     */
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[size];
+        System.arraycopy(body, 0, bytes, 0, size);
+        return bytes;
+    }
+
+    /**
+     * writes the header, the string table and the body to a stream
+     *
+     * @param stream the stream the snapshot is written to
+     * @throws IOException if the stream cannot be written to
+     */
+    public void writeTo(OutputStream stream) throws IOException {
+        SnapshotOutput header = new SnapshotOutput();
+        for (int i = 3; i >= 0; i--) {
+            header.writeByte(MAGIC >>> (i * 8));
+        }
+        header.writeVarInt(VERSION);
+        header.writeVarInt(strings.size());
+        for (int i = 0; i < strings.size(); i++) {
+            byte[] bytes = strings.get(i).getBytes(StandardCharsets.UTF_8);
+            header.writeVarInt(bytes.length);
+            for (int j = 0; j < bytes.length; j++) {
+                header.writeByte(bytes[j]);
+            }
+        }
+        stream.write(header.body, 0, header.size);
+        stream.write(body, 0, size);
+    }
+}
@@ -0,0 +1,103 @@
+package cycling;
+
+/**
+ * StageLifecycle - A class which holds the state of a stage as a StageState
+ * and moves it from one state to the next under the lifecycle's lock, so a
+ * stage being concluded while one of its segments is changed ends up the
+ * same way whichever thread gets there first: the change either finishes
+ * before the stage is concluded or is rejected. A thread which finds a
+ * change under way waits on the lock until the change is finished, rather
+ * than spinning.
+ * <p>
+ * The stage keeps its own state as well, as that is what is saved, and it
+ * is concluded along with its lifecycle.
+ */
+public class StageLifecycle {
+    private final Stage stage;
+    // only changed under the lock, but read without it
+    private volatile StageState state;
+
+    /**
+     * Constructor for the Objects of StageLifecycle class which starts
+     * from the state the stage is in
+     *
+     * @param stage the stage object
+     */
+    public StageLifecycle(Stage stage) {
+        this.stage = stage;
+        if (stage.getState().equals("waiting for results")) {
+            state = StageState.WAITING_FOR_RESULTS;
+        } else {
+            state = StageState.IN_PREPARATION;
+        }
+    }
+
+    public Stage getStage() {
+        return stage;
+    }
+
+    public StageState getState() {
+        return state;
+    }
+
+    public boolean isWaitingForResults() {
+        return state == StageState.WAITING_FOR_RESULTS;
+    }
+
+    /**
+     * starts a change to the stage's segments, waiting for any other
+     * change to finish first
+     *
+     * @throws InvalidStageStateException if the stage is waiting for results
+     */
+    public synchronized void beginSegmentChange() throws InvalidStageStateException {
+        awaitNoChange();
+        if (state == StageState.WAITING_FOR_RESULTS) {
+            throw new InvalidStageStateException("The stage is currently `waiting for results`.");
+        }
+        state = StageState.CHANGING_SEGMENTS;
+    }
+
+    /**
+     * finishes a change started by {@link #beginSegmentChange()} and wakes
+     * the threads waiting for it
+     */
+    public synchronized void endSegmentChange() {
+        if (state == StageState.CHANGING_SEGMENTS) {
+            state = StageState.IN_PREPARATION;
+            notifyAll();
+        }
+    }
+
+    /**
+     * concludes the preparation of the stage. The stage is claimed with
+     * {@link #beginSegmentChange()} first, so the conclusion can be
+     * journaled before it is made without another thread concluding the
+     * stage or changing its segments in between.
+     */
+    public synchronized void conclude() {
+        state = StageState.WAITING_FOR_RESULTS;
+        stage.conclude();
+        notifyAll();
+    }
+
+    /**
+     * waits until no change to the stage's segments is under way, the
+     * caller must hold the lock. If the thread is interrupted it carries on
+     * waiting, as the caller cannot give up half way, and the interrupt is
+     * set again once the change is finished
+     */
+    private void awaitNoChange() {
+        boolean interrupted = false;
+        while (state == StageState.CHANGING_SEGMENTS) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package cycling;
+
+/**
+ * StagePlan - A class which holds what a stage's results are checked and
+ * scored against: the number of checkpoints a result must have, the types
+ * of the segments in checkpoint order and the points given for each place
+ * at each segment and at the finish. It is compiled once from the stage's
+ * segments and never changes, a stage whose segments change gets a new one.
+ * Once a stage's preparation is concluded its plan is compiled straight
+ * away and used for as long as the stage exists.
+ * <p>
+ * The points are worked out the same way the stage works them out from its
+ * result objects: the finish order gives the stage points, and the riders
+ * are ordered by their time from the start to checkpoint k for the k-th
+ * segment, ties going to the rider who finished first. Only the riders
+ * placed high enough to score at a segment are picked out, rather than
+ * sorting every rider.
+ */
+public class StagePlan {
+    // ResultHandler gives no points below this place, at a segment or at the finish
+    private static final int SCORING_PLACES = 15;
+    private static final int[] NO_POINTS = new int[0];
+
+    private final int checkpointCount;
+    private final SegmentType[] segmentTypes;
+    private final boolean[] sprints;
+    // the points for each place at each segment, only as long as the places which score
+    private final int[][] segmentPoints;
+    private final int[] stagePoints;
+
+    /**
+     * Constructor for the Objects of StagePlan class
+     *
+     * @param type         the type of the stage
+     * @param segmentTypes the types of the stage's segments in checkpoint
+     *                     order, a type is null if the segment is not known
+     */
+    public StagePlan(StageType type, SegmentType[] segmentTypes) {
+        this.segmentTypes = segmentTypes.clone();
+        checkpointCount = segmentTypes.length + 2;
+        sprints = new boolean[segmentTypes.length];
+        segmentPoints = new int[segmentTypes.length][];
+        for (int k = 0; k < segmentTypes.length; k++) {
+            if (segmentTypes[k] == null) {
+                segmentPoints[k] = NO_POINTS;
+                continue;
+            }
+            sprints[k] = segmentTypes[k].equals(SegmentType.SPRINT);
+            int[] table = new int[SCORING_PLACES];
+            for (int place = 0; place < SCORING_PLACES; place++) {
+                table[place] = ResultHandler.getSegmentPoints(segmentTypes[k], place);
+            }
+            segmentPoints[k] = trim(table);
+        }
+        int[] table = new int[SCORING_PLACES];
+        for (int place = 0; place < SCORING_PLACES; place++) {
+            table[place] = ResultHandler.getStagePoints(type, place);
+        }
+        stagePoints = trim(table);
+    }
+
+    /**
+     * gets the number of checkpoints a result must have, the start, one
+     * for each segment and the finish
+     *
+     * @return the number of checkpoints
+     */
+    public int getCheckpointCount() {
+        return checkpointCount;
+    }
+
+    public SegmentType[] getSegmentTypes() {
+        return segmentTypes.clone();
+    }
+
+    /**
+     * gets the number of places which score at a segment
+     *
+     * @param segmentIndex the position of the segment in the stage
+     * @return the number of places, 0 if the segment gives no points
+     */
+    public int getScoringPlaces(int segmentIndex) {
+        return segmentPoints[segmentIndex].length;
+    }
+
+    /**
+     * gets the points given for a place at a segment
+     *
+     * @param segmentIndex the position of the segment in the stage
+     * @param place        the place, 0 being the first
+     * @return the points, 0 if the place does not score
+     */
+    public int getSegmentPoints(int segmentIndex, int place) {
+        int[] table = segmentPoints[segmentIndex];
+        return place < table.length ? table[place] : 0;
+    }
+
+    /**
+     * works out the points of every rider, from the finish and the sprints
+     * if mountain is false or from the climbs if it is true
+     *
+     * @param results  the checkpoint times of the results in finish order
+     * @param mountain whether the climbs are counted rather than the sprints
+     * @return the points in finish order
+     */
+    public int[] workOutPoints(CheckpointOffsets results, boolean mountain) {
+        int resultCount = results.size();
+        int[] riderPoints = new int[resultCount];
+        long[] segmentTimes = new long[resultCount];
+        for (int k = 0; k < segmentPoints.length; k++) {
+            if (segmentPoints[k].length == 0 || sprints[k] == mountain) {
+                continue;
+            }
+            for (int i = 0; i < resultCount; i++) {
+                segmentTimes[i] = getSegmentTime(results, i, k);
+            }
+            int[] leaders = fastest(segmentTimes, resultCount, segmentPoints[k].length);
+            for (int place = 0; place < leaders.length; place++) {
+                riderPoints[leaders[place]] += segmentPoints[k][place];
+            }
+        }
+        if (!mountain) {
+            int scoringCount = Math.min(resultCount, stagePoints.length);
+            for (int i = 0; i < scoringCount; i++) {
+                riderPoints[i] += stagePoints[i];
+            }
+        }
+        return riderPoints;
+    }
+
+    /**
+     * gets the rows placed high enough to score at a segment
+     *
+     * @param results      the checkpoint times of the results in finish order
+     * @param segmentIndex the position of the segment in the stage
+     * @return the rows in the order of their places
+     */
+    public int[] getSegmentLeaders(CheckpointOffsets results, int segmentIndex) {
+        int resultCount = results.size();
+        long[] segmentTimes = new long[resultCount];
+        for (int i = 0; i < resultCount; i++) {
+            segmentTimes[i] = getSegmentTime(results, i, segmentIndex);
+        }
+        return fastest(segmentTimes, resultCount, segmentPoints[segmentIndex].length);
+    }
+
+    /**
+     * gets the time a row is placed by at a segment, its time from the
+     * start to the checkpoint with the same index as the segment
+     *
+     * @param results      the checkpoint times of the results
+     * @param row          the row of the result
+     * @param segmentIndex the position of the segment in the stage
+     * @return the time in nanoseconds
+     */
+    public static long getSegmentTime(CheckpointOffsets results, int row, int segmentIndex) {
+        /*
+         * a result with fewer checkpoints than the stage has segments gets
+         * a time of 0 at the rest, so it ranks fastest there, as it does
+         * when the stage works out the points itself
+         */
+        return segmentIndex < results.getCheckpointCount(row) ? results.getCheckpointOffset(row, segmentIndex) : 0;
+    }
+
+    /**
+     * picks out the rows with the lowest times, as the first places of a
+     * stable sort would, keeping them sorted as they are found
+     *
+     * @param times  the times of the rows
+     * @param count  the number of rows
+     * @param places the number of rows to pick out
+     * @return the rows in order, fewer if there are not enough rows
+     */
+    private static int[] fastest(long[] times, int count, int places) {
+        int[] leaders = new int[Math.min(places, count)];
+        int found = 0;
+        for (int i = 0; i < count; i++) {
+            int position = found;
+            while (position > 0 && times[leaders[position - 1]] > times[i]) {
+                position--;
+            }
+            if (position >= leaders.length) {
+                continue;
+            }
+            for (int j = Math.min(found, leaders.length - 1); j > position; j--) {
+                leaders[j] = leaders[j - 1];
+            }
+            leaders[position] = i;
+            if (found < leaders.length) {
+                found++;
+            }
+        }
+        return leaders;
+    }
+
+    /**
+     * drops the places at the end of a table which give no points
+     *
+     * @param table the points for each place
+     * @return the table up to the last place which scores
+     */
+    private static int[] trim(int[] table) {
+        int length = table.length;
+        while (length > 0 && table[length - 1] == 0) {
+            length--;
+        }
+        int[] trimmed = new int[length];
+        System.arraycopy(table, 0, trimmed, 0, length);
+        return trimmed;
+    }
+}
@@ -0,0 +1,256 @@
+package cycling;
+
+import java.io.IOException;
+import java.time.LocalTime;
+
+/**
+ * StageRanking - A class which stores the finish order of a stage along with
+ * every rider's elapsed and adjusted elapsed time. It is built in one sweep
+ * over the stage's result columns and is reused until the results change.
+ */
+public class StageRanking {
+    private static final long ONE_SECOND = 1000000000L;
+
+    private Stage stage;
+    private StageResults results;
+    private StagePlan plan;
+    private int[] riderIds;
+    private long[] elapsedTimes;
+    private long[] adjustedTimes;
+    // worked out the first time they are asked for
+    private int[] points;
+    private int[] mountainPoints;
+
+    /**
+     * Constructor for the Objects of StageRanking class
+     *
+     * @param stage   the stage whose results are ranked
+     * @param results the result columns of the stage, in finish order
+     * @param plan    the plan the points are worked out by
+     */
+    public StageRanking(Stage stage, StageResults results, StagePlan plan) {
+        this.stage = stage;
+        this.results = results;
+        this.plan = plan;
+        riderIds = results.getRiderIds();
+        elapsedTimes = results.getElapsedTimes();
+        adjustedTimes = adjustTimes(elapsedTimes, stage.getType().equals(StageType.TT));
+    }
+
+    /**
+     * works out the adjusted elapsed times of a stage
+     *
+     * @param elapsedTimes the elapsed times in finish order
+     * @param timeTrial    whether the stage is a time trial
+     * @return the adjusted times in finish order
+     */
+    public static long[] adjustTimes(long[] elapsedTimes, boolean timeTrial) {
+        int resultCount = elapsedTimes.length;
+        long[] adjustedTimes = new long[resultCount];
+        /*
+         * riders finishing less than a second behind the rider in front
+         * are given the same time as that rider, so a bunch takes the time
+         * of its first rider. Time trials are not adjusted.
+         */
+        for (int i = 0; i < resultCount; i++) {
+            if (i > 0 && !timeTrial && elapsedTimes[i] - elapsedTimes[i - 1] < ONE_SECOND) {
+                adjustedTimes[i] = adjustedTimes[i - 1];
+            } else {
+                adjustedTimes[i] = elapsedTimes[i];
+            }
+        }
+        return adjustedTimes;
+    }
+
+    /**
+     * Constructor for the Objects of StageRanking class which takes the
+     * adjusted times and points read from a snapshot instead of working
+     * them out
+     *
+     * @param stage          the stage whose results are ranked
+     * @param results        the result columns of the stage, in finish order
+     * @param plan           the plan the points are worked out by
+     * @param adjustedTimes  the adjusted elapsed times in finish order
+     * @param points         the points in finish order, null if not known
+     * @param mountainPoints the mountain points in finish order, null if
+     *                       not known
+     */
+    public StageRanking(Stage stage, StageResults results, StagePlan plan, long[] adjustedTimes, int[] points,
+            int[] mountainPoints) {
+        this.stage = stage;
+        this.results = results;
+        this.plan = plan;
+        this.riderIds = results.getRiderIds();
+        this.elapsedTimes = results.getElapsedTimes();
+        this.adjustedTimes = adjustedTimes;
+        this.points = points;
+        this.mountainPoints = mountainPoints;
+    }
+
+    /**
+     * writes the adjusted times and any points worked out to a snapshot,
+     * the riders are in the finish order the results are written in
+     *
+     * @param out the snapshot being written
+     */
+    public void writeSnapshot(SnapshotOutput out) {
+        out.writeVarInt(adjustedTimes.length);
+        long previous = 0;
+        for (int i = 0; i < adjustedTimes.length; i++) {
+            out.writeSignedVarLong(adjustedTimes[i] - previous);
+            previous = adjustedTimes[i];
+        }
+        out.writeByte((points != null ? 1 : 0) | (mountainPoints != null ? 2 : 0));
+        if (points != null) {
+            writePoints(out, points);
+        }
+        if (mountainPoints != null) {
+            writePoints(out, mountainPoints);
+        }
+    }
+
+    /**
+     * reads a ranking written by {@link #writeSnapshot(SnapshotOutput)}
+     *
+     * @param in      the snapshot being read
+     * @param stage   the stage whose results are ranked
+     * @param results the result columns of the stage
+     * @param plan    the plan of the stage
+     * @return the ranking, null if it does not match the results
+     * @throws IOException if the snapshot is not valid
+     */
+    public static StageRanking readSnapshot(SnapshotInput in, Stage stage, StageResults results, StagePlan plan)
+            throws IOException {
+        long[] adjustedTimes = new long[in.readVarInt()];
+        long time = 0;
+        for (int i = 0; i < adjustedTimes.length; i++) {
+            time += in.readSignedVarLong();
+            adjustedTimes[i] = time;
+        }
+        int flags = in.readByte();
+        int[] points = (flags & 1) != 0 ? readPoints(in) : null;
+        int[] mountainPoints = (flags & 2) != 0 ? readPoints(in) : null;
+        if (stage == null || adjustedTimes.length != results.size()) {
+            return null;
+        }
+        return new StageRanking(stage, results, plan, adjustedTimes, points, mountainPoints);
+    }
+
+    private static void writePoints(SnapshotOutput out, int[] points) {
+        out.writeVarInt(points.length);
+        for (int i = 0; i < points.length; i++) {
+            out.writeSignedVarLong(points[i]);
+        }
+    }
+
+    private static int[] readPoints(SnapshotInput in) throws IOException {
+        int[] points = new int[in.readVarInt()];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = (int) in.readSignedVarLong();
+        }
+        return points;
+    }
+
+    public int getRiderCount() {
+        return riderIds.length;
+    }
+
+    /**
+     * gets the riders' Ids sorted by their elapsed time
+     *
+     * @return the ranked rider Ids
+     */
+    public int[] getRidersRank() {
+        return riderIds.clone();
+    }
+
+    /**
+     * gets the adjusted elapsed times in nanoseconds
+     *
+     * @return the adjusted times in the same order as {@link #getRidersRank()}
+     */
+    public long[] getAdjustedTimes() {
+        return adjustedTimes.clone();
+    }
+
+    /**
+     * gets the points of the riders in the stage
+     *
+     * @return the points in the same order as {@link #getRidersRank()}
+     */
+    public int[] getRidersPoints() {
+        if (points == null) {
+            points = plan.workOutPoints(results, false);
+        }
+        return points.clone();
+    }
+
+    /**
+     * gets the mountain points of the riders in the stage
+     *
+     * @return the mountain points in the same order as {@link #getRidersRank()}
+     */
+    public int[] getRidersMountainPoints() {
+        if (mountainPoints == null) {
+            mountainPoints = plan.workOutPoints(results, true);
+        }
+        return mountainPoints.clone();
+    }
+
+    /**
+     * gets the adjusted elapsed times of the riders
+     *
+     * @return the adjusted times in the same order as {@link #getRidersRank()}
+     */
+    public LocalTime[] getRankedAdjustedElapsedTimes() {
+        LocalTime[] times = new LocalTime[adjustedTimes.length];
+        for (int i = 0; i < adjustedTimes.length; i++) {
+            times[i] = LocalTime.ofNanoOfDay(adjustedTimes[i]);
+        }
+        return times;
+    }
+
+    /**
+     * gets the adjusted elapsed time of a rider
+     *
+     * @param riderId the Id of the rider
+     * @return the adjusted time, null if the rider has no result
+     */
+    public LocalTime getRiderAdjustedElapsedTime(int riderId) {
+        int i = indexOfRider(riderId);
+        if (i < 0) {
+            return null;
+        }
+        return LocalTime.ofNanoOfDay(adjustedTimes[i]);
+    }
+
+    /**
+     * gets the times a rider reached each segment as nanoseconds of the
+     * day followed by the rider's elapsed time in nanoseconds
+     *
+     * @param riderId the Id of the rider
+     * @return the times, empty if the rider has no result
+     */
+    public long[] getRiderResults(int riderId) {
+        int row = results.indexOfRider(riderId);
+        if (row < 0) {
+            return new long[] {};
+        }
+        return results.getRiderResults(row);
+    }
+
+    /**
+     * gets the position of a rider in the finish order
+     *
+     * @param riderId the Id of the rider
+     * @return the position, -1 if the rider has no result
+     */
+    private int indexOfRider(int riderId) {
+        for (int i = 0; i < riderIds.length; i++) {
+            if (riderIds[i] == riderId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,358 @@
+package cycling;
+
+/**
+ * StageResults - A class which stores the results of a stage in columns.
+ * Each row is one rider's result, the rows are kept in finish order, and the
+ * checkpoints of every row are held as nanoseconds after the start. The
+ * columns are kept in a ResultStore, on the heap or off it. They are the
+ * only copy of the stage's results, the stage's own list of result objects
+ * is only used by saves made before the columns were kept.
+ */
+public class StageResults implements CheckpointOffsets {
+    /*
+     * checkpoint k of a row is stored in slot k - 1 as the time after
+     * the start, the start itself is not stored as it is always 0
+     */
+    private ResultStore store;
+
+    /**
+     * Constructor for the Objects of StageResults class
+     *
+     * @param store the store the columns are kept in
+     */
+    public StageResults(ResultStore store) {
+        this.store = store;
+    }
+
+    /**
+     * moves the rows to another store, such as when the results are moved
+     * off the heap, and frees the store they were in
+     *
+     * @param newStore the store the columns are kept in from now on
+     */
+    public void moveTo(ResultStore newStore) {
+        int size = store.getSize();
+        newStore.changeStamp();
+        newStore.setSize(0);
+        newStore.reserve(size, store.getStride());
+        for (int i = 0; i < size; i++) {
+            int checkpointCount = store.getCheckpointCount(i);
+            newStore.setRiderId(i, store.getRiderId(i));
+            newStore.setStartTime(i, store.getStartTime(i));
+            newStore.setCheckpointCount(i, checkpointCount);
+            for (int k = 0; k < checkpointCount - 1; k++) {
+                newStore.setCheckpointOffset(i, k, store.getCheckpointOffset(i, k));
+            }
+            newStore.setElapsedTime(i, store.getElapsedTime(i));
+        }
+        newStore.setSize(size);
+        store.release();
+        store = newStore;
+    }
+
+    /**
+     * removes every row
+     */
+    public void clear() {
+        store.changeStamp();
+        store.setSize(0);
+    }
+
+    /**
+     * gets the stamp of the store, see {@link ResultStore#getStamp()}
+     *
+     * @return the stamp
+     */
+    public long getStamp() {
+        return store.getStamp();
+    }
+
+    /**
+     * frees the store once the stage has been removed
+     */
+    public void release() {
+        store.release();
+    }
+
+    @Override
+    public int size() {
+        return store.getSize();
+    }
+
+    public int getRiderId(int row) {
+        return store.getRiderId(row);
+    }
+
+    /**
+     * gets the start time of a row
+     *
+     * @param row the row of the result
+     * @return the start time as nanoseconds of the day
+     */
+    public long getStartTime(int row) {
+        return store.getStartTime(row);
+    }
+
+    @Override
+    public int getCheckpointCount(int row) {
+        return store.getCheckpointCount(row);
+    }
+
+    /**
+     * gets the time a row reached a checkpoint after its start
+     *
+     * @param row             the row of the result
+     * @param checkpointIndex the index of the checkpoint, 0 being the start
+     * @return the time after the start in nanoseconds
+     */
+    @Override
+    public long getCheckpointOffset(int row, int checkpointIndex) {
+        if (checkpointIndex == 0) {
+            return 0;
+        }
+        return store.getCheckpointOffset(row, checkpointIndex - 1);
+    }
+
+    /**
+     * gets the elapsed time of a row
+     *
+     * @param row the row of the result
+     * @return the elapsed time in nanoseconds
+     */
+    public long getElapsedTime(int row) {
+        return store.getElapsedTime(row);
+    }
+
+    /**
+     * gets the rider Ids of every row
+     *
+     * @return the rider Ids in finish order
+     */
+    public int[] getRiderIds() {
+        int size = store.getSize();
+        int[] ids = new int[size];
+        for (int i = 0; i < size; i++) {
+            ids[i] = store.getRiderId(i);
+        }
+        return ids;
+    }
+
+    /**
+     * gets the elapsed times of every row
+     *
+     * @return the elapsed times in nanoseconds in finish order
+     */
+    public long[] getElapsedTimes() {
+        int size = store.getSize();
+        long[] times = new long[size];
+        for (int i = 0; i < size; i++) {
+            times[i] = store.getElapsedTime(i);
+        }
+        return times;
+    }
+
+    /**
+     * gets the times a row reached each segment as nanoseconds of the day,
+     * followed by the elapsed time in nanoseconds
+     *
+     * @param row the row of the result
+     * @return the times of the row
+     */
+    public long[] getRiderResults(int row) {
+        int checkpointCount = store.getCheckpointCount(row);
+        long[] times = new long[checkpointCount - 1];
+        long start = store.getStartTime(row);
+        // the start and finish are left out, the elapsed time takes their place
+        for (int k = 1; k < checkpointCount - 1; k++) {
+            times[k - 1] = start + store.getCheckpointOffset(row, k - 1);
+        }
+        times[checkpointCount - 2] = store.getElapsedTime(row);
+        return times;
+    }
+
+    /**
+     * finds the row of a rider
+     *
+     * @param riderId the Id of the rider
+     * @return the row, -1 if the rider has no result
+     */
+    public int indexOfRider(int riderId) {
+        int size = store.getSize();
+        for (int i = 0; i < size; i++) {
+            if (store.getRiderId(i) == riderId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * finds the row a new result goes in, after any
+     * results with the same elapsed time
+     *
+     * @param elapsedTime the elapsed time in nanoseconds
+     * @return the row for the result
+     */
+    public int findRow(long elapsedTime) {
+        return findRow(elapsedTime, store.getSize());
+    }
+
+    private int findRow(long elapsedTime, int end) {
+        int low = 0;
+        int high = end;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (store.getElapsedTime(middle) <= elapsedTime) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * works out the elapsed time of a result from its start and finish,
+     * without going through the rest of the result's checkpoints
+     *
+     * @param result          the result object
+     * @param checkpointCount the number of checkpoints of the result, as
+     *                        given by the stage's plan
+     * @return the elapsed time in nanoseconds
+     */
+    public static long elapsedTimeOf(Result result, int checkpointCount) {
+        return result.getCheckPoint(checkpointCount - 1).toNanoOfDay()
+                - result.getCheckPoint(0).toNanoOfDay();
+    }
+
+    /**
+     * inserts a result whose checkpoints have not been counted, such as one
+     * read back from a save made before the stage's segments changed
+     *
+     * @param row    the row the result goes in
+     * @param result the result object
+     */
+    public void insert(int row, Result result) {
+        insert(row, result, getCheckpointCount(result));
+    }
+
+    /**
+     * inserts a result, moving the rows below it down by one
+     *
+     * @param row             the row the result goes in
+     * @param result          the result object
+     * @param checkpointCount the number of checkpoints of the result, as
+     *                        given by the stage's plan
+     */
+    public void insert(int row, Result result, int checkpointCount) {
+        int size = store.getSize();
+        store.changeStamp();
+        store.reserve(size + 1, checkpointCount - 1);
+        store.moveRows(row, row + 1, size - row);
+
+        long start = result.getCheckPoint(0).toNanoOfDay();
+        store.setRiderId(row, result.getRiderId());
+        store.setStartTime(row, start);
+        store.setCheckpointCount(row, checkpointCount);
+        long offset = 0;
+        for (int k = 1; k < checkpointCount; k++) {
+            offset = result.getCheckPoint(k).toNanoOfDay() - start;
+            store.setCheckpointOffset(row, k - 1, offset);
+        }
+        store.setElapsedTime(row, offset);
+        store.setSize(size + 1);
+    }
+
+    /**
+     * adds a row to the end, for results read in finish order
+     *
+     * @param riderId         the Id of the rider
+     * @param times           the checkpoints as nanoseconds of the day
+     * @param from            the position of the row's first checkpoint
+     *                        in times
+     * @param checkpointCount the number of checkpoints
+     */
+    public void append(int riderId, long[] times, int from, int checkpointCount) {
+        int size = store.getSize();
+        store.changeStamp();
+        store.reserve(size + 1, checkpointCount - 1);
+        setRow(size, riderId, times, from, checkpointCount);
+        store.setSize(size + 1);
+    }
+
+    /**
+     * merges new results with the rows in one pass. The rows are made room
+     * for once and moved down from the end, each run of rows slower than
+     * the next new result only moving once. A new result goes after any
+     * row with the same time, the same place adding them one by one would
+     * give it.
+     *
+     * @param riderIds        the Ids of the riders
+     * @param times           the checkpoints of each rider one after another,
+     *                        as nanoseconds of the day
+     * @param checkpointCount the number of checkpoints of each rider
+     */
+    public void merge(int[] riderIds, long[] times, int checkpointCount) {
+        int count = riderIds.length;
+        long[] elapsedTimes = new long[count];
+        for (int j = 0; j < count; j++) {
+            elapsedTimes[j] = times[(j + 1) * checkpointCount - 1] - times[j * checkpointCount];
+        }
+        int[] order = Ranking.orderByTime(elapsedTimes);
+
+        int size = store.getSize();
+        store.changeStamp();
+        store.reserve(size + count, checkpointCount - 1);
+        int end = size;
+        for (int j = count - 1; j >= 0; j--) {
+            int added = order[j];
+            int row = findRow(elapsedTimes[added], end);
+            store.moveRows(row, row + j + 1, end - row);
+            setRow(row + j, riderIds[added], times, added * checkpointCount, checkpointCount);
+            end = row;
+        }
+        store.setSize(size + count);
+    }
+
+    /**
+     * removes a rider's result, moving the rows below it up by one
+     *
+     * @param riderId the Id of the rider
+     */
+    public void removeRider(int riderId) {
+        int row = indexOfRider(riderId);
+        if (row < 0) {
+            return;
+        }
+        int size = store.getSize();
+        store.changeStamp();
+        store.moveRows(row + 1, row, size - row - 1);
+        store.setSize(size - 1);
+    }
+
+    private void setRow(int row, int riderId, long[] times, int from, int checkpointCount) {
+        long start = times[from];
+        store.setRiderId(row, riderId);
+        store.setStartTime(row, start);
+        store.setCheckpointCount(row, checkpointCount);
+        long offset = 0;
+        for (int k = 1; k < checkpointCount; k++) {
+            offset = times[from + k] - start;
+            store.setCheckpointOffset(row, k - 1, offset);
+        }
+        store.setElapsedTime(row, offset);
+    }
+
+    /**
+     * counts the checkpoints of a result. The result only hands its times
+     * out as a new array, which leaves out the start and finish but adds
+     * the elapsed time, so this is only used where the number is not
+     * known from the stage's plan.
+     *
+     * @param result the result object
+     * @return the number of checkpoints
+     */
+    private static int getCheckpointCount(Result result) {
+        return result.getRiderResultsInStage().length + 1;
+    }
+}
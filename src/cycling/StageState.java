@@ -0,0 +1,15 @@
+package cycling;
+
+/**
+ * StageState - the stages of a stage's life.
+ * <p>
+ * A stage starts IN_PREPARATION, where segments can be added and removed,
+ * and moves to WAITING_FOR_RESULTS once its preparation is concluded, which
+ * it never leaves. CHANGING_SEGMENTS is held while a segment is being added
+ * or removed, so a stage cannot be concluded half way through the change.
+ */
+public enum StageState {
+    IN_PREPARATION,
+    CHANGING_SEGMENTS,
+    WAITING_FOR_RESULTS
+}
@@ -0,0 +1,326 @@
+package cycling;
+
+import java.time.LocalTime;
+import java.util.Arrays;
+
+/**
+ * StageVersion - A class which holds the results of a stage as they were
+ * when a version of its race was published. Nothing in it changes once it
+ * is built, so it can be read by any number of threads without locks while
+ * the stage itself carries on taking results. A stage whose results have
+ * not changed keeps the same StageVersion in every version of its race.
+ * <p>
+ * The rows are kept in the order they were added by a Builder, and each
+ * version only reads the rows which were there when it was built, so a new
+ * version shares them with the last one rather than copying them and
+ * publishing a result costs the same however many results the stage has.
+ * The finish order and the points are worked out the first time a version
+ * is read, by the reader rather than the writer which published it.
+ */
+public class StageVersion implements CheckpointOffsets {
+    private final int stageId;
+    private final StagePlan plan;
+    private final boolean timeTrial;
+    // the first resultCount rows of the builder's columns, which are only ever added to
+    private final int resultCount;
+    private final int[] riderIds;
+    private final long[] startTimes;
+    private final long[] elapsedTimes;
+    private final int[] checkpointCounts;
+    // checkpoint k of row i is stored at offsetStarts[i] + k - 1
+    private final int[] offsetStarts;
+    private final long[] checkpointOffsets;
+    // worked out the first time they are asked for, any thread may do so
+    private volatile Ranked ranked;
+    private volatile int[] points;
+    private volatile int[] mountainPoints;
+
+    private StageVersion(int stageId, StagePlan plan, boolean timeTrial, Builder builder) {
+        this.stageId = stageId;
+        this.plan = plan;
+        this.timeTrial = timeTrial;
+        resultCount = builder.size;
+        riderIds = builder.riderIds;
+        startTimes = builder.startTimes;
+        elapsedTimes = builder.elapsedTimes;
+        checkpointCounts = builder.checkpointCounts;
+        offsetStarts = builder.offsetStarts;
+        checkpointOffsets = builder.checkpointOffsets;
+    }
+
+    public int getStageId() {
+        return stageId;
+    }
+
+    public int getResultCount() {
+        return resultCount;
+    }
+
+    @Override
+    public int size() {
+        return resultCount;
+    }
+
+    @Override
+    public int getCheckpointCount(int row) {
+        return checkpointCounts[getRanked().rows[row]];
+    }
+
+    @Override
+    public long getCheckpointOffset(int row, int checkpointIndex) {
+        int added = getRanked().rows[row];
+        if (checkpointIndex == 0 || checkpointIndex >= checkpointCounts[added]) {
+            return 0;
+        }
+        return checkpointOffsets[offsetStarts[added] + checkpointIndex - 1];
+    }
+
+    /**
+     * gets the riders' Ids sorted by their elapsed time
+     *
+     * @return the ranked rider Ids
+     */
+    public int[] getRidersRank() {
+        return getRanked().riderIds.clone();
+    }
+
+    /**
+     * gets the adjusted elapsed times in nanoseconds
+     *
+     * @return the adjusted times in the same order as {@link #getRidersRank()}
+     */
+    public long[] getAdjustedTimes() {
+        return getRanked().adjustedTimes.clone();
+    }
+
+    public LocalTime[] getRankedAdjustedElapsedTimes() {
+        long[] adjustedTimes = getRanked().adjustedTimes;
+        LocalTime[] times = new LocalTime[adjustedTimes.length];
+        for (int i = 0; i < adjustedTimes.length; i++) {
+            times[i] = LocalTime.ofNanoOfDay(adjustedTimes[i]);
+        }
+        return times;
+    }
+
+    /**
+     * gets the adjusted elapsed time of a rider
+     *
+     * @param riderId the Id of the rider
+     * @return the adjusted time, null if the rider has no result
+     */
+    public LocalTime getRiderAdjustedElapsedTime(int riderId) {
+        Ranked finish = getRanked();
+        for (int i = 0; i < resultCount; i++) {
+            if (finish.riderIds[i] == riderId) {
+                return LocalTime.ofNanoOfDay(finish.adjustedTimes[i]);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * gets the times a rider reached each segment as nanoseconds of the
+     * day followed by the rider's elapsed time in nanoseconds
+     *
+     * @param riderId the Id of the rider
+     * @return the times, empty if the rider has no result
+     */
+    public long[] getRiderResults(int riderId) {
+        int added = -1;
+        for (int i = 0; i < resultCount; i++) {
+            if (riderIds[i] == riderId) {
+                added = i;
+                break;
+            }
+        }
+        if (added < 0) {
+            return new long[] {};
+        }
+        int checkpointCount = checkpointCounts[added];
+        long[] times = new long[checkpointCount - 1];
+        for (int k = 1; k < checkpointCount - 1; k++) {
+            times[k - 1] = startTimes[added] + checkpointOffsets[offsetStarts[added] + k - 1];
+        }
+        times[checkpointCount - 2] = elapsedTimes[added];
+        return times;
+    }
+
+    /**
+     * gets the points of the riders in the stage
+     *
+     * @return the points in the same order as {@link #getRidersRank()}
+     */
+    public int[] getRidersPoints() {
+        int[] result = points;
+        if (result == null) {
+            result = plan.workOutPoints(this, false);
+            points = result;
+        }
+        return result.clone();
+    }
+
+    /**
+     * gets the mountain points of the riders in the stage
+     *
+     * @return the mountain points in the same order as {@link #getRidersRank()}
+     */
+    public int[] getRidersMountainPoints() {
+        int[] result = mountainPoints;
+        if (result == null) {
+            result = plan.workOutPoints(this, true);
+            mountainPoints = result;
+        }
+        return result.clone();
+    }
+
+    /**
+     * gets the finish order, sorting the rows the first time it is asked
+     * for. Rows with the same elapsed time stay in the order they were
+     * added, which is the order the stage itself keeps them in.
+     *
+     * @return the finish order
+     */
+    private Ranked getRanked() {
+        Ranked result = ranked;
+        if (result == null) {
+            int[] rows = Ranking.orderByTime(Arrays.copyOf(elapsedTimes, resultCount));
+            int[] rankedRiderIds = new int[resultCount];
+            long[] rankedElapsedTimes = new long[resultCount];
+            for (int i = 0; i < resultCount; i++) {
+                rankedRiderIds[i] = riderIds[rows[i]];
+                rankedElapsedTimes[i] = elapsedTimes[rows[i]];
+            }
+            result = new Ranked(rows, rankedRiderIds, StageRanking.adjustTimes(rankedElapsedTimes, timeTrial));
+            ranked = result;
+        }
+        return result;
+    }
+
+    /**
+     * Ranked - the finish order of a version, the rows it is made of
+     * along with the riders' Ids and adjusted elapsed times
+     */
+    private static class Ranked {
+        private final int[] rows;
+        private final int[] riderIds;
+        private final long[] adjustedTimes;
+
+        private Ranked(int[] rows, int[] riderIds, long[] adjustedTimes) {
+            this.rows = rows;
+            this.riderIds = riderIds;
+            this.adjustedTimes = adjustedTimes;
+        }
+    }
+
+    /**
+     * Builder - the rows of a stage in the order they were added, kept by
+     * the race for as long as results are only added to the stage. The
+     * columns only grow, rows already handed to a version are never
+     * written again, and a column which runs out of room is copied to a
+     * larger one, leaving the old one to the versions which read it.
+     */
+    public static class Builder {
+        private int size;
+        private int[] riderIds;
+        private long[] startTimes;
+        private long[] elapsedTimes;
+        private int[] checkpointCounts;
+        private int[] offsetStarts;
+        private long[] checkpointOffsets;
+        private int offsetCount;
+
+        /**
+         * Constructor for the Objects of Builder class, which starts from
+         * the rows a stage already has
+         *
+         * @param results the result columns of the stage
+         */
+        public Builder(StageResults results) {
+            int resultCount = results.size();
+            int capacity = Math.max(resultCount, 8);
+            riderIds = new int[capacity];
+            startTimes = new long[capacity];
+            elapsedTimes = new long[capacity];
+            checkpointCounts = new int[capacity];
+            offsetStarts = new int[capacity];
+            checkpointOffsets = new long[capacity];
+            for (int i = 0; i < resultCount; i++) {
+                add(results, i);
+            }
+        }
+
+        /**
+         * adds a row of the stage's result columns
+         *
+         * @param results the result columns of the stage
+         * @param row     the row to add
+         */
+        public void add(StageResults results, int row) {
+            int checkpointCount = results.getCheckpointCount(row);
+            int offset = addRow(results.getRiderId(row), results.getStartTime(row), checkpointCount);
+            for (int k = 1; k < checkpointCount; k++) {
+                checkpointOffsets[offset + k - 1] = results.getCheckpointOffset(row, k);
+            }
+            elapsedTimes[size - 1] = results.getElapsedTime(row);
+        }
+
+        /**
+         * adds a row given as the checkpoints of a rider
+         *
+         * @param riderId         the Id of the rider
+         * @param times           the checkpoints as nanoseconds of the day
+         * @param from            the position of the row's first checkpoint
+         *                        in times
+         * @param checkpointCount the number of checkpoints
+         */
+        public void add(int riderId, long[] times, int from, int checkpointCount) {
+            long start = times[from];
+            int offset = addRow(riderId, start, checkpointCount);
+            long checkpointOffset = 0;
+            for (int k = 1; k < checkpointCount; k++) {
+                checkpointOffset = times[from + k] - start;
+                checkpointOffsets[offset + k - 1] = checkpointOffset;
+            }
+            elapsedTimes[size - 1] = checkpointOffset;
+        }
+
+        /**
+         * builds a version holding every row added so far
+         *
+         * @param stage the stage object
+         * @param plan  the plan of the stage
+         * @return the version of the stage
+         */
+        public StageVersion build(Stage stage, StagePlan plan) {
+            return new StageVersion(stage.getId(), plan, stage.getType().equals(StageType.TT), this);
+        }
+
+        /**
+         * makes room for a row and fills in all but its checkpoints
+         *
+         * @return the position of the row's first checkpoint offset
+         */
+        private int addRow(int riderId, long startTime, int checkpointCount) {
+            if (size == riderIds.length) {
+                int capacity = size * 2;
+                riderIds = Arrays.copyOf(riderIds, capacity);
+                startTimes = Arrays.copyOf(startTimes, capacity);
+                elapsedTimes = Arrays.copyOf(elapsedTimes, capacity);
+                checkpointCounts = Arrays.copyOf(checkpointCounts, capacity);
+                offsetStarts = Arrays.copyOf(offsetStarts, capacity);
+            }
+            int offset = offsetCount;
+            int needed = offset + Math.max(checkpointCount - 1, 0);
+            if (needed > checkpointOffsets.length) {
+                checkpointOffsets = Arrays.copyOf(checkpointOffsets, Math.max(needed, checkpointOffsets.length * 2));
+            }
+            riderIds[size] = riderId;
+            startTimes[size] = startTime;
+            checkpointCounts[size] = checkpointCount;
+            offsetStarts[size] = offset;
+            offsetCount = needed;
+            size++;
+            return offset;
+        }
+    }
+}
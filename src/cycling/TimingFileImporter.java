@@ -0,0 +1,268 @@
+package cycling;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * TimingFileImporter - A class which reads the results of a stage from a
+ * timing file and registers them in the portal. Each line holds a rider Id
+ * followed by the rider's checkpoints as HH:MM:SS.nnn, in the same form as
+ * LocalTime prints them. Fields are separated by commas, semicolons or
+ * spaces, so both CSV and fixed-width exports can be read. Lines that do
+ * not start with a digit, such as headers, are skipped.
+ * <p>
+ * The file is memory-mapped and parsed straight from its bytes, and the
+ * results are registered in batches. Each batch is added in full or not at
+ * all, so if a line is invalid the batches before it stay registered.
+ */
+public class TimingFileImporter {
+    private static final int BATCH_SIZE = 1000;
+    // the most of the file that is mapped at once, lines must be shorter
+    private static final int REGION_SIZE = 64 * 1024 * 1024;
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    private CyclingPortal portal;
+
+    // the parsing position, kept between calls while a line is read
+    private MappedByteBuffer buffer;
+    private int position;
+    private int limit;
+    private long lineNumber;
+
+    /**
+     * Constructor for the Objects of TimingFileImporter class
+     *
+     * @param portal the portal the results are registered in
+     */
+    public TimingFileImporter(CyclingPortal portal) {
+        this.portal = portal;
+    }
+
+    /**
+     * reads a timing file and registers every result in it
+     *
+     * @param stageId  the Id of the stage the results refer to
+     * @param filename the location of the timing file
+     * @return the number of results registered
+     * @throws IOException                 if the file cannot be read or a
+     *                                     line cannot be parsed
+     * @throws IDNotRecognisedException    if the stage or a rider Id is not found
+     * @throws DuplicatedResultException   if a rider already has a result
+     * @throws InvalidCheckpointsException if a line does not have the number of
+     *                                     segments + 2 checkpoints
+     * @throws InvalidStageStateException  if the stage is waiting for results
+     */
+    public int importStageResults(int stageId, String filename) throws IOException, IDNotRecognisedException,
+            DuplicatedResultException, InvalidCheckpointsException, InvalidStageStateException {
+        if (!portal.doesStageIdExist(stageId)) {
+            throw new IDNotRecognisedException("Stage ID does not match to any stage in the system.");
+        }
+        int checkpointCount = portal.getSegmentsCount(stageId) + 2;
+        int[] riderIds = new int[BATCH_SIZE];
+        long[] checkpoints = new long[BATCH_SIZE * checkpointCount];
+        int rows = 0;
+        int imported = 0;
+        lineNumber = 0;
+
+        try (RandomAccessFile file = new RandomAccessFile(filename, "r");
+                FileChannel channel = file.getChannel()) {
+            long fileSize = channel.size();
+            long regionStart = 0;
+            while (regionStart < fileSize) {
+                long regionLength = Math.min(REGION_SIZE, fileSize - regionStart);
+                boolean lastRegion = regionStart + regionLength == fileSize;
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, regionStart, regionLength);
+                position = 0;
+                limit = (int) regionLength;
+
+                while (position < limit) {
+                    int lineStart = position;
+                    int lineEnd = findLineEnd();
+                    if (lineEnd == limit && !lastRegion) {
+                        // the line carries on past the region, it is read again from the next one
+                        if (lineStart == 0) {
+                            throw new IOException("Line " + (lineNumber + 1) + " of the timing file is too long.");
+                        }
+                        position = lineStart;
+                        break;
+                    }
+                    lineNumber++;
+                    if (parseLine(lineEnd, riderIds, checkpoints, rows, checkpointCount)) {
+                        rows++;
+                        if (rows == BATCH_SIZE) {
+                            imported += register(stageId, riderIds, checkpoints, rows, checkpointCount);
+                            rows = 0;
+                        }
+                    }
+                    position = lineEnd + 1;
+                }
+                regionStart += Math.min(position, limit);
+            }
+        } finally {
+            buffer = null;
+        }
+        if (rows > 0) {
+            imported += register(stageId, riderIds, checkpoints, rows, checkpointCount);
+        }
+        return imported;
+    }
+
+    /**
+     * finds the end of the line starting at the current position
+     *
+     * @return the index of the line feed, or the limit if there is none
+     */
+    private int findLineEnd() {
+        for (int i = position; i < limit; i++) {
+            if (buffer.get(i) == '\n') {
+                return i;
+            }
+        }
+        return limit;
+    }
+
+    /**
+     * parses one line into a row of the batch
+     *
+     * @param lineEnd         the index the line ends at
+     * @param riderIds        the rider Ids of the batch
+     * @param checkpoints     the checkpoints of the batch in nanoseconds
+     * @param row             the row the line is parsed into
+     * @param checkpointCount the number of checkpoints on each line
+     * @return true if a result was read, false if the line was skipped
+     * @throws IOException                 if the line cannot be parsed
+     * @throws InvalidCheckpointsException if the line has the wrong number
+     *                                     of checkpoints
+     */
+    private boolean parseLine(int lineEnd, int[] riderIds, long[] checkpoints, int row, int checkpointCount)
+            throws IOException, InvalidCheckpointsException {
+        skipSeparators(lineEnd);
+        if (position == lineEnd || !isDigit(buffer.get(position))) {
+            return false;
+        }
+        // the Id is checked as each digit is read, so a long one cannot wrap around
+        long riderId = 0;
+        while (position < lineEnd && isDigit(buffer.get(position))) {
+            riderId = riderId * 10 + (buffer.get(position++) - '0');
+            if (riderId > Integer.MAX_VALUE) {
+                throw new IOException("Line " + lineNumber + " of the timing file has a rider Id out of range.");
+            }
+        }
+        riderIds[row] = (int) riderId;
+
+        int base = row * checkpointCount;
+        int count = 0;
+        skipSeparators(lineEnd);
+        while (position < lineEnd) {
+            if (count == checkpointCount) {
+                throw new InvalidCheckpointsException("Line " + lineNumber
+                        + " has more checkpoints than the number of segments + 2 (start and finish).");
+            }
+            checkpoints[base + count] = parseTime(lineEnd);
+            count++;
+            skipSeparators(lineEnd);
+        }
+        if (count != checkpointCount) {
+            throw new InvalidCheckpointsException("Line " + lineNumber
+                    + " has fewer checkpoints than the number of segments + 2 (start and finish).");
+        }
+        return true;
+    }
+
+    /**
+     * parses a time written as H:MM:SS with up to nine digits of fractions
+     * of a second, the seconds and the fraction are optional
+     *
+     * @param lineEnd the index the line ends at
+     * @return the time as nanoseconds of the day
+     * @throws IOException if the time is not valid
+     */
+    private long parseTime(int lineEnd) throws IOException {
+        long hours = parseNumber(lineEnd);
+        expect(':', lineEnd);
+        long minutes = parseNumber(lineEnd);
+        long seconds = 0;
+        long nanos = 0;
+        if (position < lineEnd && buffer.get(position) == ':') {
+            position++;
+            seconds = parseNumber(lineEnd);
+        }
+        if (position < lineEnd && buffer.get(position) == '.') {
+            position++;
+            long scale = 100000000L;
+            while (position < lineEnd && isDigit(buffer.get(position))) {
+                nanos += (buffer.get(position++) - '0') * scale;
+                scale /= 10;
+            }
+        }
+        if (hours > 23 || minutes > 59 || seconds > 59) {
+            throw new IOException("Line " + lineNumber + " of the timing file has a time out of range.");
+        }
+        return ((hours * 60 + minutes) * 60 + seconds) * NANOS_PER_SECOND + nanos;
+    }
+
+    private long parseNumber(int lineEnd) throws IOException {
+        if (position == lineEnd || !isDigit(buffer.get(position))) {
+            throw new IOException("Line " + lineNumber + " of the timing file has an invalid time.");
+        }
+        long number = 0;
+        while (position < lineEnd && isDigit(buffer.get(position))) {
+            number = number * 10 + (buffer.get(position++) - '0');
+            if (number > Integer.MAX_VALUE) {
+                throw new IOException("Line " + lineNumber + " of the timing file has a time out of range.");
+            }
+        }
+        return number;
+    }
+
+    private void expect(char character, int lineEnd) throws IOException {
+        if (position == lineEnd || buffer.get(position) != character) {
+            throw new IOException("Line " + lineNumber + " of the timing file has an invalid time.");
+        }
+        position++;
+    }
+
+    private void skipSeparators(int lineEnd) {
+        while (position < lineEnd) {
+            byte character = buffer.get(position);
+            if (character != ',' && character != ';' && character != ' ' && character != '\t'
+                    && character != '\r') {
+                return;
+            }
+            position++;
+        }
+    }
+
+    private static boolean isDigit(byte character) {
+        return character >= '0' && character <= '9';
+    }
+
+    /**
+     * registers a batch of results in the stage
+     *
+     * @param stageId         the Id of the stage
+     * @param riderIds        the rider Ids of the batch
+     * @param checkpoints     the checkpoints of the batch in nanoseconds
+     * @param rows            the number of rows in the batch
+     * @param checkpointCount the number of checkpoints in each row
+     * @return the number of results registered
+     */
+    private int register(int stageId, int[] riderIds, long[] checkpoints, int rows, int checkpointCount)
+            throws IDNotRecognisedException, DuplicatedResultException, InvalidCheckpointsException,
+            InvalidStageStateException {
+        /*
+         * the times are copied into the stage's columns, so full arrays are
+         * passed as they are and filled again for the next batch
+         */
+        if (rows == riderIds.length) {
+            portal.registerRidersResultsInStage(stageId, riderIds, checkpoints);
+        } else {
+            portal.registerRidersResultsInStage(stageId, Arrays.copyOf(riderIds, rows),
+                    Arrays.copyOf(checkpoints, rows * checkpointCount));
+        }
+        return rows;
+    }
+}